@@ -303,6 +303,20 @@ public class HealpixBase extends HealpixTables
   public Pointing pix2ang(long pix) throws Exception
     { return pix2loc(pix).toPointing(); }
 
+  /** Computes the angular coordinates of the center of the supplied pixel
+      without allocating any object.
+      @param pix the requested pixel number.
+      @param ptg array of at least 3 elements; on exit, ptg[0] contains theta
+        and ptg[1] contains phi of the pixel's center, ptg[2] is scratch
+        space. */
+  public void pix2ang(long pix, double[] ptg)
+    {
+    pix2loc(pix,ptg);
+    double z=ptg[0];
+    double st = Double.isNaN(ptg[2]) ? Math.sqrt((1.0-z)*(1.0+z)) : ptg[2];
+    ptg[0] = FastMath.atan2(st,z);
+    }
+
   /** Returns the pixel which contains the supplied Vec3.
       @param vec the requested location on the sphere (need not be normalized).
       @return the pixel number containing the location. */
@@ -316,6 +330,178 @@ public class HealpixBase extends HealpixTables
   public Vec3 pix2vec(long pix) throws Exception
     { return pix2loc(pix).toVec3(); }
 
+  /** Computes the normalized 3-vector of the center of the supplied pixel
+      without allocating any object.
+      @param pix the requested pixel number.
+      @param vec array of at least 3 elements; on exit, it contains the x, y
+        and z coordinates of the pixel's center. */
+  public void pix2vec(long pix, double[] vec)
+    {
+    pix2loc(pix,vec);
+    double z=vec[0], phi=vec[1];
+    double st = Double.isNaN(vec[2]) ? Math.sqrt((1.0-z)*(1.0+z)) : vec[2];
+    vec[0]=st*FastMath.cos(phi);
+    vec[1]=st*FastMath.sin(phi);
+    vec[2]=z;
+    }
+
+  /** Computes the z and phi coordinates of the centers of a contiguous
+      range of pixels without allocating any object.
+      @param first the first pixel number.
+      @param n the number of pixels.
+      @param z array of at least n elements; on exit, z[i] contains
+        cos(theta) of the center of the pixel first+i.
+      @param phi array of at least n elements; on exit, phi[i] contains phi
+        of the center of the pixel first+i. */
+  public void pix2zphi (long first, int n, double[] z, double[] phi)
+    { pix2zphi(null,first,n,z,phi); }
+
+  /** Computes the z and phi coordinates of the centers of the supplied
+      pixels without allocating any object.
+      @param pix array of at least n pixel numbers.
+      @param n the number of pixels.
+      @param z array of at least n elements; on exit, z[i] contains
+        cos(theta) of the center of the pixel pix[i].
+      @param phi array of at least n elements; on exit, phi[i] contains phi
+        of the center of the pixel pix[i]. */
+  public void pix2zphi (long[] pix, int n, double[] z, double[] phi)
+    { pix2zphi(pix,0,n,z,phi); }
+
+  private void pix2zphi (long[] pix, long first, int n, double[] z,
+    double[] phi)
+    {
+    for (int i=0; i<n; ++i)
+      pix2loc((pix==null) ? first+i : pix[i],z,i,phi,i);
+    }
+
+  /** Computes the angular coordinates of the centers of a contiguous range
+      of pixels without allocating any object.
+      @param first the first pixel number.
+      @param n the number of pixels.
+      @param theta array of at least n elements; on exit, theta[i] contains
+        theta of the center of the pixel first+i.
+      @param phi array of at least n elements; on exit, phi[i] contains phi
+        of the center of the pixel first+i. */
+  public void pix2ang (long first, int n, double[] theta, double[] phi)
+    { pix2ang(null,first,n,theta,phi); }
+
+  /** Computes the angular coordinates of the centers of the supplied pixels
+      without allocating any object.
+      @param pix array of at least n pixel numbers.
+      @param n the number of pixels.
+      @param theta array of at least n elements; on exit, theta[i] contains
+        theta of the center of the pixel pix[i].
+      @param phi array of at least n elements; on exit, phi[i] contains phi
+        of the center of the pixel pix[i]. */
+  public void pix2ang (long[] pix, int n, double[] theta, double[] phi)
+    { pix2ang(pix,0,n,theta,phi); }
+
+  private void pix2ang (long[] pix, long first, int n, double[] theta,
+    double[] phi)
+    {
+    for (int i=0; i<n; ++i)
+      {
+      double sth=pix2loc((pix==null) ? first+i : pix[i],theta,i,phi,i);
+      double z=theta[i];
+      theta[i]=FastMath.atan2(Double.isNaN(sth) ?
+        Math.sqrt((1.0-z)*(1.0+z)) : sth, z);
+      }
+    }
+
+  /** Computes the normalized 3-vectors of the centers of a contiguous range
+      of pixels without allocating any object.
+      @param first the first pixel number.
+      @param n the number of pixels.
+      @param x array of at least n elements; on exit, x[i] contains the x
+        coordinate of the center of the pixel first+i.
+      @param y array of at least n elements, for the y coordinates.
+      @param z array of at least n elements, for the z coordinates. */
+  public void pix2vec (long first, int n, double[] x, double[] y,
+    double[] z)
+    { pix2vec(null,first,n,x,y,z); }
+
+  /** Computes the normalized 3-vectors of the centers of the supplied pixels
+      without allocating any object.
+      @param pix array of at least n pixel numbers.
+      @param n the number of pixels.
+      @param x array of at least n elements; on exit, x[i] contains the x
+        coordinate of the center of the pixel pix[i].
+      @param y array of at least n elements, for the y coordinates.
+      @param z array of at least n elements, for the z coordinates. */
+  public void pix2vec (long[] pix, int n, double[] x, double[] y,
+    double[] z)
+    { pix2vec(pix,0,n,x,y,z); }
+
+  private void pix2vec (long[] pix, long first, int n, double[] x,
+    double[] y, double[] z)
+    {
+    for (int i=0; i<n; ++i)
+      {
+      // phi is stored in x until the vector is computed
+      double sth=pix2loc((pix==null) ? first+i : pix[i],z,i,x,i);
+      double zi=z[i], phi=x[i];
+      double st = Double.isNaN(sth) ? Math.sqrt((1.0-zi)*(1.0+zi)) : sth;
+      x[i]=st*FastMath.cos(phi);
+      y[i]=st*FastMath.sin(phi);
+      }
+    }
+
+  /** Computes the pixels which contain the supplied locations without
+      allocating any object.
+      @param z array of at least n values of cos(theta).
+      @param phi array of at least n values of phi.
+      @param n the number of locations.
+      @param pix array of at least n elements; on exit, pix[i] contains the
+        number of the pixel containing the location (z[i],phi[i]). */
+  public void zphi2pix (double[] z, double[] phi, int n, long[] pix)
+    {
+    for (int i=0; i<n; ++i)
+      pix[i]=loc2pix(z[i],phi[i],0.,false);
+    }
+
+  /** Computes the pixels which contain the supplied angular coordinates
+      without allocating any object.
+      @param theta array of at least n values of theta.
+      @param phi array of at least n values of phi.
+      @param n the number of locations.
+      @param pix array of at least n elements; on exit, pix[i] contains the
+        number of the pixel containing the location (theta[i],phi[i]). */
+  public void ang2pix (double[] theta, double[] phi, int n, long[] pix)
+    throws Exception
+    {
+    for (int i=0; i<n; ++i)
+      {
+      double th=theta[i];
+      HealpixUtils.check((th>=0.)&&(th<=Math.PI),"invalid theta value");
+      double z=FastMath.cos(th);
+      pix[i] = (Math.abs(z)>0.99) ?
+        loc2pix(z,phi[i],FastMath.sin(th),true) :
+        loc2pix(z,phi[i],0.,false);
+      }
+    }
+
+  /** Computes the pixels which contain the supplied 3-vectors without
+      allocating any object.
+      @param x array of at least n x coordinates.
+      @param y array of at least n y coordinates.
+      @param z array of at least n z coordinates.
+      @param n the number of vectors (which need not be normalized).
+      @param pix array of at least n elements; on exit, pix[i] contains the
+        number of the pixel containing the vector (x[i],y[i],z[i]). */
+  public void vec2pix (double[] x, double[] y, double[] z, int n,
+    long[] pix)
+    {
+    for (int i=0; i<n; ++i)
+      {
+      double xi=x[i], yi=y[i];
+      double xl = 1./Math.sqrt(xi*xi+yi*yi+z[i]*z[i]);
+      double zn = z[i]*xl, phi = FastMath.atan2(yi,xi);
+      pix[i] = (Math.abs(zn)>0.99) ?
+        loc2pix(zn,phi,Math.sqrt(xi*xi+yi*yi)*xl,true) :
+        loc2pix(zn,phi,0.,false);
+      }
+    }
+
   /** Returns nested pixel number for the supplied ring pixel number.
       @param ipring the requested pixel number in RING scheme.
       @return the corresponding pixel number in NESTED scheme. */
@@ -335,9 +521,11 @@ public class HealpixBase extends HealpixTables
     }
 
   protected long loc2pix (Hploc loc)
-    {
-    double z=loc.z, phi=loc.phi;
+    { return loc2pix(loc.z,loc.phi,loc.sth,loc.have_sth); }
 
+  /** Allocation-free variant of loc2pix(Hploc). */
+  private long loc2pix (double z, double phi, double sth, boolean have_sth)
+    {
     double za = Math.abs(z);
     double tt = HealpixUtils.fmodulo((phi*Constants.inv_halfpi),4.0);// in [0,4)
 
@@ -363,9 +551,9 @@ public class HealpixBase extends HealpixTables
       else  // North & South polar caps
         {
         double tp = tt-(long)(tt);
-        double tmp = ((za<0.99)||(!loc.have_sth)) ?
+        double tmp = ((za<0.99)||(!have_sth)) ?
                      nside*Math.sqrt(3*(1-za)) :
-                     nside*loc.sth/Math.sqrt((1.+za)/3.);
+                     nside*sth/Math.sqrt((1.+za)/3.);
 
         long jp = (long)(tp*tmp); // increasing edge line index
         long jm = (long)((1.0-tp)*tmp); // decreasing edge line index
@@ -397,9 +585,9 @@ public class HealpixBase extends HealpixTables
         {
         int ntt = Math.min(3,(int)tt);
         double tp = tt-ntt;
-        double tmp = ((za<0.99)||(!loc.have_sth)) ?
+        double tmp = ((za<0.99)||(!have_sth)) ?
                      nside*Math.sqrt(3*(1-za)) :
-                     nside*loc.sth/Math.sqrt((1.+za)/3.);
+                     nside*sth/Math.sqrt((1.+za)/3.);
 
         long jp = (long)(tp*tmp); // increasing edge line index
         long jm = (long)((1.0-tp)*tmp); // decreasing edge line index
@@ -459,9 +647,12 @@ public class HealpixBase extends HealpixTables
       }
     else
       {
-      Xyf xyf= nest2xyf(pix);
+      // inlined nest2xyf(), which would allocate an Xyf
+      long fpix = pix&(npface-1);
+      int ix = compress_bits(fpix), iy = compress_bits(fpix>>>1),
+          face = (int)(pix>>>(2*order));
 
-      long jr = ((long)(jrll[xyf.face])<<order) -xyf.ix - xyf.iy - 1;
+      long jr = ((long)(jrll[face])<<order) -ix - iy - 1;
 
       long nr;
       if (jr<nside)
@@ -484,7 +675,7 @@ public class HealpixBase extends HealpixTables
         loc.z = (nl2-jr)*fact1;
         }
 
-      long tmp=(long)(jpll[xyf.face])*nr+xyf.ix-xyf.iy;
+      long tmp=(long)(jpll[face])*nr+ix-iy;
       assert(tmp<8*nr); // must not happen
       if (tmp<0) tmp+=8*nr;
       loc.phi = (nr==nside) ? 0.75*Constants.halfpi*tmp*fact1 :
@@ -493,6 +684,95 @@ public class HealpixBase extends HealpixTables
     return loc;
     }
 
+  /** Allocation-free variant of pix2loc(long): stores z, phi and sin(theta)
+      of the pixel center in loc[0], loc[1] and loc[2]. loc[2] is set to NaN
+      when sin(theta) is not needed for accuracy. */
+  private void pix2loc (long pix, double[] loc)
+    { loc[2]=pix2loc(pix,loc,0,loc,1); }
+
+  /** Allocation-free variant of pix2loc(long): stores z and phi of the pixel
+      center in z_out[iz] and phi_out[iph].
+      @return sin(theta), or NaN when it is not needed for accuracy. */
+  private double pix2loc (long pix, double[] z_out, int iz, double[] phi_out,
+    int iph)
+    {
+    double z, phi, sth=Double.NaN;
+    if (scheme==Scheme.RING)
+      {
+      if (pix<ncap) // North Polar cap
+        {
+        long iring = (1+(HealpixUtils.isqrt(1+2*pix)))>>>1; //from North pole
+        long iphi  = (pix+1) - 2*iring*(iring-1);
+
+        double tmp = (iring*iring)*fact2;
+        z = 1.0 - tmp;
+        if (z>0.99) sth=Math.sqrt(tmp*(2.-tmp));
+        phi = (iphi-0.5) * Constants.halfpi/iring;
+        }
+      else if (pix<(npix-ncap)) // Equatorial region
+        {
+        long ip  = pix - ncap;
+        long tmp = (order>=0) ? ip>>>(order+2) : ip/nl4;
+        long iring = tmp + nside,
+          iphi = ip-nl4*tmp+1;;
+        // 1 if iring+nside is odd, 1/2 otherwise
+        double fodd = ((iring+nside)&1)!=0 ? 1 : 0.5;
+
+        z = (nl2-iring)*fact1;
+        phi = (iphi-fodd) * Math.PI*0.75*fact1;
+        }
+      else // South Polar cap
+        {
+        long ip = npix - pix;
+        long iring = (1+HealpixUtils.isqrt(2*ip-1))>>>1; //from South pole
+        long iphi  = 4*iring + 1 - (ip - 2*iring*(iring-1));
+
+        double tmp = (iring*iring)*fact2;
+        z = tmp-1.0;
+        if (z<-0.99) sth=Math.sqrt(tmp*(2.-tmp));
+        phi = (iphi-0.5) * Constants.halfpi/iring;
+        }
+      }
+    else
+      {
+      // inlined nest2xyf(), which would allocate an Xyf
+      long fpix = pix&(npface-1);
+      int ix = compress_bits(fpix), iy = compress_bits(fpix>>>1),
+          face = (int)(pix>>>(2*order));
+
+      long jr = ((long)(jrll[face])<<order) -ix - iy - 1;
+
+      long nr;
+      if (jr<nside)
+        {
+        nr = jr;
+        double tmp = (nr*nr)*fact2;
+        z = 1 - tmp;
+        if (z>0.99) sth=Math.sqrt(tmp*(2.-tmp));
+        }
+      else if (jr>nl3)
+        {
+        nr = nl4-jr;
+        double tmp = (nr*nr)*fact2;
+        z = tmp - 1;
+        if (z<-0.99) sth=Math.sqrt(tmp*(2.-tmp));
+        }
+      else
+        {
+        nr = nside;
+        z = (nl2-jr)*fact1;
+        }
+
+      long tmp=(long)(jpll[face])*nr+ix-iy;
+      assert(tmp<8*nr); // must not happen
+      if (tmp<0) tmp+=8*nr;
+      phi = (nr==nside) ? 0.75*Constants.halfpi*tmp*fact1 :
+                         (0.5*Constants.halfpi*tmp)/nr;
+      }
+    z_out[iz]=z; phi_out[iph]=phi;
+    return sth;
+    }
+
   /** Returns the Zphi corresponding to the center of the supplied pixel.
       @param pix the requested pixel number.
       @return the pixel's center coordinates. */
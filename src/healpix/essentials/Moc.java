@@ -120,66 +120,134 @@ public class Moc
   /** @return true, if the intersection of this Moc and "other" is not empty. */
   public boolean overlaps(Moc other) // FIXME: needs optimization!
     { return rs.overlaps(other.rs); }
-  /** @return A RangeSet containing all HEALPix pixels (in NUNIQ order) covered
-      by this Moc. The result is well-formed in the sense that every pixel is
-      given at its lowest possible HEALPix order. */
-  public RangeSet toUniqRS() // should be tuned!
+  /** Interface for receivers of the NUNIQ pixels of a Moc. */
+  public interface UniqWriter
+    {
+    /** Receives the NUNIQ pixels [a;b[, which all have the same order.
+        The ranges are received in increasing order. */
+    void append (long a, long b) throws Exception;
+    }
+
+  /** Computes the pixels of order "o" in the well-formed decomposition of
+      the range [a;b[ of pixels of order maxorder: they are the cells of order
+      o inside the range whose parent is not inside the range.
+      @param res on exit, contains the NUNIQ ranges [res[0];res[1][ and
+        [res[2];res[3][, which may be empty */
+  private static void uniqRanges (long a, long b, int o, long[] res)
     {
-    RangeSet r2 = new RangeSet(rs);
-    RangeSet r3 = new RangeSet();
-    RangeSet res= new RangeSet();
-    for (int o=0; o<=maxorder; ++o)
+    int shift = 2*(maxorder-o);
+    long ofs = 1L<<(2*o+2);
+    long pa = (a+(1L<<shift)-1)>>>shift,
+         pb = b>>>shift;
+    long qa = pb, qb = pb;
+    if ((o>0) && (pa<pb))
       {
-      if (r2.isEmpty()) return res;
+      // cells of the parent order inside the range
+      long ca = ((a+(1L<<(shift+2))-1)>>>(shift+2))<<2,
+           cb = (b>>>(shift+2))<<2;
+      if (ca<cb)
+        { qa=cb; pb=ca; }
+      }
+    res[0]=pa+ofs; res[1]=Math.max(pa,pb)+ofs;
+    res[2]=qa+ofs; res[3]=qb+ofs;
+    }
 
-      int shift = 2*(maxorder-o);
-      long ofs=(1L<<shift)-1;
-      long ofs2 = 1L<<(2*o+2);
-      r3.clear();
-      for (int iv=0; iv<r2.nranges(); ++iv)
+  /** @return A RangeSet containing all HEALPix pixels (in NUNIQ order) covered
+      by this Moc. The result is well-formed in the sense that every pixel is
+      given at its lowest possible HEALPix order. The time is proportional to
+      the number of ranges times the number of orders. */
+  public RangeSet toUniqRS()
+    {
+    RangeSet res = new RangeSet();
+    long[] tmp = new long[4];
+    // maxOrder() is negative when all the bounds are multiples of 4^30
+    int omax = Math.max(0,maxOrder());
+    for (int o=0; o<=omax; ++o)
+      for (int iv=0; iv<rs.nranges(); ++iv)
         {
-        long a=(r2.ivbegin(iv)+ofs)>>>shift,
-             b=r2.ivend(iv)>>>shift;
-        r3.append(a<<shift, b<<shift);
-        res.append(a+ofs2,b+ofs2);
+        uniqRanges(rs.ivbegin(iv),rs.ivend(iv),o,tmp);
+        res.append(tmp[0],tmp[1]);
+        res.append(tmp[2],tmp[3]);
         }
-      if (!r3.isEmpty())
-        r2 = r2.difference(r3);
-      }
     return res;
     }
-  public long[] toUniq() // should be tuned!
+  /** Sends all HEALPix pixels (in NUNIQ order) covered by this Moc to
+      "out", without building any intermediate RangeSet. The pixels are the
+      ones of toUniqRS(). */
+  public void toUniq (UniqWriter out) throws Exception
+    {
+    long[] tmp = new long[4];
+    int omax = Math.max(0,maxOrder());
+    for (int o=0; o<=omax; ++o)
+      for (int iv=0; iv<rs.nranges(); ++iv)
+        {
+        uniqRanges(rs.ivbegin(iv),rs.ivend(iv),o,tmp);
+        if (tmp[0]<tmp[1]) out.append(tmp[0],tmp[1]);
+        if (tmp[2]<tmp[3]) out.append(tmp[2],tmp[3]);
+        }
+    }
+  public long[] toUniq()
     { return toUniqRS().toArray(); }
 
+  /** Adds the NUNIQ pixels [u1;u2[ to the pixels of order maxorder of each
+      order. Within an order, the pixels must be added in increasing order. */
+  private static void addUniq (RangeSet[] parts, long u1, long u2)
+    {
+    while (u1<u2)
+      {
+      int order = HealpixUtils.uniq2order(u1);
+      long ofs = 1L<<(2*order+2);
+      long end = Math.min(u2,ofs<<2);
+      int shift = 2*(maxorder-order);
+      if (parts[order]==null) parts[order]=new RangeSet();
+      parts[order].append((u1-ofs)<<shift,(end-ofs)<<shift);
+      u1 = end;
+      }
+    }
+
+  /** Merges the pixels of each order into a Moc, by unions of pairs of
+      orders so that each range takes part in about log2(orders) unions. */
+  private static Moc fromParts (RangeSet[] parts)
+    {
+    int n=0;
+    for (int o=0; o<parts.length; ++o)
+      if (parts[o]!=null) parts[n++]=parts[o];
+    if (n==0) return new Moc();
+    while (n>1)
+      {
+      for (int i=0; i<n/2; ++i)
+        parts[i]=parts[2*i].union(parts[2*i+1]);
+      if ((n&1)!=0) parts[n/2]=parts[n-1];
+      n=(n+1)/2;
+      }
+    return fromNewRangeSet(parts[0]);
+    }
+
   /** @return A Moc built from the RangeSet of NUNIQ HEALPix pixels given in
-      "ru". "ru" need not be well-formed. */
-  public static Moc fromUniqRS (RangeSet ru) // should be tuned!
+      "ru". "ru" need not be well-formed. The time is proportional to the
+      number of ranges times the number of orders. */
+  public static Moc fromUniqRS (RangeSet ru)
     {
-    RangeSet r= new RangeSet();
-    RangeSet rtmp = new RangeSet();
-    int lastorder=0;
-    int shift=2*maxorder;
+    RangeSet[] parts = new RangeSet[maxorder+1];
     for (int i=0; i<ru.nranges(); ++i)
-      for (long j=ru.ivbegin(i); j<ru.ivend(i); ++j)
-        {
-        int order = HealpixUtils.uniq2order(j);
-        if (order!=lastorder)
-          {
-          r=r.union(rtmp);
-          rtmp.clear();
-          lastorder=order;
-          shift=2*(maxorder-order);
-          }
-        long pix = j-(1L<<(2*order+2));
-        rtmp.append (pix<<shift,(pix+1)<<shift);
-        }
-    r=r.union(rtmp);
-    return fromNewRangeSet(r);
+      addUniq(parts,ru.ivbegin(i),ru.ivend(i));
+    return fromParts(parts);
     }
 
-  public static Moc fromUniq (long []u) // should be tuned!
+  /** @return A Moc built from the NUNIQ HEALPix pixels given in increasing
+      order in "u". "u" need not be well-formed. */
+  public static Moc fromUniq (long []u)
     {
-    return fromUniqRS(RangeSet.fromArray(u));
+    RangeSet[] parts = new RangeSet[maxorder+1];
+    int i=0;
+    while (i<u.length)
+      {
+      int j=i+1;
+      while ((j<u.length) && (u[j]==u[j-1]+1)) ++j;
+      addUniq(parts,u[i],u[j-1]+1);
+      i=j;
+      }
+    return fromParts(parts);
     }
 
   /** @return A compressed representation of the Moc obtained by interpolative
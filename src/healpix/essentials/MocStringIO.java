@@ -59,56 +59,65 @@ public class MocStringIO
       }
     return Moc.fromUniqRS(ru);
     }
-  private static String mocToStringGeneral(Moc moc, boolean json)
+  /** Formats the NUNIQ ranges of a Moc, which are received order by order. */
+  private static final class UniqFormatter implements Moc.UniqWriter
     {
-    RangeSet ru = moc.toUniqRS();
-    StringBuilder s = new StringBuilder();
-    if (json) s.append("{");
-    boolean firstOrder=true;
-    int omax = moc.maxOrder();
-    for (int o=0; o<=omax; ++o)
+    private final StringBuilder s = new StringBuilder();
+    private final boolean json;
+    private int order=-1;
+    private long offset;
+
+    UniqFormatter(boolean json)
+      { this.json=json; }
+
+    public void append (long ua, long ub)
       {
-      RangeSet rt = new RangeSet();
-      long offset=4*(1L<<(2*o));
-      rt.append(offset, 4*offset);
-      rt=rt.intersection(ru);
-      boolean prefix=false;
-      if (!rt.isEmpty())
+      int o=HealpixUtils.uniq2order(ua);
+      if (o!=order)
         {
-        for (int iv=0; iv<rt.nranges(); ++iv)
+        if (order>=0)
           {
-          long a=rt.ivbegin(iv)-offset,
-               b=rt.ivend(iv)-offset;
-          if (!prefix)
-            {
-            if (!firstOrder) s.append(json ? ", " : " ");
-            firstOrder=false;
-            if (json)
-              s.append("\"").append(o).append("\":[");
-            else
-              s.append(o).append("/");
-            prefix=true;
-            }
-          else
-            s.append(",");
-          if (json)
-            {
-            for (long i=a;i<b-1;++i)
-              s.append(i).append(",");
-            s.append(b-1);
-            }
-          else
-            {
-            s.append(a);
-            if (b>a+1) s.append("-").append(b-1);
-            }
+          if (json) s.append("]");
+          s.append(json ? ", " : " ");
           }
+        if (json)
+          s.append("\"").append(o).append("\":[");
+        else
+          s.append(o).append("/");
+        order=o;
+        offset=4*(1L<<(2*o));
+        }
+      else
+        s.append(",");
+      long a=ua-offset, b=ub-offset;
+      if (json)
+        {
+        for (long i=a;i<b-1;++i)
+          s.append(i).append(",");
+        s.append(b-1);
+        }
+      else
+        {
+        s.append(a);
+        if (b>a+1) s.append("-").append(b-1);
         }
-      if (json&&prefix)
-        s.append("]");
       }
-    if (json) s.append("}");
-    return s.toString();
+
+    String finish()
+      {
+      if (json&&(order>=0)) s.append("]");
+      return json ? "{"+s+"}" : s.toString();
+      }
+    }
+
+  private static String mocToStringGeneral(Moc moc, boolean json)
+    {
+    UniqFormatter out = new UniqFormatter(json);
+    try
+      { moc.toUniq(out); }
+    catch (Exception e) // not thrown by the formatter
+      { throw new IllegalStateException(e); }
+    return out.finish();
     }
   /** Converts the Moc to its basic ASCII representation as described in the MOC
       standard document. The result is well-formed. */
@@ -19,21 +19,29 @@ package io.github.malapert.jhips;
 
 import io.github.malapert.jhips.metadata.MetadataFileCollection;
 import io.github.malapert.jhips.metadata.MetadataFile;
+import io.github.malapert.jhips.metadata.GridProjection;
 import io.github.malapert.jhips.algorithm.HIPSGeneration;
-import io.github.malapert.jhips.algorithm.HealpixMapByte;
+import io.github.malapert.jhips.algorithm.AbstractHealpixMapByte;
+import io.github.malapert.jhips.algorithm.HealpixMapRGB;
+import io.github.malapert.jhips.algorithm.HipsTiler;
+import io.github.malapert.jhips.algorithm.MappedHealpixMapByte;
 import io.github.malapert.jhips.algorithm.RGBGeneration;
+import io.github.malapert.jhips.util.Checkpoint;
 import io.github.malapert.jhips.util.FITSUtil;
+import io.github.malapert.jhips.util.JfrEvents;
+import io.github.malapert.jhips.util.Metrics;
 import io.github.malapert.jhips.exception.JHIPSException;
-import io.github.malapert.jhips.util.Utils;
 import healpix.essentials.HealpixBase;
 import healpix.essentials.HealpixUtils;
+import healpix.essentials.RangeSet;
 import healpix.essentials.Scheme;
 import io.github.malapert.jhips.provider.JHipsMetadata;
 import io.github.malapert.jhips.provider.JHipsMetadataProviderInterface;
 import io.github.malapert.jhips.provider.Mars_Sol_1463;
-import java.awt.Color;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -45,7 +53,12 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -90,6 +103,60 @@ public class JHIPS {
      */
     public static int ORDER = ORDER_MAX;
 
+    /**
+     * Order of the NESTED sub-tiles that are rasterized by a single task when
+     * the Healpix vectors are filled in parallel.
+     */
+    public static final int RASTER_CHUNK_ORDER = 4;
+
+    /**
+     * Stage recorded when the mapped Healpix vectors are filled.
+     */
+    private static final String STAGE_FILL = "fill";
+
+    /**
+     * Stage recorded when the FITS files of the Healpix vectors are written.
+     */
+    private static final String STAGE_HEALPIX_VECTOR = "healpix-vector";
+
+    /**
+     * Prefix of the stage recorded when HipsGen has tiled a FITS file.
+     */
+    private static final String STAGE_HIPSGEN = "hipsgen-";
+
+    /**
+     * Stage recorded when the color tiles are written by the tiler.
+     */
+    private static final String STAGE_TILES = "tiles";
+
+    /**
+     * Stage recorded when the R, G, B tiles are merged.
+     */
+    private static final String STAGE_RGB = "rgb";
+
+    /**
+     * Name of the timer of {@link #process()} in the {@link Metrics}.
+     */
+    public static final String STAGE_TIMER_PROCESS = "process";
+
+    /**
+     * Name of the timer of the creation of the Healpix vectors in the
+     * {@link Metrics}.
+     */
+    public static final String STAGE_TIMER_HEALPIX_VECTOR = "createHealpixVector";
+
+    /**
+     * Name of the timer of the tiling of the Healpix vectors in the
+     * {@link Metrics}.
+     */
+    public static final String STAGE_TIMER_HIPS = "generateHips";
+
+    /**
+     * Name of the timer of {@link #createRGBTiles(boolean)} in the
+     * {@link Metrics}.
+     */
+    public static final String STAGE_TIMER_RGB = "createRGBTiles";
+
     /**
      * Output directory to store the result.
      */
@@ -105,6 +172,66 @@ public class JHIPS {
      */
     private static final HIPSGeneration hips = new HIPSGeneration();
 
+    /**
+     * Number of threads used to fill the Healpix vectors.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Fills only the pixels covered by the files.
+     */
+    private boolean footprintDriven = true;
+
+    /**
+     * Tolerance in pixels of the camera of the interpolated projection, 0 to
+     * project each pixel exactly.
+     */
+    private double interpolationTolerance = 0;
+
+    /**
+     * Directory of the memory-mapped Healpix vectors, or null to keep them in
+     * the heap.
+     */
+    private File mappedDirectory;
+
+    /**
+     * The way the tiles are generated.
+     */
+    private TilingMode tilingMode = TilingMode.HIPSGEN;
+
+    /**
+     * Records the finished work in a journal of the output directory.
+     */
+    private boolean resumable = false;
+
+    /**
+     * Journal of the running operation, or null.
+     */
+    private Checkpoint checkpoint;
+
+    /**
+     * The supported ways to generate the tiles.
+     */
+    public enum TilingMode {
+
+        /**
+         * Three Healpix vectors (R, G, B) are written in FITS files, tiled by
+         * HipsGen and merged by {@link #createRGBTiles(boolean)}.
+         */
+        HIPSGEN,
+
+        /**
+         * A single color Healpix vector is cut directly into color tiles.
+         */
+        COLOR,
+
+        /**
+         * Three Healpix vectors (R, G, B) are cut directly into color tiles,
+         * without FITS files, HipsGen or merge.
+         */
+        NATIVE
+    };
+
     /**
      * Main program.
      *
@@ -160,6 +287,152 @@ public class JHIPS {
         this.outputDirectory = outputDirectory;
     }
 
+    /**
+     * Returns the number of threads used to fill the Healpix vectors.
+     *
+     * @return the parallelism level
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads used to fill the Healpix vectors.
+     * <p>
+     * A value of 1 fills the Healpix vectors on the calling thread.
+     *
+     * @param parallelism the parallelism level
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be strictly positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Tests whether only the pixels covered by the spatial index of the files
+     * are filled.
+     *
+     * @return True when only the footprint of the files is filled, False when
+     * the whole sphere is visited
+     */
+    public boolean isFootprintDriven() {
+        return footprintDriven;
+    }
+
+    /**
+     * Sets whether only the pixels covered by the spatial index of the files
+     * are filled.
+     * <p>
+     * The result is the same in both cases since a pixel outside the spatial
+     * index of all files is never filled; visiting the footprint only makes
+     * the time proportional to the sky coverage.
+     *
+     * @param footprintDriven True to fill only the footprint of the files
+     */
+    public void setFootprintDriven(boolean footprintDriven) {
+        this.footprintDriven = footprintDriven;
+    }
+
+    /**
+     * Returns the tolerance of the interpolated projection.
+     *
+     * @return the tolerance in pixels of the camera, 0 when each pixel is
+     * projected exactly
+     */
+    public double getInterpolationTolerance() {
+        return interpolationTolerance;
+    }
+
+    /**
+     * Sets the tolerance of the interpolated projection.
+     * <p>
+     * When the tolerance is strictly positive, the Healpix pixels are
+     * projected on the frames with a {@link GridProjection}: the exact
+     * projection is computed on an adaptive grid and interpolated between
+     * its nodes, with an error lower than the tolerance on smooth
+     * projections. By default, each pixel is projected exactly.
+     *
+     * @param interpolationTolerance the tolerance in pixels of the camera, 0
+     * to project each pixel exactly
+     */
+    public void setInterpolationTolerance(double interpolationTolerance) {
+        if (!(interpolationTolerance >= 0)) {
+            throw new IllegalArgumentException("interpolationTolerance must be positive");
+        }
+        this.interpolationTolerance = interpolationTolerance;
+    }
+
+    /**
+     * Returns the directory where the Healpix vectors are memory-mapped.
+     *
+     * @return the directory or null when the vectors are in the heap
+     */
+    public File getMappedDirectory() {
+        return mappedDirectory;
+    }
+
+    /**
+     * Sets the directory where the Healpix vectors (RGB) are memory-mapped.
+     * <p>
+     * Mapped vectors are paged by the operating system instead of living in
+     * the heap, are not limited by the size of a Java array and are
+     * transferred directly to the FITS files.
+     *
+     * @param mappedDirectory the directory or null to keep the vectors in the
+     * heap
+     */
+    public void setMappedDirectory(final File mappedDirectory) {
+        this.mappedDirectory = mappedDirectory;
+    }
+
+    /**
+     * Returns the way the tiles are generated.
+     *
+     * @return the tiling mode
+     */
+    public TilingMode getTilingMode() {
+        return tilingMode;
+    }
+
+    /**
+     * Sets the way the tiles are generated.
+     *
+     * @param tilingMode the tiling mode
+     */
+    public void setTilingMode(final TilingMode tilingMode) {
+        this.tilingMode = tilingMode;
+    }
+
+    /**
+     * Tests whether the finished work is recorded in order to resume an
+     * interrupted generation.
+     *
+     * @return True when a checkpoint journal is used otherwise False
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * Sets whether the finished work is recorded in order to resume an
+     * interrupted generation.
+     * <p>
+     * The stages of the pipeline and the written tiles are recorded in the
+     * journal {@link Checkpoint#JOURNAL_FILE} of the output directory. When
+     * the generation is run again with the same files, nside and tiling mode,
+     * the finished stages are skipped and the tiles are resumed from the
+     * first missing one. The journal is cleared when the parameters differ.
+     * With heap Healpix vectors, the vectors are filled again before resuming
+     * the tiles; mapped vectors that were filled are reused.
+     *
+     * @param resumable True to use a checkpoint journal
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
     /**
      * Returns the list of files to process in order to merge them in the same
      * sphere
@@ -205,6 +478,8 @@ public class JHIPS {
      * <li>The operations to fill the Healpix Vector.
      * <li>The generation of tiles based on the Healpix vector
      * </ul>
+     * The {@link TilingMode#COLOR} mode stores the Healpix vector in a single
+     * array and is limited to order 13.
      *
      * @throws JHIPSException error while processing
      */
@@ -222,15 +497,195 @@ public class JHIPS {
 
             Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "The Healpix index is being processed ... ");
             HealpixBase hpx = initHealpixMap(nside);
+            if (getTilingMode() == TilingMode.COLOR && hpx.getNpix() > HealpixMapRGB.MAX_NPIX) {
+                throw new JHIPSException("The " + TilingMode.COLOR + " mode supports Healpix vectors up to order 13, order "
+                        + hpx.getOrder() + " is required: use the " + TilingMode.NATIVE + " or " + TilingMode.HIPSGEN + " mode");
+            }
+
+            openCheckpoint(getSignature(nside));
+            Metrics.getInstance().startReporting();
+            Metrics.Timer timer = Metrics.getInstance().startStage(STAGE_TIMER_PROCESS);
+            try {
+                process(hpx);
+            } finally {
+                timer.close();
+                Metrics.getInstance().stopReporting();
+                closeCheckpoint();
+            }
+        } catch (JHIPSException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new JHIPSException(ex);
+        }
+    }
+
+    /**
+     * Process the files in tiles according to the tiling mode, skipping the
+     * stages that are recorded in the checkpoint.
+     *
+     * @param hpx Healpix index
+     * @throws Exception Healpix or I/O error
+     */
+    private void process(final HealpixBase hpx) throws Exception {
+        if (getTilingMode() == TilingMode.COLOR) {
+            if (isStageDone(STAGE_TILES)) {
+                Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Color HIPS already created");
+                return;
+            }
+            Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Creating color Healpix vector ... ");
+            HealpixMapRGB hpxRGB;
+            Metrics.Timer vectorTimer = Metrics.getInstance().startStage(STAGE_TIMER_HEALPIX_VECTOR);
+            try {
+                hpxRGB = createColorHealpixVector(getFiles(), hpx);
+            } finally {
+                vectorTimer.close();
+            }
 
+            Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Creating color HIPS ... ");
+            Metrics.Timer hipsTimer = Metrics.getInstance().startStage(STAGE_TIMER_HIPS);
+            try {
+                generateColorHips(hpxRGB, this.getFiles().getMetadataFiles().get(0));
+            } finally {
+                hipsTimer.close();
+            }
+            stageDone(STAGE_TILES);
+        } else if (getTilingMode() == TilingMode.NATIVE) {
+            if (isStageDone(STAGE_TILES)) {
+                Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Color HIPS already created");
+                return;
+            }
             Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Creating Healpix vector ... ");
-            List<String> filesHMapToProcess = createHealpixVector(getFiles(), hpx);
+            AbstractHealpixMapByte[] hpxBytes;
+            Metrics.Timer vectorTimer = Metrics.getInstance().startStage(STAGE_TIMER_HEALPIX_VECTOR);
+            try {
+                hpxBytes = createHealpixMaps(getFiles(), hpx);
+            } finally {
+                vectorTimer.close();
+            }
+
+            Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Creating color HIPS ... ");
+            Metrics.Timer hipsTimer = Metrics.getInstance().startStage(STAGE_TIMER_HIPS);
+            try {
+                generateNativeHips(hpxBytes, this.getFiles().getMetadataFiles().get(0));
+            } finally {
+                hipsTimer.close();
+            }
+            stageDone(STAGE_TILES);
+        } else {
+            List<String> filesHMapToProcess = getHealpixVectorFiles();
+            if (isStageDone(STAGE_HEALPIX_VECTOR) && exist(filesHMapToProcess)) {
+                Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Healpix vector already created");
+            } else {
+                Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Creating Healpix vector ... ");
+                Metrics.Timer vectorTimer = Metrics.getInstance().startStage(STAGE_TIMER_HEALPIX_VECTOR);
+                try {
+                    filesHMapToProcess = createHealpixVector(getFiles(), hpx);
+                } finally {
+                    vectorTimer.close();
+                }
+                stageDone(STAGE_HEALPIX_VECTOR);
+            }
 
             Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Creating HIPS ... ");
-            generateHips(filesHMapToProcess, this.getFiles().getMetadataFiles().get(0));
-        } catch (Exception ex) {
-            throw new JHIPSException(ex);
+            Metrics.Timer hipsTimer = Metrics.getInstance().startStage(STAGE_TIMER_HIPS);
+            try {
+                generateHips(filesHMapToProcess, this.getFiles().getMetadataFiles().get(0));
+            } finally {
+                hipsTimer.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the parameters that make the result of {@link #process()}.
+     * <p>
+     * A journal written with another signature is not resumed. The signature
+     * covers the settings that change the pixels: the tiling mode, the nside,
+     * the projection tolerance, the footprint-driven filling, and for each
+     * input file its content and its lens distortion.
+     *
+     * @param nside nside of the Healpix vectors
+     * @return the signature of the run
+     */
+    private String getSignature(int nside) {
+        StringBuilder files = new StringBuilder();
+        for (JHipsMetadata file : getFiles().getMetadataFiles()) {
+            File image = file.getFile();
+            files.append(image.getAbsolutePath()).append('|').append(image.length()).append('|').append(image.lastModified());
+            Map<String, double[]> distortion = file.getDistortionCoeff();
+            if (distortion != null && file.getInstrumentID() != null) {
+                files.append('|').append(file.getInstrumentID()).append('|').append(Arrays.toString(distortion.get(file.getInstrumentID())))
+                        .append('|').append(Arrays.toString(file.getPixelSize()));
+            }
+            files.append('\n');
         }
+        return "mode=" + getTilingMode() + " nside=" + nside + " tolerance=" + getInterpolationTolerance() + " footprint=" + isFootprintDriven()
+                + " files=" + getFiles().size() + " hash=" + Integer.toHexString(files.toString().hashCode());
+    }
+
+    /**
+     * Opens the checkpoint journal of the output directory when the
+     * generation is resumable.
+     *
+     * @param signature parameters of the run or null to keep any journal
+     * @throws IOException error when reading the journal
+     */
+    private void openCheckpoint(final String signature) throws IOException {
+        if (isResumable()) {
+            checkpoint = new Checkpoint(getOutputDirectory(), signature);
+        }
+    }
+
+    /**
+     * Closes the checkpoint journal.
+     *
+     * @throws IOException error when closing the journal
+     */
+    private void closeCheckpoint() throws IOException {
+        if (checkpoint != null) {
+            try {
+                checkpoint.close();
+            } finally {
+                checkpoint = null;
+            }
+        }
+    }
+
+    /**
+     * Tests whether a stage is recorded in the checkpoint.
+     *
+     * @param stage name of the stage
+     * @return True when the stage is complete otherwise False
+     */
+    private boolean isStageDone(final String stage) {
+        return checkpoint != null && checkpoint.isStageDone(stage);
+    }
+
+    /**
+     * Records a stage in the checkpoint.
+     *
+     * @param stage name of the stage
+     * @throws IOException error when writing the journal
+     */
+    private void stageDone(final String stage) throws IOException {
+        if (checkpoint != null) {
+            checkpoint.stageDone(stage);
+        }
+    }
+
+    /**
+     * Tests whether files exist.
+     *
+     * @param paths path of the files
+     * @return True when all files exist otherwise False
+     */
+    private static boolean exist(final List<String> paths) {
+        for (String path : paths) {
+            if (!new File(path).exists()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -249,6 +704,70 @@ public class JHIPS {
         }
     }
 
+    /**
+     * Adds files to an existing HIPS and updates only the tiles they cover.
+     * <p>
+     * The footprint of the new files is computed from their spatial index at
+     * the highest order of the tiles. The tiles of this footprint are rendered
+     * again from all files, at the order of the existing HIPS, and their
+     * ancestors are recomputed from their children up to the lowest order.
+     * The time is then proportional to the area of the new files instead of
+     * the area of the sphere.
+     * <p>
+     * Only the {@link TilingMode#COLOR} and {@link TilingMode#NATIVE} modes
+     * are supported since the tiles of HipsGen cannot be updated in place.
+     * When no HIPS exists in the output directory, the whole HIPS is created.
+     *
+     * @param newFiles files to add
+     * @throws JHIPSException error while processing
+     */
+    public void update(final List<JHipsMetadata> newFiles) throws JHIPSException {
+        if (getTilingMode() == TilingMode.HIPSGEN) {
+            throw new JHIPSException("Incremental update is not supported in " + TilingMode.HIPSGEN + " mode");
+        }
+        File colorDirectory = new File(getOutputDirectory(), RGBGeneration.COLOR_DIRECTORY);
+        File propertiesFile = new File(colorDirectory, "properties");
+        addFiles(newFiles);
+        if (!propertiesFile.exists()) {
+            Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "No HIPS in {0}, creating it ... ", colorDirectory);
+            process();
+            return;
+        }
+        try {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(propertiesFile)) {
+                properties.load(in);
+            }
+            int tileOrder = Integer.parseInt(properties.getProperty("hips_order"));
+            int width = Integer.parseInt(properties.getProperty("hips_tile_width"));
+            final HealpixBase hpx = initHealpixMap(1L << (tileOrder + HealpixUtils.ilog2(width)));
+            final MetadataFileCollection collection = getFiles();
+            collection.getCoverageIndex(hpx.getOrder());
+            RangeSet coverage = new MetadataFileCollection(newFiles).getFootprint(tileOrder);
+            Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Updating {0} tiles of order {1} ... ", new Object[]{coverage.nval(), tileOrder});
+
+            HipsTiler tiler = new HipsTiler(colorDirectory);
+            tiler.setParallelism(getParallelism());
+            tiler.update(new HipsTiler.PixelSource() {
+                @Override
+                public void getPixels(long first, int[] colors) {
+                    final double[] ptg = new double[3];
+                    final GridProjection grid = createGridProjection(hpx, collection);
+                    final long[] lookups = new long[2 * collection.getMetadataFiles().size() + 1];
+                    for (int i = 0; i < colors.length; i++) {
+                        colors[i] = (grid == null) ? collection.getPackedRGB(hpx, first + i, ptg, lookups) : collection.getPackedRGB(grid, first + i, lookups);
+                    }
+                    long failures = (grid == null) ? lookups[lookups.length - 1] : grid.getProjectionFailures();
+                    if (failures > 0) {
+                        Metrics.getInstance().addProjectionFailures(failures);
+                    }
+                }
+            }, hpx.getOrder(), coverage, getTilingMode() == TilingMode.COLOR, collection.getMetadataFiles().get(0));
+        } catch (Exception ex) {
+            throw new JHIPSException(ex);
+        }
+    }
+
     /**
      * Initializes the Healpix index.
      *
@@ -269,20 +788,138 @@ public class JHIPS {
      * @throws Exception Healpix error
      */
     protected List<String> createHealpixVector(final MetadataFileCollection files, final HealpixBase hpx) throws Exception {
+        List<String> filesHMapToProcess = getHealpixVectorFiles();
+        AbstractHealpixMapByte[] hpxBytes = createHealpixMaps(files, hpx);
+        try {
+            for (int i = 0; i < hpxBytes.length; i++) {
+                JfrEvents.Event event = JfrEvents.FITS_WRITE.begin();
+                FITSUtil.writeByteMap(hpxBytes[i], filesHMapToProcess.get(i));
+                long bytes = new File(filesHMapToProcess.get(i)).length();
+                Metrics.getInstance().addBytes(bytes);
+                event.set("file", filesHMapToProcess.get(i)).set("pixels", hpxBytes[i].getNpix()).set("bytes", bytes).commit();
+            }
+        } finally {
+            closeHealpixMaps(hpxBytes);
+        }
+        return filesHMapToProcess;
+    }
+
+    /**
+     * Returns the path of the FITS files of the Healpix vectors (RGB).
+     *
+     * @return the path of the r, g and b files
+     */
+    private List<String> getHealpixVectorFiles() {
         List<String> filesHMapToProcess = new ArrayList();
-        HealpixMapByte hpxByteR = new HealpixMapByte(hpx.getNside(), Scheme.NESTED);
-        HealpixMapByte hpxByteG = new HealpixMapByte(hpx.getNside(), Scheme.NESTED);
-        HealpixMapByte hpxByteB = new HealpixMapByte(hpx.getNside(), Scheme.NESTED);
-        fillHealpixVector(hpx, files, hpxByteR, hpxByteG, hpxByteB);
         filesHMapToProcess.add(getOutputDirectory().getAbsolutePath() + "/r.fits");
         filesHMapToProcess.add(getOutputDirectory().getAbsolutePath() + "/g.fits");
         filesHMapToProcess.add(getOutputDirectory().getAbsolutePath() + "/b.fits");
-        FITSUtil.writeByteMap(hpxByteR, filesHMapToProcess.get(0));
-        FITSUtil.writeByteMap(hpxByteG, filesHMapToProcess.get(1));
-        FITSUtil.writeByteMap(hpxByteB, filesHMapToProcess.get(2));
         return filesHMapToProcess;
     }
 
+    /**
+     * Creates and fills the three Healpix vectors (RGB) for all files in
+     * memory.
+     * <p>
+     * Mapped vectors that are recorded as filled in the checkpoint are
+     * reused without being filled again.
+     *
+     * @param files List of files to project on the sphere
+     * @param hpx Healpix index
+     * @return the R, G and B Healpix vectors
+     * @throws Exception Healpix error
+     */
+    protected AbstractHealpixMapByte[] createHealpixMaps(final MetadataFileCollection files, final HealpixBase hpx) throws Exception {
+        boolean filled = getMappedDirectory() != null && isStageDone(STAGE_FILL)
+                && getMappedFile("r").exists() && getMappedFile("g").exists() && getMappedFile("b").exists();
+        AbstractHealpixMapByte[] hpxBytes = new AbstractHealpixMapByte[]{
+            createHealpixMap("r", hpx, !filled), createHealpixMap("g", hpx, !filled), createHealpixMap("b", hpx, !filled)};
+        try {
+            if (filled) {
+                Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Reusing the filled Healpix vectors of {0}", getMappedDirectory());
+            } else {
+                fillHealpixVector(hpx, files, hpxBytes[0], hpxBytes[1], hpxBytes[2]);
+                if (getMappedDirectory() != null && checkpoint != null) {
+                    for (AbstractHealpixMapByte hpxByte : hpxBytes) {
+                        ((MappedHealpixMapByte) hpxByte).flush();
+                    }
+                    stageDone(STAGE_FILL);
+                }
+            }
+        } catch (Exception ex) {
+            closeHealpixMaps(hpxBytes);
+            throw ex;
+        }
+        return hpxBytes;
+    }
+
+    /**
+     * Creates an empty Healpix vector for a channel.
+     * <p>
+     * When a mapped directory is set, the vector is stored in the file
+     * channel.hpx of this directory, which is cleared unless it is reused.
+     *
+     * @param channel name of the channel
+     * @param hpx Healpix index
+     * @param clear True to clear an existing mapped file
+     * @return the empty Healpix vector
+     * @throws Exception Healpix or I/O error
+     */
+    private AbstractHealpixMapByte createHealpixMap(final String channel, final HealpixBase hpx, boolean clear) throws Exception {
+        if (getMappedDirectory() == null) {
+            return AbstractHealpixMapByte.newInstance(hpx.getNside(), Scheme.NESTED);
+        }
+        getMappedDirectory().mkdirs();
+        File file = getMappedFile(channel);
+        if (clear) {
+            Files.deleteIfExists(file.toPath());
+        }
+        return new MappedHealpixMapByte(file, hpx.getNside(), Scheme.NESTED);
+    }
+
+    /**
+     * Returns the file of the mapped Healpix vector of a channel.
+     *
+     * @param channel name of the channel
+     * @return the file in the mapped directory
+     */
+    private File getMappedFile(final String channel) {
+        return new File(getMappedDirectory(), channel + ".hpx");
+    }
+
+    /**
+     * Releases the files of the mapped Healpix vectors.
+     *
+     * @param hpxBytes Healpix vectors
+     * @throws IOException error when closing a file
+     */
+    private static void closeHealpixMaps(final AbstractHealpixMapByte[] hpxBytes) throws IOException {
+        for (AbstractHealpixMapByte hpxByte : hpxBytes) {
+            if (hpxByte instanceof MappedHealpixMapByte) {
+                ((MappedHealpixMapByte) hpxByte).close();
+            }
+        }
+    }
+
+    /**
+     * Creates and fills a single color Healpix vector for all files.
+     *
+     * @param files List of files to project on the sphere
+     * @param hpx Healpix index
+     * @return the color Healpix vector
+     * @throws Exception Healpix error
+     */
+    protected HealpixMapRGB createColorHealpixVector(final MetadataFileCollection files, final HealpixBase hpx) throws Exception {
+        final HealpixMapRGB hpxRGB = new HealpixMapRGB(hpx.getNside(), Scheme.NESTED);
+        fillHealpixVector(hpx, files, new ColorSink() {
+            @Override
+            public void setPixel(long pixel, int rgb) {
+                hpxRGB.setPixel(pixel, rgb);
+            }
+        });
+        return hpxRGB;
+    }
+
     /**
      * Fills the Healpix vectors for earch RGB channel. The Healpix vectors are
      * filled by iterating on each pixel on the sphere.
@@ -297,28 +934,296 @@ public class JHIPS {
      * @param hpxByteB Healpix vector in B color
      * @throws Exception Healpix error
      */
-    private void fillHealpixVector(final HealpixBase hpx, final MetadataFileCollection collection, final HealpixMapByte hpxByteR, final HealpixMapByte hpxByteG, final HealpixMapByte hpxByteB) throws Exception {
-        long nPix = hpx.getNpix();
-        for (long pixel = 0; pixel < nPix; pixel++) {
-            Utils.monitoring(pixel, nPix);
-            Color c = collection.getRGB(hpx, pixel);
-            if (c != null) {
-                hpxByteR.setPixel(pixel, (byte) c.getRed());
-                hpxByteG.setPixel(pixel, (byte) c.getGreen());
-                hpxByteB.setPixel(pixel, (byte) c.getBlue());
+    private void fillHealpixVector(final HealpixBase hpx, final MetadataFileCollection collection, final AbstractHealpixMapByte hpxByteR, final AbstractHealpixMapByte hpxByteG, final AbstractHealpixMapByte hpxByteB) throws Exception {
+        fillHealpixVector(hpx, collection, new ColorSink() {
+            @Override
+            public void setPixel(long pixel, int rgb) {
+                hpxByteR.setPixel(pixel, (byte) (rgb >> 16));
+                hpxByteG.setPixel(pixel, (byte) (rgb >> 8));
+                hpxByteB.setPixel(pixel, (byte) rgb);
+            }
+        });
+    }
+
+    /**
+     * Fills Healpix vectors by iterating on each pixel on the sphere, or only
+     * on the pixels of the footprint of the files when
+     * {@link #isFootprintDriven()} is True.
+     * <p>
+     * The pixels to fill are split into NESTED segments that never cross a
+     * sub-tile of order {@link #RASTER_CHUNK_ORDER}. When the parallelism level
+     * is greater than 1, the segments are filled concurrently. Each pixel is
+     * computed independently so that the result is the same as the one of the
+     * serial path.
+     *
+     * @param hpx Healpix index
+     * @param collection List of files to process
+     * @param sink receives the color of each pixel that is found in the files
+     * @throws Exception Healpix error
+     */
+    private void fillHealpixVector(final HealpixBase hpx, final MetadataFileCollection collection, final ColorSink sink) throws Exception {
+        Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Building coverage index ... ");
+        collection.getCoverageIndex(hpx.getOrder());
+        RangeSet pixels;
+        if (isFootprintDriven()) {
+            pixels = collection.getFootprint(hpx.getOrder());
+        } else {
+            pixels = new RangeSet(1);
+            pixels.append(0, hpx.getNpix());
+        }
+        long nPix = pixels.nval();
+        Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "Filling {0} pixels out of {1} ... ", new Object[]{nPix, hpx.getNpix()});
+        long chunkSize = 1L << (2 * (hpx.getOrder() - Math.min(hpx.getOrder(), RASTER_CHUNK_ORDER)));
+        long[] segments = createSegments(pixels, chunkSize);
+        Metrics.Progress progress = Metrics.getInstance().startProgress("Filling Healpix vector", nPix, "pixels");
+        long filled = 0;
+        if (getParallelism() > 1 && segments.length > 2) {
+            ForkJoinPool pool = new ForkJoinPool(getParallelism());
+            try {
+                filled = pool.invoke(new FillTask(this, hpx, collection, sink, segments, 0, segments.length / 2, progress));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (int i = 0; i < segments.length; i += 2) {
+                filled += fillRange(createGridProjection(hpx, collection), hpx, collection, segments[i], segments[i + 1], sink, progress);
+            }
+        }
+        Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "{0} pixels filled", filled);
+    }
+
+    /**
+     * Creates the interpolated projection used by a thread.
+     *
+     * @param hpx Healpix index
+     * @param collection List of files to process
+     * @return the projection or null when the pixels are projected exactly
+     */
+    private GridProjection createGridProjection(final HealpixBase hpx, final MetadataFileCollection collection) {
+        return (getInterpolationTolerance() > 0) ? new GridProjection(hpx, collection.size(), getInterpolationTolerance()) : null;
+    }
+
+    /**
+     * Splits NESTED ranges of pixels so that no segment crosses a chunk.
+     *
+     * @param pixels pixels to split
+     * @param chunkSize number of pixels of a chunk
+     * @return the begin and one-after-last pixel of each segment
+     */
+    private static long[] createSegments(final RangeSet pixels, long chunkSize) {
+        int nbSegments = 0;
+        for (int iv = 0; iv < pixels.nranges(); iv++) {
+            long first = pixels.ivbegin(iv) / chunkSize;
+            long last = (pixels.ivend(iv) - 1) / chunkSize;
+            nbSegments += (int) (last - first + 1);
+        }
+        long[] segments = new long[2 * nbSegments];
+        int i = 0;
+        for (int iv = 0; iv < pixels.nranges(); iv++) {
+            long begin = pixels.ivbegin(iv);
+            long end = pixels.ivend(iv);
+            while (begin < end) {
+                long next = Math.min(end, (begin / chunkSize + 1) * chunkSize);
+                segments[i++] = begin;
+                segments[i++] = next;
+                begin = next;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Fills a NESTED range of pixels of Healpix vectors.
+     * <p>
+     * Colors are handled as packed ARGB values, so that no object is created
+     * per pixel. The metrics are counted locally and published once per range.
+     *
+     * @param grid interpolated projection or null to project each pixel
+     * exactly
+     * @param hpx Healpix index
+     * @param collection List of files to process
+     * @param begin first pixel to fill
+     * @param end one-after-last pixel to fill
+     * @param sink receives the color of each pixel that is found in the files
+     * @param progress progress of the filling
+     * @return the number of pixels that received a color
+     */
+    private static long fillRange(final GridProjection grid, final HealpixBase hpx, final MetadataFileCollection collection, long begin, long end, final ColorSink sink, final Metrics.Progress progress) {
+        JfrEvents.Event event = JfrEvents.RASTER_CHUNK.begin();
+        final double[] ptg = new double[3];
+        final int nbFiles = collection.getMetadataFiles().size();
+        final long[] lookups = new long[2 * nbFiles + 1];
+        long rendered = 0;
+        for (long pixel = begin; pixel < end; pixel++) {
+            int rgb = (grid == null) ? collection.getPackedRGB(hpx, pixel, ptg, lookups) : collection.getPackedRGB(grid, pixel, lookups);
+            if (rgb != JHipsMetadata.EMPTY_RGB) {
+                sink.setPixel(pixel, rgb);
+                rendered++;
+            }
+        }
+        Metrics metrics = Metrics.getInstance();
+        metrics.addPixels(rendered, end - begin - rendered);
+        long failures = (grid == null) ? lookups[2 * nbFiles] : grid.getProjectionFailures();
+        if (failures > 0) {
+            metrics.addProjectionFailures(failures);
+        }
+        long hits = 0;
+        long misses = 0;
+        int frames = 0;
+        int mainFrame = -1;
+        for (int i = 0; i < 2 * nbFiles; i += 2) {
+            if (lookups[i] != 0 || lookups[i + 1] != 0) {
+                metrics.addFrameLookups(collection.getMetadataFiles().get(i / 2).getFile().getName(), lookups[i], lookups[i + 1]);
+                hits += lookups[i];
+                misses += lookups[i + 1];
+                frames++;
+                if (mainFrame < 0 || lookups[i] > lookups[2 * mainFrame]) {
+                    mainFrame = i / 2;
+                }
+            }
+        }
+        progress.add(end - begin);
+        if (event.isEnabled()) {
+            event.set("firstPixel", begin).set("pixels", end - begin).set("rendered", rendered)
+                    .set("hits", hits).set("misses", misses).set("frames", frames)
+                    .set("frame", (mainFrame < 0) ? null : collection.getMetadataFiles().get(mainFrame).getFile().toString())
+                    .commit();
+        }
+        return rendered;
+    }
+
+    /**
+     * Receives the packed ARGB color of the pixels that are found in the
+     * files.
+     * <p>
+     * Implementations are called concurrently for distinct pixels.
+     */
+    private interface ColorSink {
+
+        /**
+         * Stores the color of a pixel.
+         *
+         * @param pixel NESTED pixel
+         * @param rgb packed ARGB color
+         */
+        void setPixel(long pixel, int rgb);
+    }
+
+    /**
+     * Fills NESTED segments of the Healpix vectors.
+     * <p>
+     * The list of segments is split recursively in two halves until a single
+     * segment remains. The result is the number of pixels that received a
+     * color.
+     */
+    private static final class FillTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = -4313206453874512961L;
+
+        private final JHIPS jhips;
+        private final HealpixBase hpx;
+        private final MetadataFileCollection collection;
+        private final ColorSink sink;
+        private final long[] segments;
+        private final int from;
+        private final int to;
+        private final Metrics.Progress progress;
+
+        /**
+         * Creates a task filling the segments [from, to[.
+         *
+         * @param jhips the process, which configures the projection
+         * @param hpx Healpix index
+         * @param collection List of files to process
+         * @param sink receives the color of each pixel
+         * @param segments the begin and one-after-last pixel of each segment
+         * @param from first segment
+         * @param to one-after-last segment
+         * @param progress progress of the filling
+         */
+        FillTask(final JHIPS jhips, final HealpixBase hpx, final MetadataFileCollection collection, final ColorSink sink, final long[] segments, int from, int to, final Metrics.Progress progress) {
+            this.jhips = jhips;
+            this.hpx = hpx;
+            this.collection = collection;
+            this.sink = sink;
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+            this.progress = progress;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from == 1) {
+                long begin = segments[2 * from];
+                long end = segments[2 * from + 1];
+                return fillRange(jhips.createGridProjection(hpx, collection), hpx, collection, begin, end, sink, progress);
             }
+            int middle = (from + to) >>> 1;
+            FillTask first = new FillTask(jhips, hpx, collection, sink, segments, from, middle, progress);
+            FillTask second = new FillTask(jhips, hpx, collection, sink, segments, middle, to, progress);
+            invokeAll(first, second);
+            return first.join() + second.join();
         }
-        Utils.monitoring(nPix, nPix);
     }
 
     /**
      * Generates tiles for each Healpix vector.
+     * <p>
+     * The Healpix vectors that are recorded as tiled in the checkpoint are
+     * skipped.
      *
      * @param filesHMapToProcess path to the Healpix vectors
+     * @throws IOException error when writing the checkpoint
      */
-    protected void generateHips(final List<String> filesHMapToProcess, JHipsMetadataProviderInterface metadata) {
+    protected void generateHips(final List<String> filesHMapToProcess, JHipsMetadataProviderInterface metadata) throws IOException {
         for (String iterFile : filesHMapToProcess) {
+            String stage = STAGE_HIPSGEN + new File(iterFile).getName();
+            if (isStageDone(stage)) {
+                Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "HIPS of {0} already created", iterFile);
+                continue;
+            }
+            JfrEvents.Event event = JfrEvents.HIPSGEN.begin();
             hips.process(iterFile, metadata);
+            event.set("file", iterFile).commit();
+            stageDone(stage);
+        }
+    }
+
+    /**
+     * Generates color tiles from the color Healpix vector.
+     * <p>
+     * The tiles are written in outputDirectory/{@link RGBGeneration#COLOR_DIRECTORY}.
+     *
+     * @param hpxRGB color Healpix vector
+     * @param metadata metadata of the survey
+     * @throws Exception Healpix or I/O error
+     */
+    protected void generateColorHips(final HealpixMapRGB hpxRGB, JHipsMetadataProviderInterface metadata) throws Exception {
+        HipsTiler tiler = new HipsTiler(new File(getOutputDirectory(), RGBGeneration.COLOR_DIRECTORY));
+        tiler.setParallelism(getParallelism());
+        tiler.setCheckpoint(checkpoint);
+        tiler.process(hpxRGB, metadata);
+    }
+
+    /**
+     * Generates color tiles from the three Healpix vectors (RGB), without
+     * going through FITS files and HipsGen.
+     * <p>
+     * The tiles are written in outputDirectory/{@link RGBGeneration#COLOR_DIRECTORY}.
+     *
+     * @param hpxBytes R, G and B Healpix vectors
+     * @param metadata metadata of the survey
+     * @throws Exception Healpix or I/O error
+     */
+    protected void generateNativeHips(final AbstractHealpixMapByte[] hpxBytes, JHipsMetadataProviderInterface metadata) throws Exception {
+        HipsTiler tiler = new HipsTiler(new File(getOutputDirectory(), RGBGeneration.COLOR_DIRECTORY));
+        tiler.setParallelism(getParallelism());
+        tiler.setCheckpoint(checkpoint);
+        try {
+            tiler.process(hpxBytes[0], hpxBytes[1], hpxBytes[2], metadata);
+        } finally {
+            closeHealpixMaps(hpxBytes);
         }
     }
 
@@ -339,11 +1244,32 @@ public class JHIPS {
 
     /**
      * Creates RGB tiles and removes intermediate tiles.
+     * <p>
+     * Nothing is done in {@link TilingMode#COLOR} and
+     * {@link TilingMode#NATIVE} modes because the color tiles are already
+     * created by {@link #process()}.
      * @param removeIntermediateFiles intermediate files
      */
     public void createRGBTiles(boolean removeIntermediateFiles) {
+        if (getTilingMode() != TilingMode.HIPSGEN) {
+            return;
+        }
         try {
-            RGBGeneration.create(getOutputDirectory(), this.getFiles().getMetadataFiles().get(0));
+            openCheckpoint(null);
+            Metrics.getInstance().startReporting();
+            Metrics.Timer timer = Metrics.getInstance().startStage(STAGE_TIMER_RGB);
+            try {
+                if (isStageDone(STAGE_RGB)) {
+                    Logger.getLogger(JHIPS.class.getName()).log(Level.INFO, "RGB tiles already created");
+                } else {
+                    RGBGeneration.create(getOutputDirectory(), this.getFiles().getMetadataFiles().get(0), getParallelism(), checkpoint);
+                    stageDone(STAGE_RGB);
+                }
+            } finally {
+                timer.close();
+                Metrics.getInstance().stopReporting();
+                closeCheckpoint();
+            }
             if (removeIntermediateFiles) {
                 removeDirectory(getOutputDirectory().toString() + File.separator + RGBGeneration.R_DIRECTORY);
                 removeDirectory(getOutputDirectory().toString() + File.separator + RGBGeneration.G_DIRECTORY);
@@ -0,0 +1,477 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.algorithm;
+
+import io.github.malapert.jhips.JHIPS;
+import healpix.essentials.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Base class of the HEALPix maps containing byte values.
+ * <p>
+ * Pixels are addressed with long indexes, so that the storage decides how
+ * large a map can be. The value 0 marks the pixels without data.
+ */
+public abstract class AbstractHealpixMapByte extends HealpixBase {
+
+    /**
+     * Number of pixels read or written at once by the NESTED imports.
+     */
+    private static final int IMPORT_CHUNK = 1 << 16;
+
+    /**
+     * Number of faces of the Healpix sphere.
+     */
+    private static final int NB_FACES = 12;
+
+    /**
+     * Creates a Healpix map.
+     * @param nside_in Healpix nside
+     * @param scheme_in Healpix scheme
+     * @throws Exception
+     */
+    protected AbstractHealpixMapByte(long nside_in, Scheme scheme_in) throws Exception {
+        super(nside_in, scheme_in);
+        HealpixUtils.check(nside <= (1L << JHIPS.ORDER), "resolution too high");
+    }
+
+    /**
+     * Creates a map able to store all pixels of a given resolution.
+     * <p>
+     * A {@link HealpixMapByte} is returned when all pixels fit in an array,
+     * otherwise a {@link SparseHealpixMapByte}.
+     *
+     * @param nside_in Healpix nside
+     * @param scheme_in Healpix scheme
+     * @return the map
+     * @throws Exception
+     */
+    public static AbstractHealpixMapByte newInstance(long nside_in, Scheme scheme_in) throws Exception {
+        return (12 * nside_in * nside_in <= HealpixMapByte.MAX_NPIX)
+                ? new HealpixMapByte(nside_in, scheme_in)
+                : new SparseHealpixMapByte(nside_in, scheme_in);
+    }
+
+    /**
+     * Returns the value of the pixel with a given index.
+     *
+     * @param ipix index of the requested pixel
+     * @return pixel value
+     */
+    public abstract byte get(long ipix);
+
+    /**
+     * Sets the value of a specific pixel.
+     * <p>
+     * Distinct pixels can be set concurrently.
+     *
+     * @param ipix index of the pixel
+     * @param val new value for the pixel
+     */
+    public abstract void set(long ipix, byte val);
+
+    /**
+     * Sets all map pixel to a specific value.
+     *
+     * @param val pixel value to use
+     */
+    public abstract void fill(byte val);
+
+    /**
+     * Returns the value of the pixel with a given index.
+     *
+     * @param ipix index of the requested pixel
+     * @return pixel value
+     */
+    public float getPixel(long ipix) {
+        return get(ipix);
+    }
+
+    /**
+     * Sets the value of a specific pixel.
+     *
+     * @param ipix index of the pixel
+     * @param val new value for the pixel
+     */
+    public void setPixel(long ipix, byte val) {
+        set(ipix, val);
+    }
+
+    /**
+     * Copies consecutive pixels into an array.
+     *
+     * @param first index of the first pixel
+     * @param dest destination array
+     * @param offset first element of the destination array
+     * @param length number of pixels
+     */
+    public void getPixels(long first, byte[] dest, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = get(first + i);
+        }
+    }
+
+    /**
+     * Copies an array into consecutive pixels.
+     *
+     * @param first index of the first pixel
+     * @param src source array
+     * @param offset first element of the source array
+     * @param length number of pixels
+     */
+    public void setPixels(long first, byte[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            set(first + i, src[offset + i]);
+        }
+    }
+
+    /**
+     * Tests whether a range of pixels contains no data.
+     *
+     * @param begin first pixel
+     * @param end one-after-last pixel
+     * @return True when all pixels are 0 otherwise False
+     */
+    public boolean isEmpty(long begin, long end) {
+        for (long ipix = begin; ipix < end; ipix++) {
+            if (get(ipix) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the map from NESTED to RING scheme or vice versa. This operation
+     * is done in-place, i.e. it does not require additional memory.
+     * @throws java.lang.Exception
+     */
+    public void swapScheme() throws Exception {
+        HealpixUtils.check((order >= 0) && (order <= 13),
+                "swapping not supported for this Nside");
+        for (int m = 0; m < swap_cycle[order].length; ++m) {
+            int istart = swap_cycle[order][m];
+
+            byte pixbuf = get(istart);
+            long iold = istart,
+                    inew = (scheme == Scheme.RING) ? nest2ring(istart) : ring2nest(istart);
+            while (inew != istart) {
+                set(iold, get(inew));
+                iold = inew;
+                inew = (scheme == Scheme.RING) ? nest2ring(inew) : ring2nest(inew);
+            }
+            set(iold, pixbuf);
+        }
+        scheme = (scheme == Scheme.RING) ? Scheme.NESTED : Scheme.RING;
+    }
+
+    /**
+     * Imports the map "orig" to this object, adjusting pixel ordering.
+     *
+     * @param orig map to import
+     * @throws java.lang.Exception
+     */
+    public void importNograde(AbstractHealpixMapByte orig) throws Exception {
+        HealpixUtils.check(nside == orig.nside,
+                "importNograde: maps have different nside");
+        if (orig.scheme == scheme) {
+            for (long m = 0; m < npix; ++m) {
+                set(m, orig.get(m));
+            }
+        } else {
+            for (long m = 0; m < npix; ++m) {
+                set(scheme == Scheme.NESTED ? ring2nest(m) : nest2ring(m), orig.get(m));
+            }
+        }
+    }
+
+    /**
+     * Imports the map "orig" to this object, adjusting pixel ordering and
+     * increasing resolution.
+     * <p>
+     * When both maps are NESTED, the children of a pixel are a contiguous
+     * block of pixels, so that the faces are expanded block by block in
+     * parallel.
+     *
+     * @param orig map to import
+     * @throws java.lang.Exception
+     */
+    public void importUpgrade(final AbstractHealpixMapByte orig) throws Exception {
+        HealpixUtils.check(nside > orig.nside, "importUpgrade: this is no upgrade");
+        int fact = (int) (nside / orig.nside);
+        HealpixUtils.check(nside == orig.nside * fact,
+                "the larger Nside must be a multiple of the smaller one");
+
+        if (scheme == Scheme.NESTED && orig.scheme == Scheme.NESTED) {
+            final long nbChildren = (long) fact * fact;
+            forEachFace(npix, new FaceTask() {
+                @Override
+                public void run(int face) {
+                    upgradeFace(orig, face, nbChildren);
+                }
+            });
+            return;
+        }
+        for (long m = 0; m < orig.npix; ++m) {
+            Xyf xyf = orig.pix2xyf(m);
+            int x = xyf.ix, y = xyf.iy, f = xyf.face;
+            byte val = orig.get(m);
+            for (int j = fact * y; j < fact * (y + 1); ++j) {
+                for (int i = fact * x; i < fact * (x + 1); ++i) {
+                    set(xyf2pix(i, j, f), val);
+                }
+            }
+        }
+    }
+
+    /**
+     * Expands the pixels of a face of a NESTED map into this NESTED map.
+     *
+     * @param orig map to import
+     * @param face face to expand
+     * @param nbChildren number of pixels of this map in a pixel of orig
+     */
+    private void upgradeFace(final AbstractHealpixMapByte orig, int face, long nbChildren) {
+        long parentsOfFace = orig.npix / NB_FACES;
+        int length = (int) Math.min(parentsOfFace * nbChildren, IMPORT_CHUNK);
+        int nbParents = (int) Math.max(1, length / nbChildren);
+        byte[] parents = new byte[nbParents];
+        byte[] children = new byte[length];
+        long end = (face + 1) * parentsOfFace;
+        for (long first = face * parentsOfFace; first < end; first += nbParents) {
+            orig.getPixels(first, parents, 0, nbParents);
+            if (nbChildren >= length) {
+                // a parent covers several chunks
+                Arrays.fill(children, parents[0]);
+                for (long child = 0; child < nbChildren; child += length) {
+                    setPixels(first * nbChildren + child, children, 0, length);
+                }
+            } else {
+                for (int i = 0; i < nbParents; i++) {
+                    Arrays.fill(children, (int) (i * nbChildren), (int) ((i + 1) * nbChildren), parents[i]);
+                }
+                setPixels(first * nbChildren, children, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Imports the map "orig" to this object, adjusting pixel ordering and
+     * reducing resolution.
+     * <p>
+     * The pixels of value 0 are undefined.
+     *
+     * @param orig map to import
+     * @param pessimistic if true, set a pixel to undefined if at least one the
+     * original subpixels was undefined; otherwise only set it to undefined if
+     * all original subpixels were undefined.
+     * @throws java.lang.Exception
+     */
+    public void importDegrade(AbstractHealpixMapByte orig, boolean pessimistic)
+            throws Exception {
+        importDegrade(orig, pessimistic, (byte) 0);
+    }
+
+    /**
+     * Imports the map "orig" to this object, adjusting pixel ordering and
+     * reducing resolution.
+     * <p>
+     * The values are unsigned: a pixel is the mean of its defined subpixels
+     * read in [0, 255]. When both maps are NESTED, the subpixels of a pixel
+     * are a contiguous block of pixels, so that the faces are reduced block
+     * by block in parallel.
+     *
+     * @param orig map to import
+     * @param pessimistic if true, set a pixel to undefined if at least one the
+     * original subpixels was undefined; otherwise only set it to undefined if
+     * all original subpixels were undefined.
+     * @param empty value of the undefined pixels
+     * @throws java.lang.Exception
+     */
+    public void importDegrade(final AbstractHealpixMapByte orig, boolean pessimistic, final byte empty)
+            throws Exception {
+        HealpixUtils.check(nside < orig.nside, "importDegrade: this is no degrade");
+        int fact = (int) (orig.nside / nside);
+        HealpixUtils.check(orig.nside == nside * fact,
+                "the larger Nside must be a multiple of the smaller one");
+
+        final long nbChildren = (long) fact * fact;
+        final long minhits = pessimistic ? nbChildren : 1;
+        if (scheme == Scheme.NESTED && orig.scheme == Scheme.NESTED) {
+            forEachFace(orig.npix, new FaceTask() {
+                @Override
+                public void run(int face) {
+                    degradeFace(orig, face, nbChildren, minhits, empty);
+                }
+            });
+            return;
+        }
+        for (long m = 0; m < npix; ++m) {
+            Xyf xyf = pix2xyf(m);
+            int x = xyf.ix, y = xyf.iy, f = xyf.face;
+            long hits = 0;
+            long sum = 0;
+            for (int j = fact * y; j < fact * (y + 1); ++j) {
+                for (int i = fact * x; i < fact * (x + 1); ++i) {
+                    byte val = orig.get(orig.xyf2pix(i, j, f));
+                    if (val != empty) {
+                        ++hits;
+                        sum += val & 0xff;
+                    }
+                }
+            }
+            set(m, (hits < minhits) ? empty : (byte) (sum / hits));
+        }
+    }
+
+    /**
+     * Reduces the pixels of a face of a NESTED map into this NESTED map.
+     *
+     * @param orig map to import
+     * @param face face to reduce
+     * @param nbChildren number of pixels of orig in a pixel of this map
+     * @param minhits lowest number of defined subpixels of a defined pixel
+     * @param empty value of the undefined pixels
+     */
+    private void degradeFace(final AbstractHealpixMapByte orig, int face, long nbChildren, long minhits, byte empty) {
+        long childrenOfFace = orig.npix / NB_FACES;
+        int length = (int) Math.min(childrenOfFace, IMPORT_CHUNK);
+        byte[] children = new byte[length];
+        long end = (face + 1) * childrenOfFace;
+        long parent = face * (npix / NB_FACES);
+        if (nbChildren > length) {
+            // a parent covers several chunks
+            byte[] result = new byte[1];
+            for (long first = face * childrenOfFace; first < end; first += nbChildren) {
+                long hits = 0;
+                long sum = 0;
+                for (long child = first; child < first + nbChildren; child += length) {
+                    orig.getPixels(child, children, 0, length);
+                    for (int i = 0; i < length; i++) {
+                        int mask = (children[i] == empty) ? 0 : -1;
+                        hits -= mask;
+                        sum += children[i] & 0xff & mask;
+                    }
+                }
+                result[0] = (hits < minhits) ? empty : (byte) (sum / hits);
+                setPixels(parent++, result, 0, 1);
+            }
+            return;
+        }
+        int nb = (int) nbChildren;
+        byte[] parents = new byte[length / nb];
+        for (long first = face * childrenOfFace; first < end; first += length) {
+            orig.getPixels(first, children, 0, length);
+            for (int m = 0, i = 0; m < parents.length; m++) {
+                int hits = 0;
+                int sum = 0;
+                for (int last = i + nb; i < last; i++) {
+                    // branch-free, since the defined pixels are often mixed
+                    int mask = (children[i] == empty) ? 0 : -1;
+                    hits -= mask;
+                    sum += children[i] & 0xff & mask;
+                }
+                parents[m] = (hits < minhits) ? empty : (byte) (sum / hits);
+            }
+            setPixels(parent, parents, 0, parents.length);
+            parent += parents.length;
+        }
+    }
+
+    /**
+     * Work done on a face of the map.
+     */
+    private interface FaceTask {
+
+        /**
+         * Processes a face.
+         *
+         * @param face the face, in [0, 11]
+         */
+        void run(int face);
+    }
+
+    /**
+     * Runs a task on each face, in parallel when the map is large enough.
+     *
+     * @param size number of pixels read by the tasks
+     * @param task the work done on a face
+     * @throws Exception error in a task
+     */
+    private static void forEachFace(long size, final FaceTask task) throws Exception {
+        int parallelism = (int) Math.min(NB_FACES, Math.min(Runtime.getRuntime().availableProcessors(), size / IMPORT_CHUNK));
+        if (parallelism <= 1) {
+            for (int face = 0; face < NB_FACES; face++) {
+                task.run(face);
+            }
+            return;
+        }
+        List<Callable<Void>> faces = new ArrayList<>(NB_FACES);
+        for (int face = 0; face < NB_FACES; face++) {
+            final int current = face;
+            faces.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    task.run(current);
+                    return null;
+                }
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (Future<Void> future : pool.invokeAll(faces)) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Imports the map "orig" to this object, adjusting pixel ordering and
+     * resolution if necessary.
+     *
+     * @param orig map to import
+     * @param pessimistic only used when resolution must be reduced: if true,
+     * set a pixel to undefined if at least one the original subpixels was
+     * undefined; otherwise only set it to undefined if all original subpixels
+     * were undefined.
+     * @throws java.lang.Exception
+     */
+    public void importGeneral(AbstractHealpixMapByte orig, boolean pessimistic)
+            throws Exception {
+        if (orig.nside == nside) {
+            importNograde(orig);
+        } else if (orig.nside < nside) // upgrading
+        {
+            importUpgrade(orig);
+        } else {
+            importDegrade(orig, pessimistic);
+        }
+    }
+}
@@ -18,14 +18,22 @@
  ******************************************************************************/
 package io.github.malapert.jhips.algorithm;
 
-import io.github.malapert.jhips.JHIPS;
 import healpix.essentials.*;
 import java.util.Arrays;
 
 /**
  * Class representing a full HEALPix map containing byte values.
+ * <p>
+ * All pixels are stored in a single array, so that the map is limited to
+ * {@link #MAX_NPIX} pixels (order 13). Use {@link SparseHealpixMapByte} for
+ * higher resolutions.
  */
-public class HealpixMapByte extends HealpixBase {
+public class HealpixMapByte extends AbstractHealpixMapByte {
+
+    /**
+     * Highest number of pixels of a map stored in an array.
+     */
+    public static final long MAX_NPIX = Integer.MAX_VALUE - 8;
 
     private byte[] data;
 
@@ -45,7 +53,7 @@ public class HealpixMapByte extends HealpixBase {
      */
     public HealpixMapByte(long nside_in, Scheme scheme_in) throws Exception {
         super(nside_in, scheme_in);
-        HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
+        HealpixUtils.check(getNpix() <= MAX_NPIX, "resolution too high for a byte array");
         data = new byte[(int) getNpix()];
     }
 
@@ -59,7 +67,6 @@ public class HealpixMapByte extends HealpixBase {
      */
     public HealpixMapByte(byte[] data_in, Scheme scheme_in) throws Exception {
         super(npix2Nside(data_in.length), scheme_in);
-        HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
         data = data_in;
     }
 
@@ -73,7 +80,7 @@ public class HealpixMapByte extends HealpixBase {
     public void setNside(long nside_in) throws Exception {
         if (nside_in != nside) {
             super.setNside(nside_in);
-            HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
+            HealpixUtils.check(getNpix() <= MAX_NPIX, "resolution too high for a byte array");
             data = new byte[(int) getNpix()];
         }
     }
@@ -89,7 +96,7 @@ public class HealpixMapByte extends HealpixBase {
     public void setNsideAndScheme(long nside_in, Scheme scheme_in)
             throws Exception {
         super.setNsideAndScheme(nside_in, scheme_in);
-        HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
+        HealpixUtils.check(getNpix() <= MAX_NPIX, "resolution too high for a byte array");
         data = new byte[(int) getNpix()];
     }
 
@@ -111,32 +118,19 @@ public class HealpixMapByte extends HealpixBase {
      *
      * @param val pixel value to use
      */
+    @Override
     public void fill(byte val) {
         Arrays.fill(data, val);
     }
 
-    /**
-     * Converts the map from NESTED to RING scheme or vice versa. This operation
-     * is done in-place, i.e. it does not require additional memory.
-     * @throws java.lang.Exception
-     */
-    public void swapScheme() throws Exception {
-        HealpixUtils.check((order >= 0) && (order <= JHIPS.ORDER),
-                "swapping not supported for this Nside");
-        for (int m = 0; m < swap_cycle[order].length; ++m) {
-            int istart = swap_cycle[order][m];
+    @Override
+    public byte get(long ipix) {
+        return data[(int) ipix];
+    }
 
-            byte pixbuf = data[istart];
-            long iold = istart,
-                    inew = (scheme == Scheme.RING) ? nest2ring(istart) : ring2nest(istart);
-            while (inew != istart) {
-                data[(int) iold] = data[(int) inew];
-                iold = inew;
-                inew = (scheme == Scheme.RING) ? nest2ring(inew) : ring2nest(inew);
-            }
-            data[(int) iold] = pixbuf;
-        }
-        scheme = (scheme == Scheme.RING) ? Scheme.NESTED : Scheme.RING;
+    @Override
+    public void set(long ipix, byte val) {
+        data[(int) ipix] = val;
     }
 
     /**
@@ -155,6 +149,7 @@ public class HealpixMapByte extends HealpixBase {
      * @param ipix index of the requested pixel
      * @return pixel value
      */
+    @Override
     public float getPixel(long ipix) {
         return data[(int) ipix];
     }
@@ -175,10 +170,21 @@ public class HealpixMapByte extends HealpixBase {
      * @param ipix index of the pixel
      * @param val new value for the pixel
      */
+    @Override
     public void setPixel(long ipix, byte val) {
         data[(int)ipix] = val;
     }
 
+    @Override
+    public void getPixels(long first, byte[] dest, int offset, int length) {
+        System.arraycopy(data, (int) first, dest, offset, length);
+    }
+
+    @Override
+    public void setPixels(long first, byte[] src, int offset, int length) {
+        System.arraycopy(src, offset, data, (int) first, length);
+    }
+
     /**
      * Returns the array containing all map pixels.
      *
@@ -194,100 +200,14 @@ public class HealpixMapByte extends HealpixBase {
      * @param orig map to import
      * @throws java.lang.Exception
      */
-    public void importNograde(HealpixMapByte orig) throws Exception {
-        HealpixUtils.check(nside == orig.nside,
+    @Override
+    public void importNograde(AbstractHealpixMapByte orig) throws Exception {
+        HealpixUtils.check(nside == orig.getNside(),
                 "importNograde: maps have different nside");
-        if (orig.scheme == scheme) {
-            System.arraycopy(orig.data, 0, data, 0, (int) npix);
-        } else {
-            for (int m = 0; m < npix; ++m) {
-                data[scheme == Scheme.NESTED ? (int) ring2nest(m) : (int) nest2ring(m)]
-                        = orig.data[m];
-            }
-        }
-    }
-
-    /**
-     * Imports the map "orig" to this object, adjusting pixel ordering and
-     * increasing resolution.
-     *
-     * @param orig map to import
-     * @throws java.lang.Exception
-     */
-    public void importUpgrade(HealpixMapByte orig) throws Exception {
-        HealpixUtils.check(nside > orig.nside, "importUpgrade: this is no upgrade");
-        int fact = (int) (nside / orig.nside);
-        HealpixUtils.check(nside == orig.nside * fact,
-                "the larger Nside must be a multiple of the smaller one");
-
-        for (int m = 0; m < orig.npix; ++m) {
-            Xyf xyf = orig.pix2xyf(m);
-            int x = xyf.ix, y = xyf.iy, f = xyf.face;
-            for (int j = fact * y; j < fact * (y + 1); ++j) {
-                for (int i = fact * x; i < fact * (x + 1); ++i) {
-                    long mypix = xyf2pix(i, j, f);
-                    data[(int) mypix] = orig.data[m];
-                }
-            }
-        }
-    }
-
-    /**
-     * Imports the map "orig" to this object, adjusting pixel ordering and
-     * reducing resolution.
-     *
-     * @param orig map to import
-     * @param pessimistic if true, set a pixel to undefined if at least one the
-     * original subpixels was undefined; otherwise only set it to undefined if
-     * all original subpixels were undefined.
-     * @throws java.lang.Exception
-     */
-    public void importDegrade(HealpixMapByte orig, boolean pessimistic)
-            throws Exception {
-        HealpixUtils.check(nside < orig.nside, "importDegrade: this is no degrade");
-        int fact = (int) (orig.nside / nside);
-        HealpixUtils.check(orig.nside == nside * fact,
-                "the larger Nside must be a multiple of the smaller one");
-
-        int minhits = pessimistic ? fact * fact : 1;
-        for (int m = 0; m < npix; ++m) {
-            Xyf xyf = pix2xyf(m);
-            int x = xyf.ix, y = xyf.iy, f = xyf.face;
-            int hits = 0;
-            double sum = 0;
-            for (int j = fact * y; j < fact * (y + 1); ++j) {
-                for (int i = fact * x; i < fact * (x + 1); ++i) {
-                    int opix = (int) orig.xyf2pix(i, j, f);
-                    if (!HealpixUtils.approx(orig.data[opix], 0, 1e-5)) {
-                        ++hits;
-                        sum += orig.data[opix];
-                    }
-                }
-            }
-            data[m] = (hits < minhits) ? 0 : (byte) (sum / hits);
-        }
-    }
-
-    /**
-     * Imports the map "orig" to this object, adjusting pixel ordering and
-     * resolution if necessary.
-     *
-     * @param orig map to import
-     * @param pessimistic only used when resolution must be reduced: if true,
-     * set a pixel to undefined if at least one the original subpixels was
-     * undefined; otherwise only set it to undefined if all original subpixels
-     * were undefined.
-     * @throws java.lang.Exception
-     */
-    public void importGeneral(HealpixMapByte orig, boolean pessimistic)
-            throws Exception {
-        if (orig.nside == nside) {
-            importNograde(orig);
-        } else if (orig.nside < nside) // upgrading
-        {
-            importUpgrade(orig);
+        if (orig.getScheme() == scheme) {
+            orig.getPixels(0, data, 0, (int) npix);
         } else {
-            importDegrade(orig, pessimistic);
+            super.importNograde(orig);
         }
     }
 }
@@ -0,0 +1,232 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.algorithm;
+
+import io.github.malapert.jhips.JHIPS;
+import io.github.malapert.jhips.provider.JHipsMetadata;
+import healpix.essentials.*;
+import java.util.Arrays;
+
+/**
+ * Class representing a full HEALPix map containing packed ARGB colors.
+ * <p>
+ * Each pixel stores the three color channels in a single int (0xAARRGGBB), so
+ * that a color image is rasterized and tiled in one pass instead of three.
+ * The value {@link JHipsMetadata#EMPTY_RGB} marks the pixels without data.
+ * <p>
+ * All pixels are stored in a single array, so that the map is limited to
+ * {@link #MAX_NPIX} pixels (order 13).
+ */
+public class HealpixMapRGB extends HealpixBase {
+
+    /**
+     * Highest number of pixels of a map stored in an array.
+     */
+    public static final long MAX_NPIX = HealpixMapByte.MAX_NPIX;
+
+    private int[] data;
+
+    /**
+     * Creates a Healpix map with nside=1 and a nested scheme.
+     * @throws Exception
+     */
+    public HealpixMapRGB() throws Exception {
+        this(1, Scheme.NESTED);
+    }
+
+    /**
+     * Creates a Healpix map to store the result.
+     * @param nside_in Healpix nside
+     * @param scheme_in Healpix scheme
+     * @throws Exception
+     */
+    public HealpixMapRGB(long nside_in, Scheme scheme_in) throws Exception {
+        super(nside_in, scheme_in);
+        HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
+        HealpixUtils.check(getNpix() <= MAX_NPIX, "resolution too high for an int array");
+        data = new int[(int) getNpix()];
+    }
+
+    /**
+     * Creates a Healpix map to store the result.
+     * <p>
+     * The nside is comuted automatically from data.
+     * @param data_in data to store
+     * @param scheme_in Healpix scheme
+     * @throws Exception
+     */
+    public HealpixMapRGB(int[] data_in, Scheme scheme_in) throws Exception {
+        super(npix2Nside(data_in.length), scheme_in);
+        HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
+        data = data_in;
+    }
+
+    /**
+     * Adjusts the object to nside_in.
+     *
+     * @param nside_in the new Nside parameter
+     * @throws java.lang.Exception
+     */
+    @Override
+    public void setNside(long nside_in) throws Exception {
+        if (nside_in != nside) {
+            super.setNside(nside_in);
+            HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
+            HealpixUtils.check(getNpix() <= MAX_NPIX, "resolution too high for an int array");
+            data = new int[(int) getNpix()];
+        }
+    }
+
+    /**
+     * Adjusts the object to nside_in and scheme_in.
+     *
+     * @param nside_in the new Nside parameter
+     * @param scheme_in the new ordering scheme
+     * @throws java.lang.Exception
+     */
+    @Override
+    public void setNsideAndScheme(long nside_in, Scheme scheme_in)
+            throws Exception {
+        super.setNsideAndScheme(nside_in, scheme_in);
+        HealpixUtils.check(nside <= (1 << JHIPS.ORDER), "resolution too high");
+        HealpixUtils.check(getNpix() <= MAX_NPIX, "resolution too high for an int array");
+        data = new int[(int) getNpix()];
+    }
+
+    /**
+     * Adjusts the object to scheme_in, and sets pixel data to data_in.
+     *
+     * @param data_in pixel data; must have a valid length (12*nside^2)
+     * @param scheme_in the new ordering scheme
+     * @throws java.lang.Exception
+     */
+    public void setDataAndScheme(int[] data_in, Scheme scheme_in)
+            throws Exception {
+        super.setNsideAndScheme(npix2Nside(data_in.length), scheme_in);
+        data = data_in;
+    }
+
+    /**
+     * Sets all map pixel to a specific color.
+     *
+     * @param val packed ARGB color to use
+     */
+    public void fill(int val) {
+        Arrays.fill(data, val);
+    }
+
+    /**
+     * Returns the packed ARGB color of the pixel with a given index.
+     *
+     * @param ipix index of the requested pixel
+     * @return packed ARGB color
+     */
+    public int getPixel(int ipix) {
+        return data[ipix];
+    }
+
+    /**
+     * Returns the packed ARGB color of the pixel with a given index.
+     *
+     * @param ipix index of the requested pixel
+     * @return packed ARGB color
+     */
+    public int getPixel(long ipix) {
+        return data[(int) ipix];
+    }
+
+    /**
+     * Sets the packed ARGB color of a specific pixel.
+     *
+     * @param ipix index of the pixel
+     * @param val new packed ARGB color for the pixel
+     */
+    public void setPixel(int ipix, int val) {
+        data[ipix] = val;
+    }
+
+    /**
+     * Sets the packed ARGB color of a specific pixel.
+     *
+     * @param ipix index of the pixel
+     * @param val new packed ARGB color for the pixel
+     */
+    public void setPixel(long ipix, int val) {
+        data[(int) ipix] = val;
+    }
+
+    /**
+     * Returns the array containing all map pixels.
+     *
+     * @return the map array
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns a NESTED map with half the nside of this one.
+     * <p>
+     * In NESTED scheme, the four children of a pixel are contiguous, so that
+     * each pixel of the returned map is the mean color of four consecutive
+     * pixels. Empty pixels are ignored; a pixel is empty only when its four
+     * children are empty.
+     *
+     * @return the degraded map
+     * @throws java.lang.Exception
+     */
+    public HealpixMapRGB degrade() throws Exception {
+        HealpixUtils.check(scheme == Scheme.NESTED, "degrade: map must be NESTED");
+        HealpixUtils.check(nside > 1, "degrade: nside is already 1");
+        int[] result = new int[data.length >>> 2];
+        for (int m = 0; m < result.length; ++m) {
+            result[m] = mean(data, m << 2, 4);
+        }
+        return new HealpixMapRGB(result, Scheme.NESTED);
+    }
+
+    /**
+     * Returns the mean color of consecutive packed ARGB colors, ignoring the
+     * empty ones.
+     *
+     * @param colors packed ARGB colors
+     * @param offset first color
+     * @param length number of colors
+     * @return the mean color or {@link JHipsMetadata#EMPTY_RGB} when all colors
+     * are empty
+     */
+    static int mean(int[] colors, int offset, int length) {
+        int hits = 0;
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int rgb = colors[i];
+            if (rgb != JHipsMetadata.EMPTY_RGB) {
+                red += (rgb >> 16) & 0xff;
+                green += (rgb >> 8) & 0xff;
+                blue += rgb & 0xff;
+                hits++;
+            }
+        }
+        return (hits == 0)
+                ? JHipsMetadata.EMPTY_RGB
+                : 0xff000000 | (red / hits) << 16 | (green / hits) << 8 | (blue / hits);
+    }
+}
@@ -0,0 +1,755 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.algorithm;
+
+import cds.tools.pixtools.Util;
+import healpix.essentials.HealpixBase;
+import healpix.essentials.HealpixUtils;
+import healpix.essentials.RangeSet;
+import healpix.essentials.Scheme;
+import io.github.malapert.jhips.provider.JHipsMetadata;
+import io.github.malapert.jhips.provider.JHipsMetadataProviderInterface;
+import io.github.malapert.jhips.util.Checkpoint;
+import io.github.malapert.jhips.util.JfrEvents;
+import io.github.malapert.jhips.util.Metrics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Cuts NESTED color or byte Healpix maps into HIPS tiles without going
+ * through HipsGen.
+ * <p>
+ * In NESTED scheme, the tile npix of order k and of width 2^w is the
+ * contiguous range of pixels [npix * 4^w, (npix + 1) * 4^w[ of the map of
+ * order k + w. The tiler reads the map once, tile by tile of the highest
+ * order, and a {@link PyramidBuilder} reduces them into the tiles of each
+ * lower order, down to order {@link #MIN_ORDER}. The final PNG or JPEG tiles
+ * are written directly, without intermediate FITS tiles.
+ * <p>
+ * An existing HIPS can also be updated in place: only the tiles of a coverage
+ * and their ancestors are written again (see
+ * {@link #update(io.github.malapert.jhips.algorithm.HipsTiler.PixelSource, int, healpix.essentials.RangeSet, boolean, io.github.malapert.jhips.provider.JHipsMetadataProviderInterface)}).
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class HipsTiler {
+
+    /**
+     * Order of the tile width (2^9 = 512 pixels).
+     */
+    public static final int TILE_WIDTH_ORDER = 9;
+
+    /**
+     * Lowest order of the tiles.
+     */
+    public static final int MIN_ORDER = 3;
+
+    /**
+     * Number of tiles that may wait in the queue for each worker.
+     */
+    private static final int QUEUE_SIZE_PER_WORKER = 4;
+
+    /**
+     * Directory where the HIPS is written.
+     */
+    private final File hipsDirectory;
+
+    /**
+     * Format of the tiles : png or jpeg.
+     */
+    private String format = "png";
+
+    /**
+     * Number of threads writing the tiles.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Journal of the written tiles, or null.
+     */
+    private Checkpoint checkpoint;
+
+    /**
+     * Creates a tiler writing in a HIPS directory.
+     *
+     * @param hipsDirectory directory where the HIPS is written
+     */
+    public HipsTiler(final File hipsDirectory) {
+        this.hipsDirectory = hipsDirectory;
+    }
+
+    /**
+     * Returns the directory where the HIPS is written.
+     *
+     * @return the HIPS directory
+     */
+    public File getHipsDirectory() {
+        return hipsDirectory;
+    }
+
+    /**
+     * Returns the format of the tiles.
+     *
+     * @return png or jpeg
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the format of the tiles.
+     * <p>
+     * Empty pixels are transparent in png and black in jpeg.
+     *
+     * @param format png or jpeg
+     */
+    public void setFormat(final String format) {
+        if (!"png".equals(format) && !"jpeg".equals(format)) {
+            throw new IllegalArgumentException("Unsupported tile format: " + format);
+        }
+        this.format = format;
+    }
+
+    /**
+     * Returns the number of threads writing the tiles.
+     *
+     * @return the number of threads
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads writing the tiles.
+     *
+     * @param parallelism the number of threads, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the journal of the written tiles.
+     *
+     * @return the checkpoint or null
+     */
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Sets the journal of the written tiles.
+     * <p>
+     * Each tile is recorded in the checkpoint, in the tree named after the
+     * HIPS directory, once it is written. A tile recorded by a previous run
+     * is not rendered again unless its file is missing.
+     *
+     * @param checkpoint the checkpoint or null to write all tiles
+     */
+    public void setCheckpoint(final Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Returns the order of the tile width for a map.
+     * <p>
+     * The width is reduced for maps that are too small to be cut in 512x512
+     * tiles at order {@link #MIN_ORDER}.
+     *
+     * @param mapOrder order of the map
+     * @return the order of the tile width
+     */
+    public static int getTileWidthOrder(int mapOrder) {
+        return Math.max(0, Math.min(TILE_WIDTH_ORDER, mapOrder - MIN_ORDER));
+    }
+
+    /**
+     * Creates the HIPS tiles of all orders and the properties file from a
+     * color map.
+     *
+     * @param map NESTED color map at the highest resolution
+     * @param metadata metadata of the survey
+     * @throws Exception Healpix or I/O error
+     */
+    public void process(final HealpixMapRGB map, final JHipsMetadataProviderInterface metadata) throws Exception {
+        process(new RGBLevel(map), metadata);
+    }
+
+    /**
+     * Creates the grayscale HIPS tiles of all orders and the properties file
+     * from a byte map.
+     * <p>
+     * The value 0 marks the pixels without data.
+     *
+     * @param map NESTED byte map at the highest resolution
+     * @param metadata metadata of the survey
+     * @throws Exception Healpix or I/O error
+     */
+    public void process(final AbstractHealpixMapByte map, final JHipsMetadataProviderInterface metadata) throws Exception {
+        process(new ByteLevel(new AbstractHealpixMapByte[]{map}), metadata);
+    }
+
+    /**
+     * Creates the color HIPS tiles of all orders and the properties file from
+     * three byte maps, one per channel.
+     * <p>
+     * A pixel is empty when its three channels are 0.
+     *
+     * @param mapR NESTED byte map of the R channel at the highest resolution
+     * @param mapG NESTED byte map of the G channel at the highest resolution
+     * @param mapB NESTED byte map of the B channel at the highest resolution
+     * @param metadata metadata of the survey
+     * @throws Exception Healpix or I/O error
+     */
+    public void process(final AbstractHealpixMapByte mapR, final AbstractHealpixMapByte mapG, final AbstractHealpixMapByte mapB, final JHipsMetadataProviderInterface metadata) throws Exception {
+        HealpixUtils.check(mapR.getNside() == mapG.getNside() && mapR.getNside() == mapB.getNside(), "the maps must have the same nside");
+        process(new ByteLevel(new AbstractHealpixMapByte[]{mapR, mapG, mapB}), metadata);
+    }
+
+    /**
+     * Creates the HIPS tiles of all orders and the properties file.
+     * <p>
+     * The non-empty tiles of the highest order are read in NESTED order and
+     * given to a {@link PyramidBuilder}, which completes the tiles of all
+     * orders in a single pass. The tiles are encoded and written by a pool of
+     * {@link #getParallelism()} workers, fed through a bounded queue. When the
+     * queue is full, the tile is written by the calling thread so that the
+     * number of tiles waiting in memory stays bounded.
+     *
+     * @param map NESTED map at the highest resolution
+     * @param metadata metadata of the survey
+     * @throws Exception Healpix or I/O error
+     */
+    private void process(final TileLevel map, final JHipsMetadataProviderInterface metadata) throws Exception {
+        HealpixUtils.check(map.getMap().getScheme() == Scheme.NESTED, "the map must be NESTED");
+        int widthOrder = getTileWidthOrder(map.getMap().getOrder());
+        int maxOrder = map.getMap().getOrder() - widthOrder;
+        int minOrder = Math.min(MIN_ORDER, maxOrder);
+        final int[] hpx2png = createHpx2Png(widthOrder);
+        final boolean gray = map.isGray() && !isTransparent();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(getParallelism(), getParallelism(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE_PER_WORKER * getParallelism()), new ThreadPoolExecutor.CallerRunsPolicy());
+        PyramidBuilder builder = new PyramidBuilder(minOrder, maxOrder, widthOrder, new PyramidBuilder.TileSink() {
+            @Override
+            public void tile(final int order, final long npix, final int[] colors) {
+                if (isWritten(order, npix)) {
+                    return;
+                }
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writeTile(render(colors, hpx2png, isTransparent(), gray), order, npix);
+                        } catch (IOException ex) {
+                            failure.compareAndSet(null, ex);
+                        } catch (RuntimeException ex) {
+                            failure.compareAndSet(null, new IOException("Cannot write tile " + order + "/" + npix, ex));
+                        }
+                    }
+                });
+            }
+        });
+        Logger.getLogger(HipsTiler.class.getName()).log(Level.INFO, "Writing tiles of orders {0} to {1} ... ", new Object[]{minOrder, maxOrder});
+        JfrEvents.Event event = JfrEvents.TILING.begin();
+        try {
+            int tileSize = builder.getTileSize();
+            long nbTiles = 12L << (2 * maxOrder);
+            for (long npix = 0; npix < nbTiles && failure.get() == null; npix++) {
+                long offset = npix * tileSize;
+                if (!map.isEmpty(offset, tileSize)) {
+                    builder.add(npix, map.getColors(offset, tileSize));
+                }
+            }
+            builder.finish();
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        long tiles = 0;
+        for (int order = minOrder; order <= maxOrder; order++) {
+            tiles += builder.getCount(order);
+        }
+        event.set("directory", getHipsDirectory().toString()).set("minOrder", minOrder).set("maxOrder", maxOrder).set("tiles", tiles).commit();
+        writeProperties(metadata, minOrder, maxOrder, 1 << widthOrder);
+    }
+
+    /**
+     * Updates the tiles of an existing HIPS that intersect a coverage.
+     * <p>
+     * The tiles of the highest order that intersect the coverage are
+     * rendered again from the source. Then, for each lower order, the parents
+     * of the updated tiles are computed from their four children, read back
+     * from the HIPS directory, with the degradation used by
+     * {@link #process(io.github.malapert.jhips.algorithm.HealpixMapRGB, io.github.malapert.jhips.provider.JHipsMetadataProviderInterface)}.
+     * The time is proportional to the number of tiles in the coverage instead
+     * of the size of the sphere.
+     * <p>
+     * The result is the one of a complete generation when the tiles are png;
+     * jpeg tiles are approximated since they are read back after a lossy
+     * compression.
+     *
+     * @param source colors of the pixels of the map
+     * @param mapOrder order of the map, the one of the existing HIPS
+     * @param coverage NESTED tiles of the highest order to update
+     * @param keepBlack True when the black pixels are data as in a color map,
+     * False when they are empty as in byte maps
+     * @param metadata metadata of the survey
+     * @throws Exception Healpix or I/O error
+     */
+    public void update(final PixelSource source, int mapOrder, final RangeSet coverage, final boolean keepBlack, final JHipsMetadataProviderInterface metadata) throws Exception {
+        final int widthOrder = getTileWidthOrder(mapOrder);
+        int maxOrder = mapOrder - widthOrder;
+        int minOrder = Math.min(MIN_ORDER, maxOrder);
+        final int[] hpx2png = createHpx2Png(widthOrder);
+        final int tileSize = hpx2png.length;
+        RangeSet tiles = coverage;
+        for (int order = maxOrder; order >= minOrder; order--) {
+            Logger.getLogger(HipsTiler.class.getName()).log(Level.INFO, "Updating {0} tiles of order {1} ... ", new Object[]{tiles.nval(), order});
+            final int tileOrder = order;
+            final boolean highest = order == maxOrder;
+            updateTiles(tiles, new TileUpdate() {
+                @Override
+                public void update(long npix) throws IOException {
+                    int[] colors = new int[tileSize];
+                    if (highest) {
+                        source.getPixels(npix * tileSize, colors);
+                    } else {
+                        int[] children = new int[4 * tileSize];
+                        for (int c = 0; c < 4; c++) {
+                            readTile(tileOrder + 1, 4 * npix + c, hpx2png, children, c * tileSize);
+                        }
+                        for (int m = 0; m < tileSize; m++) {
+                            colors[m] = HealpixMapRGB.mean(children, m << 2, 4);
+                        }
+                    }
+                    boolean empty = true;
+                    for (int i = 0; i < tileSize; i++) {
+                        if (!keepBlack && (colors[i] & 0xffffff) == 0) {
+                            colors[i] = JHipsMetadata.EMPTY_RGB;
+                        }
+                        empty &= colors[i] == JHipsMetadata.EMPTY_RGB;
+                    }
+                    if (!empty) {
+                        writeTile(render(colors, hpx2png, isTransparent(), false), tileOrder, npix);
+                    }
+                }
+            });
+            tiles = getParents(tiles);
+        }
+        writeProperties(metadata, minOrder, maxOrder, 1 << widthOrder);
+    }
+
+    /**
+     * Updates tiles of one order with {@link #getParallelism()} workers.
+     *
+     * @param tiles NESTED tiles to update
+     * @param task update of a tile
+     * @throws Exception I/O error or interruption
+     */
+    private void updateTiles(final RangeSet tiles, final TileUpdate task) throws Exception {
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(getParallelism(), getParallelism(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE_PER_WORKER * getParallelism()), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (int iv = 0; iv < tiles.nranges() && failure.get() == null; iv++) {
+                for (long npix = tiles.ivbegin(iv); npix < tiles.ivend(iv) && failure.get() == null; npix++) {
+                    final long tile = npix;
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                task.update(tile);
+                            } catch (IOException ex) {
+                                failure.compareAndSet(null, ex);
+                            } catch (RuntimeException ex) {
+                                failure.compareAndSet(null, new IOException("Cannot update tile " + tile, ex));
+                            }
+                        }
+                    });
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Returns the parents of NESTED tiles.
+     *
+     * @param tiles NESTED tiles
+     * @return the NESTED tiles of the previous order containing them
+     */
+    private static RangeSet getParents(final RangeSet tiles) {
+        RangeSet parents = new RangeSet(tiles.nranges());
+        for (int iv = 0; iv < tiles.nranges(); iv++) {
+            parents.add(tiles.ivbegin(iv) >>> 2, ((tiles.ivend(iv) - 1) >>> 2) + 1);
+        }
+        return parents;
+    }
+
+    /**
+     * Reads the colors of a tile in NESTED order.
+     * <p>
+     * A missing tile is empty.
+     *
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @param hpx2png raster index of each NESTED index
+     * @param colors receives the packed ARGB colors
+     * @param offset first index written in colors
+     * @throws IOException error when reading the tile
+     */
+    private void readTile(int order, long npix, final int[] hpx2png, final int[] colors, int offset) throws IOException {
+        File file = getTileFile(order, npix);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedImage tile = ImageIO.read(file);
+        if (tile == null) {
+            throw new IOException("No reader for " + file);
+        }
+        int width = TileLevel.getWidth(hpx2png);
+        int[] raster = tile.getRGB(0, 0, width, width, null, 0, width);
+        for (int i = 0; i < hpx2png.length; i++) {
+            int rgb = raster[hpx2png[i]];
+            colors[offset + i] = ((rgb >>> 24) == 0) ? JHipsMetadata.EMPTY_RGB : rgb;
+        }
+    }
+
+    /**
+     * Creates the mapping between the NESTED index of a pixel in a tile and
+     * its index in the raster of the tile.
+     * <p>
+     * The pixel layout is the one of HipsGen, whose FITS rows go from bottom to
+     * top while the image rows go from top to bottom.
+     *
+     * @param widthOrder order of the tile width
+     * @return the raster index of each NESTED index
+     */
+    static int[] createHpx2Png(int widthOrder) {
+        int width = 1 << widthOrder;
+        int[] hpx2xy = Util.createHpx2xy(widthOrder);
+        int[] hpx2png = new int[hpx2xy.length];
+        for (int i = 0; i < hpx2xy.length; i++) {
+            int x = hpx2xy[i] % width;
+            int y = hpx2xy[i] / width;
+            hpx2png[i] = (width - 1 - y) * width + x;
+        }
+        return hpx2png;
+    }
+
+    /**
+     * Renders the image of a tile.
+     *
+     * @param colors packed ARGB colors of the tile in NESTED order
+     * @param hpx2png raster index of each NESTED index
+     * @param transparent True when empty pixels are transparent
+     * @param gray True to render the blue channel in a grayscale image
+     * @return the image of the tile
+     */
+    static BufferedImage render(final int[] colors, final int[] hpx2png, boolean transparent, boolean gray) {
+        final int width = TileLevel.getWidth(hpx2png);
+        if (gray) {
+            BufferedImage tile = new BufferedImage(width, width, BufferedImage.TYPE_BYTE_GRAY);
+            byte[] raster = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < hpx2png.length; i++) {
+                raster[hpx2png[i]] = (byte) colors[i];
+            }
+            return tile;
+        }
+        BufferedImage tile = new BufferedImage(width, width, transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] raster = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < hpx2png.length; i++) {
+            raster[hpx2png[i]] = colors[i];
+        }
+        return tile;
+    }
+
+    /**
+     * Tests whether a tile is recorded in the checkpoint and written.
+     *
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @return True when the tile does not need to be written again
+     */
+    private boolean isWritten(int order, long npix) {
+        return checkpoint != null && checkpoint.isTileDone(getHipsDirectory().getName(), order, npix) && getTileFile(order, npix).exists();
+    }
+
+    /**
+     * Tests whether empty pixels are transparent in the tiles.
+     *
+     * @return True for png otherwise False
+     */
+    private boolean isTransparent() {
+        return "png".equals(getFormat());
+    }
+
+    /**
+     * Writes a tile.
+     *
+     * @param tile image of the tile
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @throws IOException error when writing the tile
+     */
+    private void writeTile(final BufferedImage tile, int order, long npix) throws IOException {
+        File file = getTileFile(order, npix);
+        file.getParentFile().mkdirs();
+        if (!ImageIO.write(tile, getFormat(), file)) {
+            throw new IOException("No writer for " + getFormat() + " tiles: " + file);
+        }
+        Metrics.getInstance().addTile(file.length());
+        if (checkpoint != null) {
+            checkpoint.tileDone(getHipsDirectory().getName(), order, npix);
+        }
+    }
+
+    /**
+     * Returns the file of a tile.
+     *
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @return the tile file
+     */
+    public File getTileFile(int order, long npix) {
+        String extension = "png".equals(getFormat()) ? ".png" : ".jpg";
+        return new File(Util.getFilePath(getHipsDirectory().getAbsolutePath(), order, npix) + extension);
+    }
+
+    /**
+     * Writes the properties file of the HIPS.
+     *
+     * @param metadata metadata of the survey
+     * @param minOrder lowest order of the tiles
+     * @param maxOrder highest order of the tiles
+     * @param width tile width
+     * @throws IOException error when writing the properties
+     */
+    private void writeProperties(final JHipsMetadataProviderInterface metadata, int minOrder, int maxOrder, int width) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("hips_order", String.valueOf(maxOrder));
+        properties.setProperty("hips_order_min", String.valueOf(minOrder));
+        properties.setProperty("hips_tile_width", String.valueOf(width));
+        properties.setProperty("hips_tile_format", getFormat());
+        properties.setProperty("format", getFormat());
+        RGBGeneration.fillMetadata(metadata, properties);
+        getHipsDirectory().mkdirs();
+        try (OutputStream out = new FileOutputStream(new File(getHipsDirectory(), "properties"))) {
+            properties.store(out, "");
+        }
+    }
+
+    /**
+     * Colors of the pixels of a NESTED map, computed on demand.
+     * <p>
+     * Implementations are called concurrently for distinct pixels.
+     */
+    public interface PixelSource {
+
+        /**
+         * Computes the colors of consecutive NESTED pixels.
+         *
+         * @param first first pixel
+         * @param colors receives the packed ARGB colors, or
+         * {@link JHipsMetadata#EMPTY_RGB} for the pixels without data
+         */
+        void getPixels(long first, int[] colors);
+    }
+
+    /**
+     * Update of a single tile.
+     */
+    private interface TileUpdate {
+
+        /**
+         * Writes a tile again.
+         *
+         * @param npix index of the tile
+         * @throws IOException error when reading or writing a tile
+         */
+        void update(long npix) throws IOException;
+    }
+
+    /**
+     * A NESTED map at the highest order of the HIPS.
+     */
+    private abstract static class TileLevel {
+
+        /**
+         * Returns the Healpix map of the level.
+         *
+         * @return the map
+         */
+        abstract HealpixBase getMap();
+
+        /**
+         * Tests whether the map has a single grayscale channel.
+         *
+         * @return True when the colors are gray otherwise False
+         */
+        abstract boolean isGray();
+
+        /**
+         * Tests whether a range of pixels contains no data.
+         *
+         * @param offset first pixel
+         * @param length number of pixels
+         * @return True when all pixels are empty otherwise False
+         */
+        abstract boolean isEmpty(long offset, int length);
+
+        /**
+         * Returns the colors of consecutive pixels.
+         *
+         * @param offset first pixel
+         * @param length number of pixels
+         * @return a new array of packed ARGB colors, or
+         * {@link JHipsMetadata#EMPTY_RGB} for the pixels without data
+         */
+        abstract int[] getColors(long offset, int length);
+
+        /**
+         * Returns the width of a tile from the size of the mapping.
+         *
+         * @param hpx2png raster index of each NESTED index
+         * @return the tile width
+         */
+        static int getWidth(final int[] hpx2png) {
+            return (int) Math.round(Math.sqrt(hpx2png.length));
+        }
+    }
+
+    /**
+     * A level made of packed ARGB colors.
+     */
+    private static final class RGBLevel extends TileLevel {
+
+        private final HealpixMapRGB map;
+        private final int[] data;
+
+        RGBLevel(final HealpixMapRGB map) {
+            this.map = map;
+            this.data = map.getData();
+        }
+
+        @Override
+        HealpixBase getMap() {
+            return map;
+        }
+
+        @Override
+        boolean isGray() {
+            return false;
+        }
+
+        @Override
+        boolean isEmpty(long offset, int length) {
+            for (int i = (int) offset; i < offset + length; i++) {
+                if (data[i] != JHipsMetadata.EMPTY_RGB) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int[] getColors(long offset, int length) {
+            return Arrays.copyOfRange(data, (int) offset, (int) offset + length);
+        }
+    }
+
+    /**
+     * A level made of one (grayscale) or three (RGB) byte channels. The value
+     * 0 in all channels marks the pixels without data.
+     * <p>
+     * A grayscale value v is the color (v, v, v), so that its mean over the
+     * children is the mean of the gray values.
+     */
+    private static final class ByteLevel extends TileLevel {
+
+        private final AbstractHealpixMapByte[] channels;
+
+        ByteLevel(final AbstractHealpixMapByte[] channels) {
+            this.channels = channels;
+        }
+
+        @Override
+        HealpixBase getMap() {
+            return channels[0];
+        }
+
+        @Override
+        boolean isGray() {
+            return channels.length == 1;
+        }
+
+        @Override
+        boolean isEmpty(long offset, int length) {
+            for (AbstractHealpixMapByte channel : channels) {
+                if (!channel.isEmpty(offset, offset + length)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int[] getColors(long offset, int length) {
+            final byte[][] data = new byte[channels.length][length];
+            for (int c = 0; c < channels.length; c++) {
+                channels[c].getPixels(offset, data[c], 0, length);
+            }
+            final byte[] r = data[0];
+            final byte[] g = data[channels.length == 1 ? 0 : 1];
+            final byte[] b = data[channels.length == 1 ? 0 : 2];
+            int[] colors = new int[length];
+            for (int i = 0; i < length; i++) {
+                int rgb = (r[i] & 0xff) << 16 | (g[i] & 0xff) << 8 | (b[i] & 0xff);
+                colors[i] = (rgb == 0) ? JHipsMetadata.EMPTY_RGB : 0xff000000 | rgb;
+            }
+            return colors;
+        }
+    }
+}
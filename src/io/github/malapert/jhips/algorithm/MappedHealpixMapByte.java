@@ -0,0 +1,195 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.algorithm;
+
+import healpix.essentials.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Class representing a HEALPix map containing byte values, whose pixels are
+ * stored in a memory-mapped file.
+ * <p>
+ * The file contains the raw pixels, one byte per pixel, in the order of the
+ * scheme. It is mapped in segments of 2^{@value #SEGMENT_SHIFT} bytes, so that
+ * the map is not limited by the size of a Java array and the operating system
+ * pages the pixels in and out of memory. An existing file of the right size is
+ * reused with its content, so that a map survives a restart.
+ * <p>
+ * Distinct pixels can be set concurrently. The content is written to the disk
+ * by {@link #flush()} and {@link #close()}.
+ */
+public class MappedHealpixMapByte extends AbstractHealpixMapByte implements Closeable {
+
+    /**
+     * Order of the size of a mapped segment (1 GB).
+     */
+    public static final int SEGMENT_SHIFT = 30;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Creates a Healpix map stored in a file.
+     * <p>
+     * When the file already exists with the size of the map, its pixels are
+     * kept; otherwise the file is resized and the pixels are 0.
+     *
+     * @param file file storing the pixels
+     * @param nside_in Healpix nside
+     * @param scheme_in Healpix scheme
+     * @throws Exception
+     */
+    public MappedHealpixMapByte(final File file, long nside_in, Scheme scheme_in) throws Exception {
+        super(nside_in, scheme_in);
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != getNpix()) {
+                raf.setLength(0);
+                raf.setLength(getNpix());
+            }
+            int nbSegments = (int) ((getNpix() + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            this.segments = new MappedByteBuffer[nbSegments];
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < nbSegments; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(1L << SEGMENT_SHIFT, getNpix() - position));
+            }
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * The resolution of a mapped map is fixed by its file.
+     *
+     * @param nside_in the new Nside parameter
+     * @throws java.lang.Exception when nside_in is not the nside of the map
+     */
+    @Override
+    public void setNside(long nside_in) throws Exception {
+        HealpixUtils.check(segments == null || nside_in == nside, "the nside of a mapped map cannot be changed");
+        super.setNside(nside_in);
+    }
+
+    /**
+     * The resolution of a mapped map is fixed by its file.
+     *
+     * @param nside_in the new Nside parameter
+     * @param scheme_in the new ordering scheme
+     * @throws java.lang.Exception when nside_in is not the nside of the map
+     */
+    @Override
+    public void setNsideAndScheme(long nside_in, Scheme scheme_in)
+            throws Exception {
+        HealpixUtils.check(segments == null || nside_in == nside, "the nside of a mapped map cannot be changed");
+        super.setNsideAndScheme(nside_in, scheme_in);
+    }
+
+    /**
+     * Returns the file storing the pixels.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void fill(byte val) {
+        byte[] buffer = new byte[1 << 16];
+        Arrays.fill(buffer, val);
+        for (MappedByteBuffer segment : segments) {
+            ByteBuffer view = segment.duplicate();
+            while (view.hasRemaining()) {
+                view.put(buffer, 0, Math.min(buffer.length, view.remaining()));
+            }
+        }
+    }
+
+    @Override
+    public byte get(long ipix) {
+        return segments[(int) (ipix >>> SEGMENT_SHIFT)].get((int) (ipix & SEGMENT_MASK));
+    }
+
+    @Override
+    public void set(long ipix, byte val) {
+        segments[(int) (ipix >>> SEGMENT_SHIFT)].put((int) (ipix & SEGMENT_MASK), val);
+    }
+
+    @Override
+    public void getPixels(long first, byte[] dest, int offset, int length) {
+        while (length > 0) {
+            int start = (int) (first & SEGMENT_MASK);
+            ByteBuffer view = segments[(int) (first >>> SEGMENT_SHIFT)].duplicate();
+            view.position(start);
+            int n = Math.min(length, view.remaining());
+            view.get(dest, offset, n);
+            first += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void setPixels(long first, byte[] src, int offset, int length) {
+        while (length > 0) {
+            int start = (int) (first & SEGMENT_MASK);
+            ByteBuffer view = segments[(int) (first >>> SEGMENT_SHIFT)].duplicate();
+            view.position(start);
+            int n = Math.min(length, view.remaining());
+            view.put(src, offset, n);
+            first += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Writes the pixels to the file.
+     */
+    public void flush() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Writes the pixels to the file and closes it. The map must not be used
+     * afterwards.
+     *
+     * @throws IOException error when closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        raf.close();
+    }
+}
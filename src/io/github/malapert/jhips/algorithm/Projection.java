@@ -18,8 +18,18 @@
  ******************************************************************************/
 package io.github.malapert.jhips.algorithm;
 
+import healpix.essentials.FastMath;
+
 /**
  * Class utility for projection handling.
+ * <p>
+ * The projections follow the FITS WCS conventions (Calabretta &amp; Greisen
+ * 2002) for an image without rotation: the reference point CRVAL is at the
+ * reference pixel CRPIX, the intermediate coordinates are scaled by CDELT and
+ * the longitude of the celestial pole in the native system is the default
+ * one. They are computed in closed form in the frame (reference, east, north)
+ * of the reference point, without allocation.
+ *
  * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
  */
 public class Projection {
@@ -37,8 +47,305 @@ public class Projection {
         /**
          * Tangent projection.
          */
-        TAN
+        TAN;
+
+        /**
+         * Creates the projector of this projection with the standard math
+         * functions.
+         *
+         * @param crval1 longitude of the reference point in radians
+         * @param crval2 latitude of the reference point in radians
+         * @param crpix1 abscissa of the reference pixel
+         * @param crpix2 ordinate of the reference pixel
+         * @param cdelt1 scale along the abscissa in radians per pixel
+         * @param cdelt2 scale along the ordinate in radians per pixel
+         * @return the projector
+         */
+        public Projector createProjector(double crval1, double crval2, double crpix1, double crpix2, double cdelt1, double cdelt2) {
+            return createProjector(crval1, crval2, crpix1, crpix2, cdelt1, cdelt2, false);
+        }
+
+        /**
+         * Creates the projector of this projection.
+         *
+         * @param crval1 longitude of the reference point in radians
+         * @param crval2 latitude of the reference point in radians
+         * @param crpix1 abscissa of the reference pixel
+         * @param crpix2 ordinate of the reference pixel
+         * @param cdelt1 scale along the abscissa in radians per pixel
+         * @param cdelt2 scale along the ordinate in radians per pixel
+         * @param fastMath True to use the approximations of {@link FastMath}
+         * @return the projector
+         */
+        public Projector createProjector(double crval1, double crval2, double crpix1, double crpix2, double cdelt1, double cdelt2, boolean fastMath) {
+            switch (this) {
+                case CAR:
+                    return new CarProjector(crval1, crval2, crpix1, crpix2, cdelt1, cdelt2, fastMath);
+                case TAN:
+                    return new TanProjector(crval1, crval2, crpix1, crpix2, cdelt1, cdelt2, fastMath);
+                default:
+                    throw new IllegalArgumentException("Unsupported projection " + this);
+            }
+        }
     };
 
+    /**
+     * Forward and inverse projection between the sphere and the pixels of an
+     * image.
+     * <p>
+     * A projector is immutable and can be shared between threads.
+     */
+    public abstract static class Projector {
+
+        private final double crval1;
+        private final double sinCrval2;
+        private final double cosCrval2;
+        private final double[] reference;
+        private final double[] east;
+        private final double[] north;
+        private final double crpix1;
+        private final double crpix2;
+        private final double cdelt1;
+        private final double cdelt2;
+        private final boolean fastMath;
+
+        /**
+         * Creates a projector.
+         *
+         * @param crval1 longitude of the reference point in radians
+         * @param crval2 latitude of the reference point in radians
+         * @param crpix1 abscissa of the reference pixel
+         * @param crpix2 ordinate of the reference pixel
+         * @param cdelt1 scale along the abscissa in radians per pixel
+         * @param cdelt2 scale along the ordinate in radians per pixel
+         * @param fastMath True to use the approximations of {@link FastMath}
+         */
+        Projector(double crval1, double crval2, double crpix1, double crpix2, double cdelt1, double cdelt2, boolean fastMath) {
+            if (cdelt1 == 0 || cdelt2 == 0) {
+                throw new IllegalArgumentException("the scale must not be 0");
+            }
+            this.crval1 = crval1;
+            this.sinCrval2 = Math.sin(crval2);
+            this.cosCrval2 = Math.cos(crval2);
+            double sinCrval1 = Math.sin(crval1);
+            double cosCrval1 = Math.cos(crval1);
+            this.reference = new double[]{cosCrval2 * cosCrval1, cosCrval2 * sinCrval1, sinCrval2};
+            this.east = new double[]{-sinCrval1, cosCrval1, 0};
+            this.north = new double[]{-sinCrval2 * cosCrval1, -sinCrval2 * sinCrval1, cosCrval2};
+            this.crpix1 = crpix1;
+            this.crpix2 = crpix2;
+            this.cdelt1 = cdelt1;
+            this.cdelt2 = cdelt2;
+            this.fastMath = fastMath;
+        }
+
+        /**
+         * Projects a position of the sphere on the image.
+         *
+         * @param longitude longitude in radians
+         * @param latitude latitude in radians
+         * @param xy receives the abscissa and the ordinate of the pixel
+         * @return True when the position is in the domain of the projection
+         * otherwise False, xy being unchanged
+         */
+        public final boolean wcs2pix(double longitude, double latitude, final double[] xy) {
+            double dLongitude = longitude - crval1;
+            double sinLatitude = sin(latitude);
+            double cosLatitude = cos(latitude);
+            double cosDLongitude = cos(dLongitude);
+            double cosLatitudeCosDLongitude = cosLatitude * cosDLongitude;
+            // components in the frame (reference, east, north)
+            double reference = cosLatitudeCosDLongitude * cosCrval2 + sinLatitude * sinCrval2;
+            double east = cosLatitude * sin(dLongitude);
+            double north = sinLatitude * cosCrval2 - cosLatitudeCosDLongitude * sinCrval2;
+            if (!toPlane(reference, east, north, xy)) {
+                return false;
+            }
+            xy[0] = crpix1 + xy[0] / cdelt1;
+            xy[1] = crpix2 + xy[1] / cdelt2;
+            return true;
+        }
+
+        /**
+         * Projects a direction of the sphere on the image.
+         * <p>
+         * Unlike {@link #wcs2pix(double, double, double[])}, no trigonometric
+         * function is needed for the components of the direction.
+         *
+         * @param vec unit vector of the direction (x, y, z), z being the axis
+         * of the poles
+         * @param xy receives the abscissa and the ordinate of the pixel
+         * @return True when the direction is in the domain of the projection
+         * otherwise False, xy being unchanged
+         */
+        public final boolean vec2pix(final double[] vec, final double[] xy) {
+            double vecReference = vec[0] * reference[0] + vec[1] * reference[1] + vec[2] * reference[2];
+            double vecEast = vec[0] * east[0] + vec[1] * east[1];
+            double vecNorth = vec[0] * north[0] + vec[1] * north[1] + vec[2] * north[2];
+            if (!toPlane(vecReference, vecEast, vecNorth, xy)) {
+                return false;
+            }
+            xy[0] = crpix1 + xy[0] / cdelt1;
+            xy[1] = crpix2 + xy[1] / cdelt2;
+            return true;
+        }
+
+        /**
+         * Projects a pixel of the image on the sphere as a unit vector.
+         *
+         * @param x abscissa of the pixel
+         * @param y ordinate of the pixel
+         * @param vec receives the unit vector (x, y, z) of the direction
+         * @return True when the pixel is in the domain of the projection
+         * otherwise False, vec being unchanged
+         */
+        public final boolean pix2vec(double x, double y, final double[] vec) {
+            if (!toSphere((x - crpix1) * cdelt1, (y - crpix2) * cdelt2, vec)) {
+                return false;
+            }
+            double vecReference = vec[0];
+            double vecEast = vec[1];
+            double vecNorth = vec[2];
+            for (int i = 0; i < 3; i++) {
+                vec[i] = vecReference * reference[i] + vecEast * east[i] + vecNorth * north[i];
+            }
+            return true;
+        }
+
+        /**
+         * Projects a pixel of the image on the sphere.
+         *
+         * @param x abscissa of the pixel
+         * @param y ordinate of the pixel
+         * @param lonlat receives the longitude in [0, 2pi[ and the latitude in
+         * radians; at least 3 elements since it is also used as a scratch
+         * buffer
+         * @return True when the pixel is in the domain of the projection
+         * otherwise False, lonlat being unchanged
+         */
+        public final boolean pix2wcs(double x, double y, final double[] lonlat) {
+            double planeX = (x - crpix1) * cdelt1;
+            double planeY = (y - crpix2) * cdelt2;
+            if (!toSphere(planeX, planeY, lonlat)) {
+                return false;
+            }
+            // lonlat contains the components along reference, east and north
+            double reference = lonlat[0];
+            double east = lonlat[1];
+            double north = lonlat[2];
+            double z = reference * sinCrval2 + north * cosCrval2;
+            double meridian = reference * cosCrval2 - north * sinCrval2;
+            double longitude = crval1 + atan2(east, meridian);
+            longitude %= 2 * Math.PI;
+            if (longitude < 0) {
+                longitude += 2 * Math.PI;
+            }
+            lonlat[0] = longitude;
+            lonlat[1] = atan2(z, Math.sqrt(meridian * meridian + east * east));
+            return true;
+        }
+
+        /**
+         * Projects a direction on the plane of the projection.
+         *
+         * @param reference component along the reference point
+         * @param east component along the east of the reference point
+         * @param north component along the north of the reference point
+         * @param xy receives the intermediate coordinates in radians
+         * @return True when the direction is in the domain of the projection
+         */
+        abstract boolean toPlane(double reference, double east, double north, double[] xy);
+
+        /**
+         * Projects intermediate coordinates on the sphere.
+         *
+         * @param x intermediate abscissa in radians
+         * @param y intermediate ordinate in radians
+         * @param direction receives the components of the direction along the
+         * reference point, its east and its north; at least 3 elements
+         * @return True when the coordinates are in the domain of the
+         * projection
+         */
+        abstract boolean toSphere(double x, double y, double[] direction);
+
+        final double sin(double angle) {
+            return fastMath ? FastMath.sin(angle) : Math.sin(angle);
+        }
+
+        final double cos(double angle) {
+            return fastMath ? FastMath.cos(angle) : Math.cos(angle);
+        }
+
+        final double atan2(double y, double x) {
+            return fastMath ? FastMath.atan2(y, x) : Math.atan2(y, x);
+        }
+
+        final double asin(double value) {
+            return fastMath ? FastMath.asin(value) : Math.asin(value);
+        }
+    }
+
+    /**
+     * Plate carrée projection whose native equator passes through the
+     * reference point.
+     */
+    private static final class CarProjector extends Projector {
+
+        CarProjector(double crval1, double crval2, double crpix1, double crpix2, double cdelt1, double cdelt2, boolean fastMath) {
+            super(crval1, crval2, crpix1, crpix2, cdelt1, cdelt2, fastMath);
+        }
+
+        @Override
+        boolean toPlane(double reference, double east, double north, final double[] xy) {
+            xy[0] = atan2(east, reference);
+            xy[1] = asin(Math.max(-1, Math.min(1, north)));
+            return true;
+        }
+
+        @Override
+        boolean toSphere(double x, double y, final double[] direction) {
+            if (Math.abs(x) > Math.PI || Math.abs(y) > 0.5 * Math.PI) {
+                return false;
+            }
+            double cosY = cos(y);
+            direction[0] = cosY * cos(x);
+            direction[1] = cosY * sin(x);
+            direction[2] = sin(y);
+            return true;
+        }
+    }
+
+    /**
+     * Gnomonic projection tangent at the reference point.
+     */
+    private static final class TanProjector extends Projector {
+
+        /**
+         * Lowest component along the reference point of a projected direction.
+         */
+        private static final double MIN_REFERENCE = 1e-10;
+
+        TanProjector(double crval1, double crval2, double crpix1, double crpix2, double cdelt1, double cdelt2, boolean fastMath) {
+            super(crval1, crval2, crpix1, crpix2, cdelt1, cdelt2, fastMath);
+        }
+
+        @Override
+        boolean toPlane(double reference, double east, double north, final double[] xy) {
+            if (reference < MIN_REFERENCE) {
+                return false;
+            }
+            xy[0] = east / reference;
+            xy[1] = north / reference;
+            return true;
+        }
 
+        @Override
+        boolean toSphere(double x, double y, final double[] direction) {
+            double norm = 1 / Math.sqrt(1 + x * x + y * y);
+            direction[0] = norm;
+            direction[1] = x * norm;
+            direction[2] = y * norm;
+            return true;
+        }
+    }
 }
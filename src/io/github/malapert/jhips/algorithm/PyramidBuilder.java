@@ -0,0 +1,256 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.algorithm;
+
+import healpix.essentials.HealpixUtils;
+import io.github.malapert.jhips.provider.JHipsMetadata;
+import java.io.IOException;
+
+/**
+ * Builds the tiles of all the orders of a HIPS in a single pass over the
+ * tiles of the highest order.
+ * <p>
+ * In NESTED scheme, the four children of a tile are consecutive and each
+ * child is reduced 4:1 into a quarter of its parent. The tiles of the highest
+ * order are added in increasing NESTED order; each one is reduced into a
+ * partial tile of the previous order, which is complete once a tile of
+ * another parent arrives. A complete tile is sent to the {@link TileSink}
+ * and reduced in turn into the previous order, down to the lowest order.
+ * Only one partial tile per order is kept in memory, instead of the degraded
+ * maps of all the orders.
+ * <p>
+ * A pixel of a parent is the mean color of its non-empty children, as in
+ * {@link HealpixMapRGB#degrade()}. The empty tiles are not sent to the sink.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class PyramidBuilder {
+
+    /**
+     * Lowest and highest order of the tiles.
+     */
+    private final int minOrder, maxOrder;
+
+    /**
+     * Number of pixels of a tile.
+     */
+    private final int tileSize;
+
+    /**
+     * Receives the complete tiles.
+     */
+    private final TileSink sink;
+
+    /**
+     * Partial tile of each order lower than the highest one, null when no
+     * child of the tile has been added.
+     */
+    private final int[][] partials;
+
+    /**
+     * Index of the partial tile of each order.
+     */
+    private final long[] partialIndexes;
+
+    /**
+     * Number of tiles sent to the sink for each order.
+     */
+    private final long[] counts;
+
+    /**
+     * Index of the last tile of the highest order that has been added.
+     */
+    private long last = -1;
+
+    /**
+     * Creates a builder.
+     *
+     * @param minOrder lowest order of the tiles
+     * @param maxOrder highest order of the tiles
+     * @param widthOrder order of the tile width, at least 1 when
+     * minOrder &lt; maxOrder
+     * @param sink receives the complete tiles
+     * @throws Exception invalid orders
+     */
+    public PyramidBuilder(int minOrder, int maxOrder, int widthOrder, final TileSink sink) throws Exception {
+        HealpixUtils.check(minOrder >= 0 && minOrder <= maxOrder, "invalid orders");
+        HealpixUtils.check(widthOrder >= 1 || minOrder == maxOrder, "the tiles are too small to be reduced");
+        this.minOrder = minOrder;
+        this.maxOrder = maxOrder;
+        this.tileSize = 1 << (2 * widthOrder);
+        this.sink = sink;
+        this.partials = new int[maxOrder - minOrder][];
+        this.partialIndexes = new long[maxOrder - minOrder];
+        this.counts = new long[maxOrder - minOrder + 1];
+    }
+
+    /**
+     * Returns the number of pixels of a tile.
+     *
+     * @return the tile size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the number of tiles of an order sent to the sink.
+     *
+     * @param order order of the tiles
+     * @return the number of tiles
+     */
+    public long getCount(int order) {
+        return counts[order - minOrder];
+    }
+
+    /**
+     * Adds a tile of the highest order.
+     * <p>
+     * The tiles must be added in increasing NESTED order. A tile that is not
+     * added is empty, so that the empty parts of the sphere can be skipped.
+     *
+     * @param npix index of the tile
+     * @param colors packed ARGB colors of the tile in NESTED order, or
+     * {@link JHipsMetadata#EMPTY_RGB}; the array is given to the sink
+     * @throws Exception tiles out of order or error of the sink
+     */
+    public void add(long npix, final int[] colors) throws Exception {
+        HealpixUtils.check(npix > last && npix < (12L << (2 * maxOrder)), "tiles must be added in increasing NESTED order");
+        HealpixUtils.check(colors.length == tileSize, "invalid tile size");
+        last = npix;
+        if (isEmpty(colors)) {
+            return;
+        }
+        if (maxOrder > minOrder) {
+            reduce(maxOrder - 1, npix, colors);
+        }
+        emit(maxOrder, npix, colors);
+    }
+
+    /**
+     * Completes the partial tiles once all the tiles of the highest order
+     * have been added.
+     *
+     * @throws IOException error of the sink
+     */
+    public void finish() throws IOException {
+        for (int order = maxOrder - 1; order >= minOrder; order--) {
+            if (partials[order - minOrder] != null) {
+                complete(order);
+            }
+        }
+    }
+
+    /**
+     * Reduces a tile into a quarter of its parent.
+     * <p>
+     * The partial tile of the order is completed first when it is not the
+     * parent.
+     *
+     * @param order order of the parent
+     * @param child index of the child
+     * @param colors colors of the child
+     * @throws IOException error of the sink
+     */
+    private void reduce(int order, long child, final int[] colors) throws IOException {
+        int level = order - minOrder;
+        long parent = child >>> 2;
+        if (partials[level] != null && partialIndexes[level] != parent) {
+            complete(order);
+        }
+        if (partials[level] == null) {
+            // EMPTY_RGB is 0
+            partials[level] = new int[tileSize];
+            partialIndexes[level] = parent;
+        }
+        int[] target = partials[level];
+        int quarter = tileSize >>> 2;
+        int offset = (int) (child & 3) * quarter;
+        for (int m = 0; m < quarter; m++) {
+            target[offset + m] = HealpixMapRGB.mean(colors, m << 2, 4);
+        }
+    }
+
+    /**
+     * Sends the partial tile of an order to the sink and reduces it into the
+     * previous order.
+     *
+     * @param order order of the partial tile
+     * @throws IOException error of the sink
+     */
+    private void complete(int order) throws IOException {
+        int level = order - minOrder;
+        int[] tile = partials[level];
+        long npix = partialIndexes[level];
+        partials[level] = null;
+        if (order > minOrder) {
+            reduce(order - 1, npix, tile);
+        }
+        emit(order, npix, tile);
+    }
+
+    /**
+     * Sends a complete tile to the sink.
+     *
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @param colors colors of the tile
+     * @throws IOException error of the sink
+     */
+    private void emit(int order, long npix, final int[] colors) throws IOException {
+        counts[order - minOrder]++;
+        sink.tile(order, npix, colors);
+    }
+
+    /**
+     * Tests whether a tile contains no data.
+     *
+     * @param colors colors of the tile
+     * @return True when all pixels are empty otherwise False
+     */
+    private static boolean isEmpty(final int[] colors) {
+        for (int rgb : colors) {
+            if (rgb != JHipsMetadata.EMPTY_RGB) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Receives the complete tiles of a {@link PyramidBuilder}.
+     * <p>
+     * A tile is received after its children, and the tiles of an order are
+     * received in increasing NESTED order.
+     */
+    public interface TileSink {
+
+        /**
+         * Receives a complete tile that contains data.
+         *
+         * @param order order of the tile
+         * @param npix index of the tile
+         * @param colors packed ARGB colors of the tile in NESTED order, or
+         * {@link JHipsMetadata#EMPTY_RGB}; the array is not used by the
+         * builder anymore
+         * @throws IOException error when storing the tile
+         */
+        void tile(int order, long npix, int[] colors) throws IOException;
+    }
+}
@@ -19,9 +19,17 @@
 package io.github.malapert.jhips.algorithm;
 
 import io.github.malapert.jhips.provider.JHipsMetadataProviderInterface;
+import io.github.malapert.jhips.util.Checkpoint;
+import io.github.malapert.jhips.util.JfrEvents;
+import io.github.malapert.jhips.util.Metrics;
 import io.github.malapert.jhips.util.Utils;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -34,8 +42,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.imageio.ImageIO;
 
 /**
@@ -91,6 +105,213 @@ public class RGBGeneration {
 
     }
     
+    /**
+     * Creates RGB tiles based on a set tiles on R, G, B color, with several
+     * threads.
+     * <p>
+     * The result is the one of {@link #create(java.io.File, io.github.malapert.jhips.provider.JHipsMetadataProviderInterface)}.
+     * The R tiles are listed and the color directories are created first.
+     * Then the R, G, B tiles of each color tile are merged by a pool of
+     * workers, fed through a bounded queue. The samples are read from and
+     * written to the rasters of the tiles directly, without Color objects.
+     *
+     * @param outputDirectory output directory where RGB tiles are created
+     * @param metadata metadata of the survey
+     * @param parallelism number of threads, at least 1
+     * @throws IOException error when reading or writing a tile
+     */
+    public static void create(File outputDirectory, JHipsMetadataProviderInterface metadata, int parallelism) throws IOException {
+        create(outputDirectory, metadata, parallelism, null);
+    }
+
+    /**
+     * Creates RGB tiles based on a set tiles on R, G, B color, with several
+     * threads, skipping the color tiles that are recorded in a checkpoint.
+     * <p>
+     * Each color tile is recorded in the checkpoint, in the tree
+     * {@link #COLOR_DIRECTORY}, once it is written. A tile recorded by a
+     * previous run is merged again only when its file is missing.
+     *
+     * @param outputDirectory output directory where RGB tiles are created
+     * @param metadata metadata of the survey
+     * @param parallelism number of threads, at least 1
+     * @param checkpoint journal of the written tiles or null
+     * @throws IOException error when reading or writing a tile
+     */
+    public static void create(File outputDirectory, JHipsMetadataProviderInterface metadata, int parallelism, final Checkpoint checkpoint) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        final Path rDirectory = Paths.get(outputDirectory.getAbsolutePath() + File.separator + R_DIRECTORY);
+        final Path gDirectory = Paths.get(outputDirectory.getAbsolutePath() + File.separator + G_DIRECTORY);
+        final Path bDirectory = Paths.get(outputDirectory.getAbsolutePath() + File.separator + B_DIRECTORY);
+        final Path colorDirectory = Paths.get(outputDirectory.getAbsolutePath() + File.separator + COLOR_DIRECTORY);
+        Path originPropetyFile = rDirectory.resolve("properties");
+
+        final List<Path> tiles = new ArrayList<>();
+        Files.walkFileTree(rDirectory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path aDir, BasicFileAttributes aAttrs) throws IOException {
+                Files.createDirectories(colorDirectory.resolve(rDirectory.relativize(aDir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttrs) {
+                Path tile = rDirectory.relativize(aFile);
+                if (aFile.toString().endsWith("png") && !isMerged(checkpoint, tile, colorDirectory)) {
+                    tiles.add(tile);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final Metrics.Progress progress = Metrics.getInstance().startProgress("Merging RGB tiles", tiles.size(), "tiles");
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(4 * parallelism), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (final Path tile : tiles) {
+                if (failure.get() != null) {
+                    break;
+                }
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mergeTile(rDirectory.resolve(tile), gDirectory.resolve(tile), bDirectory.resolve(tile), colorDirectory.resolve(tile));
+                            if (checkpoint != null) {
+                                checkpoint.tileDone(COLOR_DIRECTORY, tile.toString());
+                            }
+                            progress.add(1);
+                        } catch (IOException ex) {
+                            failure.compareAndSet(null, ex);
+                        } catch (RuntimeException ex) {
+                            failure.compareAndSet(null, new IOException("Cannot merge " + tile, ex));
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        createMetadata(metadata, originPropetyFile.toFile(), colorDirectory.resolve("properties").toFile());
+    }
+
+    /**
+     * Tests whether a color tile is recorded in a checkpoint and written.
+     *
+     * @param checkpoint journal of the written tiles or null
+     * @param tile path of the tile relative to the tree
+     * @param colorDirectory directory of the color tiles
+     * @return True when the tile does not need to be merged again
+     */
+    private static boolean isMerged(final Checkpoint checkpoint, final Path tile, final Path colorDirectory) {
+        return checkpoint != null && checkpoint.isTileDone(COLOR_DIRECTORY, tile.toString()) && Files.exists(colorDirectory.resolve(tile));
+    }
+
+    /**
+     * Merges the R, G, B tiles in a color tile.
+     *
+     * @param rFile R tile
+     * @param gFile G tile
+     * @param bFile B tile
+     * @param colorFile color tile to write
+     * @throws IOException error when reading or writing a tile, or tiles of
+     * different sizes
+     */
+    private static void mergeTile(final Path rFile, final Path gFile, final Path bFile, final Path colorFile) throws IOException {
+        JfrEvents.Event event = JfrEvents.RGB_MERGE.begin();
+        BufferedImage imageR = read(rFile);
+        BufferedImage imageG = read(gFile);
+        BufferedImage imageB = read(bFile);
+        int width = imageR.getWidth();
+        int height = imageR.getHeight();
+        if (imageG.getWidth() != width || imageG.getHeight() != height || imageB.getWidth() != width || imageB.getHeight() != height) {
+            throw new IOException("The R, G and B tiles of " + colorFile.getFileName() + " have different sizes");
+        }
+        int[] red = getChannel(imageR, 16);
+        int[] green = getChannel(imageG, 8);
+        int[] blue = getChannel(imageB, 0);
+        BufferedImage imageColor = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] color = ((DataBufferInt) imageColor.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < color.length; i++) {
+            color[i] = red[i] | green[i] | blue[i];
+        }
+        ImageIO.write(imageColor, "png", colorFile.toFile());
+        Metrics.getInstance().addTile(colorFile.toFile().length());
+        event.set("tile", colorFile.toString()).set("pixels", (long) color.length).commit();
+    }
+
+    /**
+     * Reads a tile.
+     *
+     * @param file tile
+     * @return the image
+     * @throws IOException error when reading the tile
+     */
+    private static BufferedImage read(final Path file) throws IOException {
+        BufferedImage image = ImageIO.read(file.toFile());
+        if (image == null) {
+            throw new IOException("No image reader for " + file);
+        }
+        return image;
+    }
+
+    /**
+     * Extracts a channel of a tile, at the position of this channel in a
+     * packed RGB color.
+     * <p>
+     * The channel is the one of {@link BufferedImage#getRGB(int, int)}. For
+     * the single-band byte images written by HipsGen, the conversion of the
+     * color model is computed once for the 256 samples and applied to the
+     * raster; the other images are converted by a bulk getRGB.
+     *
+     * @param image tile
+     * @param shift 16 for red, 8 for green, 0 for blue
+     * @return the channel of each pixel, in row order
+     */
+    private static int[] getChannel(final BufferedImage image, int shift) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] channel = new int[width * height];
+        Raster raster = image.getRaster();
+        if (raster.getNumBands() == 1 && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getSampleModel().getSampleSize(0) == 8
+                && raster.getParent() == null) {
+            ColorModel cm = image.getColorModel();
+            int[] lut = new int[256];
+            for (int sample = 0; sample < 256; sample++) {
+                lut[sample] = (cm.getRGB(new byte[]{(byte) sample}) >> shift & 0xff) << shift;
+            }
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset() + sm.getBandOffsets()[0];
+            for (int y = 0; y < height; y++) {
+                int row = offset + y * sm.getScanlineStride();
+                for (int x = 0; x < width; x++) {
+                    channel[y * width + x] = lut[data[row + x * sm.getPixelStride()] & 0xff];
+                }
+            }
+        } else {
+            image.getRGB(0, 0, width, height, channel, 0, width);
+            for (int i = 0; i < channel.length; i++) {
+                channel[i] = (channel[i] >> shift & 0xff) << shift;
+            }
+        }
+        return channel;
+    }
+
     /**
      * Returns order from a property file by reading hips_order keyword.
      * @param properties property file
@@ -118,6 +339,16 @@ public class RGBGeneration {
         properties.load(new FileInputStream(src));
         properties.setProperty("hips_tile_format", "png");
         properties.setProperty("format", "png");
+        fillMetadata(metadata, properties);
+        properties.store(new FileOutputStream(dest), "");        
+    }
+
+    /**
+     * Sets the properties that are provided by the metadata.
+     * @param metadata metadata of the survey
+     * @param properties properties to fill
+     */
+    static void fillMetadata(JHipsMetadataProviderInterface metadata, Properties properties) {
         if(metadata.getBib_reference() != null) {
             properties.setProperty("bib_reference", metadata.getBib_reference());            
         }
@@ -193,7 +424,6 @@ public class RGBGeneration {
         if(metadata.getHips_builder() != null) {
             properties.setProperty("hips_builder", metadata.getHips_builder());                                                
         }          
-        properties.store(new FileOutputStream(dest), "");        
     }
 
     /**
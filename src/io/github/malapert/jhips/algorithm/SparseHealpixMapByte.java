@@ -0,0 +1,273 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.algorithm;
+
+import healpix.essentials.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class representing a HEALPix map containing byte values, whose pixels are
+ * stored in blocks allocated on first write.
+ * <p>
+ * A block holds the 4^k consecutive pixels of a map, that is a NESTED tile of
+ * order (map order - k). The pixels of a block that is never written are 0,
+ * so that only the covered part of the sky is resident in memory. Blocks are
+ * allocated atomically, so that distinct pixels can be set concurrently.
+ * <p>
+ * The map is intended to be used in NESTED scheme, where a block is a compact
+ * region of the sky; in RING scheme, a block is a part of a ring.
+ */
+public class SparseHealpixMapByte extends AbstractHealpixMapByte {
+
+    /**
+     * Lowest order of the block width, i.e. blocks of 4^8 pixels.
+     */
+    public static final int MIN_BLOCK_ORDER = 8;
+
+    /**
+     * Highest order of the block width, i.e. blocks of 1 GB.
+     */
+    public static final int MAX_BLOCK_ORDER = 15;
+
+    /**
+     * Highest order of the block directory, i.e. 12*4^9 blocks.
+     */
+    public static final int MAX_DIRECTORY_ORDER = 9;
+
+    private int blockOrder;
+    private int blockShift;
+    private long blockMask;
+    private AtomicReferenceArray<byte[]> blocks;
+
+    /**
+     * Creates a Healpix map with nside=1 and a nested scheme.
+     * @throws Exception
+     */
+    public SparseHealpixMapByte() throws Exception {
+        this(1, Scheme.NESTED);
+    }
+
+    /**
+     * Creates a Healpix map to store the result.
+     * @param nside_in Healpix nside
+     * @param scheme_in Healpix scheme
+     * @throws Exception
+     */
+    public SparseHealpixMapByte(long nside_in, Scheme scheme_in) throws Exception {
+        super(nside_in, scheme_in);
+        allocateDirectory();
+    }
+
+    /**
+     * Adjusts the object to nside_in.
+     *
+     * @param nside_in the new Nside parameter
+     * @throws java.lang.Exception
+     */
+    @Override
+    public void setNside(long nside_in) throws Exception {
+        if (nside_in != nside) {
+            super.setNside(nside_in);
+            allocateDirectory();
+        }
+    }
+
+    /**
+     * Adjusts the object to nside_in and scheme_in.
+     *
+     * @param nside_in the new Nside parameter
+     * @param scheme_in the new ordering scheme
+     * @throws java.lang.Exception
+     */
+    @Override
+    public void setNsideAndScheme(long nside_in, Scheme scheme_in)
+            throws Exception {
+        super.setNsideAndScheme(nside_in, scheme_in);
+        allocateDirectory();
+    }
+
+    /**
+     * Creates the empty directory of blocks for the current nside.
+     * @throws Exception
+     */
+    private void allocateDirectory() throws Exception {
+        HealpixUtils.check(order >= 0, "the nside must be a power of 2");
+        blockOrder = Math.min(order, Math.max(MIN_BLOCK_ORDER, order - MAX_DIRECTORY_ORDER));
+        HealpixUtils.check(blockOrder <= MAX_BLOCK_ORDER, "resolution too high for a sparse map");
+        blockShift = 2 * blockOrder;
+        blockMask = (1L << blockShift) - 1;
+        blocks = new AtomicReferenceArray<>((int) (getNpix() >>> blockShift));
+    }
+
+    /**
+     * Returns the order of the block width: a block holds 4^order pixels.
+     *
+     * @return the block order
+     */
+    public int getBlockOrder() {
+        return blockOrder;
+    }
+
+    /**
+     * Returns the number of blocks of the map.
+     *
+     * @return the number of blocks
+     */
+    public int getNbBlocks() {
+        return blocks.length();
+    }
+
+    /**
+     * Returns the number of blocks that are allocated.
+     *
+     * @return the number of allocated blocks
+     */
+    public int getNbAllocatedBlocks() {
+        int nb = 0;
+        for (int i = 0; i < blocks.length(); i++) {
+            if (blocks.get(i) != null) {
+                nb++;
+            }
+        }
+        return nb;
+    }
+
+    /**
+     * Tests whether a block is allocated.
+     *
+     * @param block index of the block
+     * @return True when at least one pixel of the block has been written
+     */
+    public boolean isAllocated(int block) {
+        return blocks.get(block) != null;
+    }
+
+    /**
+     * Returns a block, allocating it when needed.
+     *
+     * @param block index of the block
+     * @return the pixels of the block
+     */
+    private byte[] getOrCreateBlock(int block) {
+        byte[] pixels = blocks.get(block);
+        if (pixels == null) {
+            pixels = new byte[1 << blockShift];
+            if (!blocks.compareAndSet(block, null, pixels)) {
+                pixels = blocks.get(block);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Sets all map pixel to a specific value.
+     * <p>
+     * With a value other than 0, all blocks are allocated.
+     *
+     * @param val pixel value to use
+     */
+    @Override
+    public void fill(byte val) {
+        for (int i = 0; i < blocks.length(); i++) {
+            if (val == 0) {
+                blocks.set(i, null);
+            } else {
+                Arrays.fill(getOrCreateBlock(i), val);
+            }
+        }
+    }
+
+    @Override
+    public byte get(long ipix) {
+        byte[] pixels = blocks.get((int) (ipix >>> blockShift));
+        return (pixels == null) ? 0 : pixels[(int) (ipix & blockMask)];
+    }
+
+    @Override
+    public void set(long ipix, byte val) {
+        int block = (int) (ipix >>> blockShift);
+        if (val != 0 || blocks.get(block) != null) {
+            getOrCreateBlock(block)[(int) (ipix & blockMask)] = val;
+        }
+    }
+
+    @Override
+    public void getPixels(long first, byte[] dest, int offset, int length) {
+        while (length > 0) {
+            int start = (int) (first & blockMask);
+            int n = (int) Math.min(length, (1L << blockShift) - start);
+            byte[] pixels = blocks.get((int) (first >>> blockShift));
+            if (pixels == null) {
+                Arrays.fill(dest, offset, offset + n, (byte) 0);
+            } else {
+                System.arraycopy(pixels, start, dest, offset, n);
+            }
+            first += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void setPixels(long first, byte[] src, int offset, int length) {
+        while (length > 0) {
+            int block = (int) (first >>> blockShift);
+            int start = (int) (first & blockMask);
+            int n = (int) Math.min(length, (1L << blockShift) - start);
+            if (blocks.get(block) != null || !isZero(src, offset, n)) {
+                System.arraycopy(src, offset, getOrCreateBlock(block), start, n);
+            }
+            first += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public boolean isEmpty(long begin, long end) {
+        while (begin < end) {
+            int start = (int) (begin & blockMask);
+            int n = (int) Math.min(end - begin, (1L << blockShift) - start);
+            byte[] pixels = blocks.get((int) (begin >>> blockShift));
+            if (pixels != null && !isZero(pixels, start, n)) {
+                return false;
+            }
+            begin += n;
+        }
+        return true;
+    }
+
+    /**
+     * Tests whether a part of an array contains only 0.
+     *
+     * @param array array to test
+     * @param offset first element
+     * @param length number of elements
+     * @return True when all elements are 0 otherwise False
+     */
+    private static boolean isZero(final byte[] array, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (array[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
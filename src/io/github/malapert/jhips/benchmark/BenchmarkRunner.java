@@ -0,0 +1,468 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs micro-benchmarks and reports their throughput and allocation rate.
+ * <p>
+ * Each benchmark is run for {@link #getWarmupIterations()} iterations that
+ * are not measured, so that the JIT compiles the code, then for
+ * {@link #getMeasurementIterations()} measured iterations. An iteration calls
+ * the workload in batches until {@link #getIterationTime()} milliseconds are
+ * elapsed. The reported score is the mean throughput of the measured
+ * iterations with its standard deviation.
+ * <p>
+ * The allocation of the benchmark thread is read from the JVM when it
+ * supports it (HotSpot), along with the number and the time of the garbage
+ * collections, like the gc profiler of JMH.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Duration of a batch above which the batch size is no longer doubled, in
+     * nanoseconds.
+     */
+    private static final long MIN_BATCH_TIME = 100000L;
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationTime = 1000;
+    private File csvFile;
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * Consumes the results of the workloads.
+     */
+    private volatile long blackhole;
+
+    /**
+     * Returns the number of iterations that are not measured.
+     *
+     * @return the number of warmup iterations
+     */
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    /**
+     * Sets the number of iterations that are not measured.
+     *
+     * @param warmupIterations the number of warmup iterations
+     */
+    public void setWarmupIterations(int warmupIterations) {
+        if (warmupIterations < 0) {
+            throw new IllegalArgumentException("warmupIterations must be positive: " + warmupIterations);
+        }
+        this.warmupIterations = warmupIterations;
+    }
+
+    /**
+     * Returns the number of measured iterations.
+     *
+     * @return the number of measured iterations
+     */
+    public int getMeasurementIterations() {
+        return measurementIterations;
+    }
+
+    /**
+     * Sets the number of measured iterations.
+     *
+     * @param measurementIterations the number of measured iterations, at
+     * least 1
+     */
+    public void setMeasurementIterations(int measurementIterations) {
+        if (measurementIterations < 1) {
+            throw new IllegalArgumentException("measurementIterations must be at least 1: " + measurementIterations);
+        }
+        this.measurementIterations = measurementIterations;
+    }
+
+    /**
+     * Returns the duration of an iteration.
+     *
+     * @return the duration in milliseconds
+     */
+    public long getIterationTime() {
+        return iterationTime;
+    }
+
+    /**
+     * Sets the duration of an iteration.
+     *
+     * @param iterationTime the duration in milliseconds, at least 1
+     */
+    public void setIterationTime(long iterationTime) {
+        if (iterationTime < 1) {
+            throw new IllegalArgumentException("iterationTime must be at least 1: " + iterationTime);
+        }
+        this.iterationTime = iterationTime;
+    }
+
+    /**
+     * Returns the file where the results are written in CSV.
+     *
+     * @return the CSV file or null
+     */
+    public File getCsvFile() {
+        return csvFile;
+    }
+
+    /**
+     * Sets the file where the results are written in CSV, so that the
+     * results of two releases can be compared.
+     *
+     * @param csvFile the CSV file or null
+     */
+    public void setCsvFile(final File csvFile) {
+        this.csvFile = csvFile;
+    }
+
+    /**
+     * Reads the options of the runner from the command line.
+     * <p>
+     * The options are -wi (warmup iterations), -i (measured iterations),
+     * -t (iteration time in milliseconds) and -csv (CSV file).
+     *
+     * @param args the command line arguments
+     * @return the arguments that are not options of the runner
+     */
+    public List<String> configure(final String[] args) {
+        List<String> remaining = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if ("-wi".equals(arg) && hasValue) {
+                setWarmupIterations(Integer.parseInt(args[++i]));
+            } else if ("-i".equals(arg) && hasValue) {
+                setMeasurementIterations(Integer.parseInt(args[++i]));
+            } else if ("-t".equals(arg) && hasValue) {
+                setIterationTime(Long.parseLong(args[++i]));
+            } else if ("-csv".equals(arg) && hasValue) {
+                setCsvFile(new File(args[++i]));
+            } else {
+                remaining.add(arg);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns the results of the benchmarks run so far.
+     *
+     * @return the results
+     */
+    public List<Result> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Runs a benchmark.
+     *
+     * @param name name of the benchmark
+     * @param params parameters of the benchmark, for instance its order
+     * @param workload operation to measure
+     * @return the result of the benchmark
+     * @throws Exception error in the workload
+     */
+    public Result run(final String name, final String params, final Workload workload) throws Exception {
+        int invocation = 0;
+        long batch = 1;
+        for (int i = 0; i < warmupIterations; i++) {
+            Iteration iteration = iterate(workload, invocation, batch);
+            invocation += (int) iteration.operations;
+            batch = iteration.batch;
+        }
+        Result result = new Result(name, params, measurementIterations);
+        for (int i = 0; i < measurementIterations; i++) {
+            long gcCount = getGcCount();
+            long gcTime = getGcTime();
+            Iteration iteration = iterate(workload, invocation, batch);
+            invocation += (int) iteration.operations;
+            batch = iteration.batch;
+            result.add(i, iteration, getGcCount() - gcCount, getGcTime() - gcTime);
+        }
+        results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Runs a workload during an iteration.
+     *
+     * @param workload operation to measure
+     * @param first number of the first invocation
+     * @param initialBatch number of invocations between two clock readings
+     * @return the measures of the iteration
+     * @throws Exception error in the workload
+     */
+    private Iteration iterate(final Workload workload, int first, long initialBatch) throws Exception {
+        final long duration = iterationTime * 1000000L;
+        int invocation = first;
+        long batch = initialBatch;
+        long operations = 0;
+        long sum = 0;
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            long batchStart = System.nanoTime();
+            for (long k = 0; k < batch; k++) {
+                sum += workload.run(invocation++);
+            }
+            operations += batch;
+            long now = System.nanoTime();
+            if (now - batchStart < MIN_BATCH_TIME) {
+                batch <<= 1;
+            }
+            elapsed = now - start;
+        } while (elapsed < duration);
+        allocated = getAllocatedBytes() - allocated;
+        blackhole ^= sum;
+        return new Iteration(operations, elapsed, allocated, batch);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread.
+     *
+     * @return the number of bytes or -1 when the JVM does not measure it
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of garbage collections since the start of the JVM.
+     *
+     * @return the number of collections
+     */
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the time spent in garbage collections since the start of the
+     * JVM.
+     *
+     * @return the time in milliseconds
+     */
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Prints the results as a table.
+     *
+     * @param out stream where the table is printed
+     */
+    public void printResults(final PrintStream out) {
+        out.println(String.format(Locale.ROOT, "%-28s %-22s %16s %12s %12s %12s %10s %10s",
+                "Benchmark", "Params", "Score(ops/s)", "Error", "B/op", "MB/s", "gc.count", "gc.time"));
+        for (Result result : results) {
+            out.println(result);
+        }
+    }
+
+    /**
+     * Writes the results in the CSV file, when it is set.
+     *
+     * @throws IOException error when writing the file
+     */
+    public void writeCsv() throws IOException {
+        if (csvFile == null) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(csvFile, "UTF-8")) {
+            out.println("benchmark,params,score_ops_per_s,error_ops_per_s,alloc_bytes_per_op,alloc_mb_per_s,gc_count,gc_time_ms");
+            for (Result result : results) {
+                out.println(String.format(Locale.ROOT, "%s,%s,%.3f,%.3f,%.1f,%.3f,%d,%d",
+                        result.getName(), result.getParams(), result.getScore(), result.getError(),
+                        result.getBytesPerOperation(), result.getAllocationRate(), result.getGcCount(), result.getGcTime()));
+            }
+        }
+    }
+
+    /**
+     * Measures of an iteration.
+     */
+    private static final class Iteration {
+
+        private final long operations;
+        private final long elapsed;
+        private final long allocated;
+        private final long batch;
+
+        Iteration(long operations, long elapsed, long allocated, long batch) {
+            this.operations = operations;
+            this.elapsed = elapsed;
+            this.allocated = allocated;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * Result of a benchmark.
+     */
+    public static final class Result {
+
+        private final String name;
+        private final String params;
+        private final double[] throughputs;
+        private long operations;
+        private long elapsed;
+        private long allocated;
+        private long gcCount;
+        private long gcTime;
+
+        Result(final String name, final String params, int iterations) {
+            this.name = name;
+            this.params = params;
+            this.throughputs = new double[iterations];
+        }
+
+        /**
+         * Adds the measures of an iteration.
+         */
+        void add(int i, final Iteration iteration, long gcCount, long gcTime) {
+            throughputs[i] = iteration.operations * 1e9 / iteration.elapsed;
+            this.operations += iteration.operations;
+            this.elapsed += iteration.elapsed;
+            this.allocated = (iteration.allocated < 0 || allocated < 0) ? -1 : allocated + iteration.allocated;
+            this.gcCount += gcCount;
+            this.gcTime += gcTime;
+        }
+
+        /**
+         * Returns the name of the benchmark.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the parameters of the benchmark.
+         *
+         * @return the parameters
+         */
+        public String getParams() {
+            return params;
+        }
+
+        /**
+         * Returns the mean throughput of the measured iterations.
+         *
+         * @return the number of operations per second
+         */
+        public double getScore() {
+            double sum = 0;
+            for (double throughput : throughputs) {
+                sum += throughput;
+            }
+            return sum / throughputs.length;
+        }
+
+        /**
+         * Returns the standard deviation of the throughput of the measured
+         * iterations.
+         *
+         * @return the standard deviation in operations per second
+         */
+        public double getError() {
+            double mean = getScore();
+            double sum = 0;
+            for (double throughput : throughputs) {
+                sum += (throughput - mean) * (throughput - mean);
+            }
+            return (throughputs.length > 1) ? Math.sqrt(sum / (throughputs.length - 1)) : 0;
+        }
+
+        /**
+         * Returns the number of bytes allocated by an operation.
+         *
+         * @return the number of bytes or NaN when it is not measured
+         */
+        public double getBytesPerOperation() {
+            return (allocated < 0) ? Double.NaN : (double) allocated / operations;
+        }
+
+        /**
+         * Returns the allocation rate.
+         *
+         * @return the number of megabytes allocated per second or NaN when it
+         * is not measured
+         */
+        public double getAllocationRate() {
+            return (allocated < 0) ? Double.NaN : allocated * 1e9 / elapsed / (1024 * 1024);
+        }
+
+        /**
+         * Returns the number of garbage collections during the measured
+         * iterations.
+         *
+         * @return the number of collections
+         */
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        /**
+         * Returns the time spent in garbage collections during the measured
+         * iterations.
+         *
+         * @return the time in milliseconds
+         */
+        public long getGcTime() {
+            return gcTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-28s %-22s %16.1f %12.1f %12.1f %12.2f %10d %10d",
+                    name, params, getScore(), getError(), getBytesPerOperation(), getAllocationRate(), gcCount, gcTime);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.benchmark;
+
+import healpix.essentials.FastMath;
+import healpix.essentials.HealpixBase;
+import healpix.essentials.Pointing;
+import healpix.essentials.Scheme;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of the core transforms of healpix.essentials.
+ * <p>
+ * The benchmarks measure {@code pix2ang}, {@code ang2pix}, their bulk
+ * variants on batches of {@value #BATCH} pixels, {@code nest2ring}, {@code ring2nest}, {@code neighbours},
+ * {@code queryDisc}, {@code queryDiscInclusive} and {@code queryPolygon} for
+ * several orders in both schemes, and the functions of {@link FastMath}
+ * against the ones of {@link Math}. The inputs are drawn once from a seeded
+ * generator so that two runs measure the same work.
+ * <p>
+ * Usage: HealpixBenchmark [-orders 3,8,13,20 | -orders 3-20]
+ * [-benchmarks pix2ang,queryDisc,...] [-wi 3] [-i 5] [-t 1000] [-csv file]
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class HealpixBenchmark {
+
+    /**
+     * Number of inputs of the point transforms (a power of 2).
+     */
+    private static final int NB_INPUTS = 1 << 12;
+
+    /**
+     * Number of inputs of the queries (a power of 2).
+     */
+    private static final int NB_QUERIES = 1 << 6;
+
+    /**
+     * Number of pixels converted by one invocation of the bulk transforms.
+     */
+    private static final int BATCH = 1 << 8;
+
+    /**
+     * Radius of the queries, in pixels.
+     */
+    private static final double QUERY_RADIUS = 10;
+
+    /**
+     * Largest radius of the queries, in radians, reached at the low orders.
+     */
+    private static final double MAX_QUERY_RADIUS = Math.toRadians(5);
+
+    /**
+     * Oversampling factor of the inclusive queries.
+     */
+    private static final int INCLUSIVE_FACTOR = 4;
+
+    /**
+     * Seed of the inputs.
+     */
+    private static final long SEED = 42;
+
+    private final BenchmarkRunner runner;
+    private final List<String> benchmarks;
+
+    /**
+     * Creates the benchmarks.
+     *
+     * @param runner runner of the benchmarks
+     * @param benchmarks names of the benchmarks to run or null to run all
+     */
+    public HealpixBenchmark(final BenchmarkRunner runner, final List<String> benchmarks) {
+        this.runner = runner;
+        this.benchmarks = benchmarks;
+    }
+
+    /**
+     * Main program.
+     *
+     * @param args the command line arguments
+     * @throws Exception error in a benchmark
+     */
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        List<String> remaining = runner.configure(args);
+        int[] orders = {3, 8, 13, 20};
+        List<String> benchmarks = null;
+        for (int i = 0; i + 1 < remaining.size(); i += 2) {
+            if ("-orders".equals(remaining.get(i))) {
+                orders = parseOrders(remaining.get(i + 1));
+            } else if ("-benchmarks".equals(remaining.get(i))) {
+                benchmarks = Arrays.asList(remaining.get(i + 1).split(","));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + remaining.get(i));
+            }
+        }
+        HealpixBenchmark benchmark = new HealpixBenchmark(runner, benchmarks);
+        benchmark.runMath();
+        for (int order : orders) {
+            benchmark.runConversions(order);
+            benchmark.run(order, Scheme.NESTED);
+            benchmark.run(order, Scheme.RING);
+        }
+        System.out.println();
+        runner.printResults(System.out);
+        runner.writeCsv();
+    }
+
+    /**
+     * Parses a list of orders, either separated by commas or as a range.
+     *
+     * @param value list of orders (3,8,13) or range of orders (3-20)
+     * @return the orders
+     */
+    static int[] parseOrders(final String value) {
+        if (value.contains("-")) {
+            String[] bounds = value.split("-");
+            int first = Integer.parseInt(bounds[0]);
+            int last = Integer.parseInt(bounds[1]);
+            int[] orders = new int[last - first + 1];
+            for (int i = 0; i < orders.length; i++) {
+                orders[i] = first + i;
+            }
+            return orders;
+        }
+        String[] values = value.split(",");
+        int[] orders = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            orders[i] = Integer.parseInt(values[i].trim());
+        }
+        return orders;
+    }
+
+    /**
+     * Tests whether a benchmark is selected.
+     *
+     * @param name name of the benchmark
+     * @return True when the benchmark is run
+     */
+    private boolean isSelected(final String name) {
+        return benchmarks == null || benchmarks.contains(name);
+    }
+
+    /**
+     * Runs a benchmark when it is selected.
+     *
+     * @param name name of the benchmark
+     * @param params parameters of the benchmark
+     * @param workload operation to measure
+     * @throws Exception error in the workload
+     */
+    private void run(final String name, final String params, final Workload workload) throws Exception {
+        if (isSelected(name)) {
+            runner.run(name, params, workload);
+        }
+    }
+
+    /**
+     * Runs the benchmarks of the point transforms and of the queries for an
+     * order and a scheme.
+     *
+     * @param order order of the Healpix index
+     * @param scheme scheme of the Healpix index
+     * @throws Exception Healpix error
+     */
+    public void run(int order, final Scheme scheme) throws Exception {
+        final HealpixBase hpx = new HealpixBase(1L << order, scheme);
+        final long[] pixels = createPixels(hpx, NB_INPUTS);
+        final Pointing[] pointings = createPointings(NB_INPUTS, 0);
+        final double[] ptg = new double[3];
+        final int mask = NB_INPUTS - 1;
+        String params = "order=" + order + " " + scheme;
+
+        run("pix2ang", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                Pointing pointing = hpx.pix2ang(pixels[i & mask]);
+                return Double.doubleToRawLongBits(pointing.theta + pointing.phi);
+            }
+        });
+        run("pix2ang(double[])", params, new Workload() {
+            @Override
+            public long run(int i) {
+                hpx.pix2ang(pixels[i & mask], ptg);
+                return Double.doubleToRawLongBits(ptg[0] + ptg[1]);
+            }
+        });
+        run("ang2pix", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                return hpx.ang2pix(pointings[i & mask]);
+            }
+        });
+        final long firstMax = hpx.getNpix() - BATCH;
+        final double[] theta = new double[BATCH];
+        final double[] phi = new double[BATCH];
+        final double[] z = new double[BATCH];
+        final long[] batch = new long[BATCH];
+        String batchParams = params + " batch=" + BATCH;
+        run("pix2ang(bulk)", batchParams, new Workload() {
+            @Override
+            public long run(int i) {
+                hpx.pix2ang(Math.min(pixels[i & mask], firstMax), BATCH, theta, phi);
+                return Double.doubleToRawLongBits(theta[BATCH - 1] + phi[BATCH - 1]);
+            }
+        });
+        run("pix2vec(bulk)", batchParams, new Workload() {
+            @Override
+            public long run(int i) {
+                hpx.pix2vec(Math.min(pixels[i & mask], firstMax), BATCH, theta, phi, z);
+                return Double.doubleToRawLongBits(theta[BATCH - 1] + phi[BATCH - 1] + z[BATCH - 1]);
+            }
+        });
+        final double[] batchTheta = new double[BATCH];
+        final double[] batchPhi = new double[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            batchTheta[i] = pointings[i].theta;
+            batchPhi[i] = pointings[i].phi;
+        }
+        run("ang2pix(bulk)", batchParams, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                hpx.ang2pix(batchTheta, batchPhi, BATCH, batch);
+                return batch[i & (BATCH - 1)];
+            }
+        });
+        run("neighbours", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                return hpx.neighbours(pixels[i & mask])[0];
+            }
+        });
+
+        final double radius = Math.min(MAX_QUERY_RADIUS, QUERY_RADIUS * hpx.maxPixrad());
+        final Pointing[] centers = createPointings(NB_QUERIES, radius);
+        final Pointing[][] polygons = new Pointing[NB_QUERIES][];
+        for (int i = 0; i < NB_QUERIES; i++) {
+            polygons[i] = createTriangle(centers[i], radius);
+        }
+        final int queryMask = NB_QUERIES - 1;
+        run("queryDisc", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                return hpx.queryDisc(centers[i & queryMask], radius).nranges();
+            }
+        });
+        run("queryDiscInclusive", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                return hpx.queryDiscInclusive(centers[i & queryMask], radius, INCLUSIVE_FACTOR).nranges();
+            }
+        });
+        run("queryPolygon", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                return hpx.queryPolygon(polygons[i & queryMask]).nranges();
+            }
+        });
+    }
+
+    /**
+     * Runs the benchmarks of the conversions between the schemes for an
+     * order.
+     *
+     * @param order order of the Healpix index
+     * @throws Exception Healpix error
+     */
+    public void runConversions(int order) throws Exception {
+        final HealpixBase hpx = new HealpixBase(1L << order, Scheme.NESTED);
+        final long[] pixels = createPixels(hpx, NB_INPUTS);
+        final int mask = NB_INPUTS - 1;
+        String params = "order=" + order;
+        run("nest2ring", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                return hpx.nest2ring(pixels[i & mask]);
+            }
+        });
+        run("ring2nest", params, new Workload() {
+            @Override
+            public long run(int i) throws Exception {
+                return hpx.ring2nest(pixels[i & mask]);
+            }
+        });
+    }
+
+    /**
+     * Runs the benchmarks of {@link FastMath} and {@link Math}.
+     */
+    public void runMath() throws Exception {
+        Random random = new Random(SEED);
+        final double[] x = new double[NB_INPUTS];
+        final double[] y = new double[NB_INPUTS];
+        final double[] unit = new double[NB_INPUTS];
+        for (int i = 0; i < NB_INPUTS; i++) {
+            x[i] = 2 * random.nextDouble() - 1;
+            y[i] = 2 * random.nextDouble() - 1;
+            unit[i] = 2 * random.nextDouble() - 1;
+        }
+        final int mask = NB_INPUTS - 1;
+        run("FastMath.atan2", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(FastMath.atan2(y[i & mask], x[i & mask]));
+            }
+        });
+        run("Math.atan2", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(Math.atan2(y[i & mask], x[i & mask]));
+            }
+        });
+        run("FastMath.acos", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(FastMath.acos(unit[i & mask]));
+            }
+        });
+        run("Math.acos", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(Math.acos(unit[i & mask]));
+            }
+        });
+        run("FastMath.asin", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(FastMath.asin(unit[i & mask]));
+            }
+        });
+        run("Math.asin", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(Math.asin(unit[i & mask]));
+            }
+        });
+        run("FastMath.sin", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(FastMath.sin(Math.PI * x[i & mask]));
+            }
+        });
+        run("Math.sin", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(Math.sin(Math.PI * x[i & mask]));
+            }
+        });
+        run("FastMath.cos", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(FastMath.cos(Math.PI * x[i & mask]));
+            }
+        });
+        run("Math.cos", "", new Workload() {
+            @Override
+            public long run(int i) {
+                return Double.doubleToRawLongBits(Math.cos(Math.PI * x[i & mask]));
+            }
+        });
+    }
+
+    /**
+     * Draws pixels uniformly.
+     *
+     * @param hpx Healpix index
+     * @param nb number of pixels
+     * @return the pixels
+     */
+    private static long[] createPixels(final HealpixBase hpx, int nb) {
+        Random random = new Random(SEED);
+        long[] pixels = new long[nb];
+        for (int i = 0; i < nb; i++) {
+            pixels[i] = (long) (random.nextDouble() * hpx.getNpix());
+        }
+        return pixels;
+    }
+
+    /**
+     * Draws positions uniformly on the sphere, at a distance from the poles.
+     *
+     * @param nb number of positions
+     * @param margin smallest distance to the poles in radians
+     * @return the positions
+     */
+    private static List<Pointing> createPointingList(int nb, double margin) {
+        Random random = new Random(SEED);
+        List<Pointing> pointings = new ArrayList<>(nb);
+        while (pointings.size() < nb) {
+            double theta = Math.acos(2 * random.nextDouble() - 1);
+            if (theta > margin && theta < Math.PI - margin) {
+                pointings.add(new Pointing(theta, 2 * Math.PI * random.nextDouble()));
+            }
+        }
+        return pointings;
+    }
+
+    /**
+     * Draws positions uniformly on the sphere.
+     *
+     * @param nb number of positions
+     * @param radius radius of the queries centered on the positions, kept away
+     * from the poles
+     * @return the positions
+     */
+    private static Pointing[] createPointings(int nb, double radius) {
+        return createPointingList(nb, 2 * radius).toArray(new Pointing[nb]);
+    }
+
+    /**
+     * Creates a triangle around a position.
+     *
+     * @param center center of the triangle
+     * @param radius distance between the center and the vertices in radians
+     * @return the vertices of the triangle
+     */
+    private static Pointing[] createTriangle(final Pointing center, double radius) {
+        double dphi = radius / Math.sin(center.theta);
+        return new Pointing[]{
+            new Pointing(center.theta - radius, center.phi),
+            new Pointing(center.theta + radius, center.phi - dphi),
+            new Pointing(center.theta + radius, center.phi + dphi)};
+    }
+}
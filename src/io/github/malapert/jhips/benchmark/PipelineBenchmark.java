@@ -0,0 +1,464 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.benchmark;
+
+import healpix.essentials.HealpixBase;
+import io.github.malapert.jhips.JHIPS;
+import io.github.malapert.jhips.algorithm.AbstractHealpixMapByte;
+import io.github.malapert.jhips.algorithm.HealpixMapRGB;
+import io.github.malapert.jhips.algorithm.RGBGeneration;
+import io.github.malapert.jhips.metadata.MetadataFileCollection;
+import io.github.malapert.jhips.provider.JHipsMetadataProviderInterface;
+import io.github.malapert.jhips.provider.SyntheticJHipsMetadata;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * End-to-end benchmark of the pipeline on a synthetic mosaic.
+ * <p>
+ * The mosaic is made of {@link SyntheticJHipsMetadata} frames, so that the
+ * benchmark needs no input file and measures the same work at each run. The
+ * pipeline is run by {@link JHIPS#process()} and
+ * {@link JHIPS#createRGBTiles(boolean)}, and each stage is timed: rasterize
+ * (filling the Healpix vectors), FITS write, tiling and RGB merge. For each
+ * stage, the benchmark reports the number of pixels processed per second
+ * and the peak heap.
+ * <p>
+ * Usage: PipelineBenchmark [-frames 16] [-width 512] [-height 512]
+ * [-fov 30] [-overlap 0.2] [-azimuth 0] [-elevation 0] [-order 29]
+ * [-mode HIPSGEN|COLOR|NATIVE] [-parallelism n] [-output dir] [-csv file]
+ * <p>
+ * The angles are in degrees.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class PipelineBenchmark {
+
+    /**
+     * Tile width used when the properties of the tiles cannot be read.
+     */
+    private static final int DEFAULT_TILE_WIDTH = 512;
+
+    private int nbFrames = 16;
+    private int width = 512;
+    private int height = 512;
+    private double fov = 30;
+    private double overlap = 0.2;
+    private double azimuth = 0;
+    private double elevation = 0;
+    private int order = JHIPS.ORDER_MAX;
+    private JHIPS.TilingMode mode = JHIPS.TilingMode.HIPSGEN;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private File outputDirectory = new File(System.getProperty("java.io.tmpdir"), "jhips-benchmark");
+    private File csvFile;
+    private final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * Main program.
+     *
+     * @param args the command line arguments
+     * @throws Exception error in the pipeline
+     */
+    public static void main(String[] args) throws Exception {
+        PipelineBenchmark benchmark = new PipelineBenchmark();
+        benchmark.configure(args);
+        benchmark.run();
+        benchmark.printResults(System.out);
+        benchmark.writeCsv();
+    }
+
+    /**
+     * Reads the parameters of the benchmark from the command line.
+     *
+     * @param args the command line arguments
+     */
+    public void configure(final String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-frames":
+                    nbFrames = Integer.parseInt(value);
+                    break;
+                case "-width":
+                    width = Integer.parseInt(value);
+                    break;
+                case "-height":
+                    height = Integer.parseInt(value);
+                    break;
+                case "-fov":
+                    fov = Double.parseDouble(value);
+                    break;
+                case "-overlap":
+                    overlap = Double.parseDouble(value);
+                    break;
+                case "-azimuth":
+                    azimuth = Double.parseDouble(value);
+                    break;
+                case "-elevation":
+                    elevation = Double.parseDouble(value);
+                    break;
+                case "-order":
+                    order = Integer.parseInt(value);
+                    break;
+                case "-mode":
+                    mode = JHIPS.TilingMode.valueOf(value);
+                    break;
+                case "-parallelism":
+                    parallelism = Integer.parseInt(value);
+                    break;
+                case "-output":
+                    outputDirectory = new File(value);
+                    break;
+                case "-csv":
+                    csvFile = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs the pipeline on the synthetic mosaic and measures its stages.
+     * <p>
+     * The output directory is cleared first.
+     *
+     * @throws Exception error in the pipeline
+     */
+    public void run() throws Exception {
+        stages.clear();
+        deleteDirectory(outputDirectory.toPath());
+        TimedJHIPS hips = new TimedJHIPS(order);
+        hips.setOutputDirectory(outputDirectory);
+        hips.setTilingMode(mode);
+        hips.setParallelism(parallelism);
+        hips.addFiles(SyntheticJHipsMetadata.createMosaic(nbFrames, width, height, Math.toRadians(fov), overlap, Math.toRadians(azimuth), Math.toRadians(elevation)));
+        hips.process();
+        if (mode == JHIPS.TilingMode.HIPSGEN) {
+            resetPeakHeap();
+            long start = System.nanoTime();
+            hips.createRGBTiles(false);
+            long elapsed = System.nanoTime() - start;
+            File colorDirectory = new File(outputDirectory, RGBGeneration.COLOR_DIRECTORY);
+            long tileWidth = getTileWidth(colorDirectory);
+            stages.add(new Stage("RGB merge", elapsed, countTiles(colorDirectory) * tileWidth * tileWidth, getPeakHeap()));
+        }
+    }
+
+    /**
+     * Returns the measured stages.
+     *
+     * @return the stages in the order of the pipeline
+     */
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Prints the measures of the stages as a table.
+     *
+     * @param out stream where the table is printed
+     */
+    public void printResults(final PrintStream out) {
+        out.println(String.format(Locale.ROOT, "%d frames of %dx%d, fov=%.2f deg, overlap=%.2f, mode=%s, parallelism=%d",
+                nbFrames, width, height, fov, overlap, mode, parallelism));
+        out.println(String.format(Locale.ROOT, "%-12s %12s %16s %14s %16s", "Stage", "Time(s)", "Pixels", "Mpixels/s", "PeakHeap(MB)"));
+        for (Stage stage : stages) {
+            out.println(stage);
+        }
+    }
+
+    /**
+     * Writes the measures of the stages in the CSV file, when it is set.
+     *
+     * @throws IOException error when writing the file
+     */
+    public void writeCsv() throws IOException {
+        if (csvFile == null) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(csvFile, "UTF-8")) {
+            out.println("stage,time_s,pixels,mpixels_per_s,peak_heap_mb,frames,width,height,fov_deg,overlap,mode,parallelism");
+            for (Stage stage : stages) {
+                out.println(String.format(Locale.ROOT, "%s,%.3f,%d,%.3f,%.1f,%d,%d,%d,%.3f,%.3f,%s,%d",
+                        stage.getName(), stage.getTime(), stage.getPixels(), stage.getThroughput(), stage.getPeakHeap(),
+                        nbFrames, width, height, fov, overlap, mode, parallelism));
+            }
+        }
+    }
+
+    /**
+     * Resets the peak usage of the heap pools.
+     */
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the peak usage of the heap pools since the last reset.
+     *
+     * @return the peak heap in bytes
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Returns the width of the tiles of a HIPS.
+     *
+     * @param hipsDirectory HIPS directory
+     * @return the tile width in pixels
+     */
+    private static int getTileWidth(final File hipsDirectory) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(new File(hipsDirectory, "properties"))) {
+            properties.load(in);
+            return Integer.parseInt(properties.getProperty("hips_tile_width", String.valueOf(DEFAULT_TILE_WIDTH)));
+        } catch (IOException | NumberFormatException ex) {
+            return DEFAULT_TILE_WIDTH;
+        }
+    }
+
+    /**
+     * Counts the tiles of a HIPS.
+     *
+     * @param hipsDirectory HIPS directory
+     * @return the number of tiles
+     * @throws IOException error when listing the tiles
+     */
+    private static long countTiles(final File hipsDirectory) throws IOException {
+        final long[] count = new long[1];
+        Files.walkFileTree(hipsDirectory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("Npix") && (name.endsWith(".png") || name.endsWith(".jpg"))) {
+                    count[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Deletes recursively a directory, when it exists.
+     *
+     * @param directory directory to delete
+     * @throws IOException error when deleting a file
+     */
+    private static void deleteDirectory(final Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * JHIPS measuring the stages of {@link JHIPS#process()}.
+     */
+    private final class TimedJHIPS extends JHIPS {
+
+        /**
+         * Number of pixels of the Healpix vectors of the run.
+         */
+        private long npix;
+
+        TimedJHIPS(int order) {
+            super(order);
+        }
+
+        @Override
+        protected AbstractHealpixMapByte[] createHealpixMaps(final MetadataFileCollection files, final HealpixBase hpx) throws Exception {
+            npix = hpx.getNpix();
+            long pixels = getRasterizedPixels(files, hpx);
+            resetPeakHeap();
+            long start = System.nanoTime();
+            AbstractHealpixMapByte[] maps = super.createHealpixMaps(files, hpx);
+            stages.add(new Stage("rasterize", System.nanoTime() - start, pixels, getPeakHeap()));
+            return maps;
+        }
+
+        @Override
+        protected HealpixMapRGB createColorHealpixVector(final MetadataFileCollection files, final HealpixBase hpx) throws Exception {
+            npix = hpx.getNpix();
+            long pixels = getRasterizedPixels(files, hpx);
+            resetPeakHeap();
+            long start = System.nanoTime();
+            HealpixMapRGB map = super.createColorHealpixVector(files, hpx);
+            stages.add(new Stage("rasterize", System.nanoTime() - start, pixels, getPeakHeap()));
+            return map;
+        }
+
+        @Override
+        protected List<String> createHealpixVector(final MetadataFileCollection files, final HealpixBase hpx) throws Exception {
+            long start = System.nanoTime();
+            List<String> result = super.createHealpixVector(files, hpx);
+            long elapsed = System.nanoTime() - start;
+            Stage rasterize = stages.get(stages.size() - 1);
+            stages.add(new Stage("FITS write", elapsed - rasterize.elapsed, 3 * npix, getPeakHeap()));
+            return result;
+        }
+
+        @Override
+        protected void generateHips(final List<String> filesHMapToProcess, final JHipsMetadataProviderInterface metadata) throws IOException {
+            resetPeakHeap();
+            long start = System.nanoTime();
+            super.generateHips(filesHMapToProcess, metadata);
+            stages.add(new Stage("tiling", System.nanoTime() - start, 3 * npix, getPeakHeap()));
+        }
+
+        @Override
+        protected void generateColorHips(final HealpixMapRGB hpxRGB, final JHipsMetadataProviderInterface metadata) throws Exception {
+            resetPeakHeap();
+            long start = System.nanoTime();
+            super.generateColorHips(hpxRGB, metadata);
+            stages.add(new Stage("tiling", System.nanoTime() - start, npix, getPeakHeap()));
+        }
+
+        @Override
+        protected void generateNativeHips(final AbstractHealpixMapByte[] hpxBytes, final JHipsMetadataProviderInterface metadata) throws Exception {
+            resetPeakHeap();
+            long start = System.nanoTime();
+            super.generateNativeHips(hpxBytes, metadata);
+            stages.add(new Stage("tiling", System.nanoTime() - start, npix, getPeakHeap()));
+        }
+
+        /**
+         * Returns the number of pixels that are rasterized.
+         *
+         * @param files files to project
+         * @param hpx Healpix index
+         * @return the number of pixels of the footprint, or of the sphere
+         */
+        private long getRasterizedPixels(final MetadataFileCollection files, final HealpixBase hpx) {
+            return isFootprintDriven() ? files.getFootprint(hpx.getOrder()).nval() : hpx.getNpix();
+        }
+    }
+
+    /**
+     * Measures of a stage of the pipeline.
+     */
+    public static final class Stage {
+
+        private final String name;
+        private final long elapsed;
+        private final long pixels;
+        private final long peakHeap;
+
+        Stage(final String name, long elapsed, long pixels, long peakHeap) {
+            this.name = name;
+            this.elapsed = elapsed;
+            this.pixels = pixels;
+            this.peakHeap = peakHeap;
+        }
+
+        /**
+         * Returns the name of the stage.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the duration of the stage.
+         *
+         * @return the duration in seconds
+         */
+        public double getTime() {
+            return elapsed * 1e-9;
+        }
+
+        /**
+         * Returns the number of pixels processed by the stage.
+         * <p>
+         * It is the number of filled Healpix pixels for the rasterization,
+         * the number of Healpix pixels of all channels for the FITS write and
+         * the tiling, and the number of color tile pixels for the RGB merge.
+         *
+         * @return the number of pixels
+         */
+        public long getPixels() {
+            return pixels;
+        }
+
+        /**
+         * Returns the throughput of the stage.
+         *
+         * @return the number of millions of pixels per second
+         */
+        public double getThroughput() {
+            return pixels / (elapsed * 1e-9) / 1e6;
+        }
+
+        /**
+         * Returns the peak heap during the stage.
+         *
+         * @return the peak heap in megabytes
+         */
+        public double getPeakHeap() {
+            return peakHeap / (1024.0 * 1024.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-12s %12.3f %16d %14.2f %16.1f", name, getTime(), pixels, getThroughput(), getPeakHeap());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.benchmark;
+
+/**
+ * Operation measured by the {@link BenchmarkRunner}.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public interface Workload {
+
+    /**
+     * Runs the operation once.
+     * <p>
+     * The result must depend on the work done, so that the JIT cannot remove
+     * it; it is consumed by the runner.
+     *
+     * @param i number of the invocation, used to pick an input with
+     * {@code i & (n - 1)} where n is a power of 2; it wraps around after
+     * {@link Integer#MAX_VALUE} invocations
+     * @return a value computed by the operation
+     * @throws Exception error in the operation
+     */
+    long run(int i) throws Exception;
+}
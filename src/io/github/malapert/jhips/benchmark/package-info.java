@@ -0,0 +1,5 @@
+/**
+This package contains the benchmarks of JHips.<br/>
+
+*/
+package io.github.malapert.jhips.benchmark;
@@ -0,0 +1,180 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.metadata;
+
+import cds.moc.HealpixMoc;
+import cds.moc.MocCell;
+import io.github.malapert.jhips.provider.JHipsMetadata;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Inverted index from the NESTED cells of a coarse order to the files whose
+ * spatial index intersects them.
+ * <p>
+ * The index replaces the scan of all files for each pixel of the map: a pixel
+ * is only tested against the files that are registered in its coarse cell.
+ * For each cell, the files are sorted by their position in the collection so
+ * that the first file containing a pixel is the same as with a linear scan.
+ * <p>
+ * The index is immutable once built and can be shared between threads.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public final class CoverageIndex {
+
+    /**
+     * Highest order of the coarse cells.
+     */
+    public static final int COARSE_ORDER = 7;
+
+    /**
+     * Used for the cells without any file.
+     */
+    private static final int[] NO_FILE = new int[0];
+
+    /**
+     * Order of the map pixels.
+     */
+    private final int mapOrder;
+
+    /**
+     * Order of the coarse cells.
+     */
+    private final int coarseOrder;
+
+    /**
+     * Number of files indexed.
+     */
+    private final int nbFiles;
+
+    /**
+     * Position of the files in the collection, for each coarse cell.
+     */
+    private final int[][] cells;
+
+    /**
+     * Builds the index of the files for a map.
+     *
+     * @param files files to index
+     * @param mapOrder order of the map pixels that are looked up
+     */
+    public CoverageIndex(final List<JHipsMetadata> files, int mapOrder) {
+        this.mapOrder = mapOrder;
+        this.coarseOrder = Math.min(COARSE_ORDER, mapOrder);
+        this.nbFiles = files.size();
+        int nbCells = 12 << (2 * this.coarseOrder);
+        int[] counts = new int[nbCells];
+        int[] lastFile = new int[nbCells];
+        Arrays.fill(lastFile, -1);
+        for (int i = 0; i < nbFiles; i++) {
+            visit(files.get(i).getIndex(), i, lastFile, counts, null);
+        }
+        this.cells = new int[nbCells][];
+        for (int cell = 0; cell < nbCells; cell++) {
+            this.cells[cell] = (counts[cell] == 0) ? NO_FILE : new int[counts[cell]];
+        }
+        Arrays.fill(lastFile, -1);
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < nbFiles; i++) {
+            visit(files.get(i).getIndex(), i, lastFile, counts, this.cells);
+        }
+    }
+
+    /**
+     * Registers a file in the coarse cells that its spatial index intersects.
+     * <p>
+     * When cells is null, the files of each cell are only counted.
+     *
+     * @param moc spatial index of the file
+     * @param file position of the file in the collection
+     * @param lastFile last file registered in each cell
+     * @param counts number of files registered in each cell
+     * @param cells files of each cell
+     */
+    private void visit(final HealpixMoc moc, int file, final int[] lastFile, final int[] counts, final int[][] cells) {
+        if (moc == null) {
+            return;
+        }
+        Iterator<MocCell> iter = moc.iterator();
+        while (iter.hasNext()) {
+            MocCell mocCell = iter.next();
+            long first;
+            long last;
+            if (mocCell.order >= coarseOrder) {
+                first = mocCell.npix >>> (2 * (mocCell.order - coarseOrder));
+                last = first;
+            } else {
+                int shift = 2 * (coarseOrder - mocCell.order);
+                first = mocCell.npix << shift;
+                last = ((mocCell.npix + 1) << shift) - 1;
+            }
+            for (long cell = first; cell <= last; cell++) {
+                int c = (int) cell;
+                if (lastFile[c] != file) {
+                    lastFile[c] = file;
+                    if (cells != null) {
+                        cells[c][counts[c]] = file;
+                    }
+                    counts[c]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the order of the map pixels.
+     *
+     * @return the map order
+     */
+    public int getMapOrder() {
+        return mapOrder;
+    }
+
+    /**
+     * Returns the order of the coarse cells.
+     *
+     * @return the coarse order
+     */
+    public int getCoarseOrder() {
+        return coarseOrder;
+    }
+
+    /**
+     * Returns the number of files indexed.
+     *
+     * @return the number of files
+     */
+    public int getNbFiles() {
+        return nbFiles;
+    }
+
+    /**
+     * Returns the files that may contain a pixel of the map.
+     * <p>
+     * The returned array must not be modified.
+     *
+     * @param pixel NESTED pixel at the map order
+     * @return the position of the files in the collection, in ascending order
+     */
+    public int[] getCandidates(long pixel) {
+        return cells[(int) (pixel >>> (2 * (mapOrder - coarseOrder)))];
+    }
+}
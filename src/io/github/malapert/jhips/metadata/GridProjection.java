@@ -0,0 +1,243 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.metadata;
+
+import healpix.essentials.HealpixBase;
+import io.github.malapert.jhips.provider.JHipsMetadata;
+import java.util.Arrays;
+
+/**
+ * Projection of Healpix pixels on the frames, interpolated on an adaptive
+ * grid.
+ * <p>
+ * The NESTED pixels are grouped in blocks of 2<sup>{@value #BLOCK_ORDER}</sup>
+ * x 2<sup>{@value #BLOCK_ORDER}</sup> pixels, which are square cells of a
+ * Healpix face. The first time a pixel of a block is projected on a frame, the
+ * exact position in the camera of the four corners of the block is computed
+ * and the other pixels are interpolated bilinearly. The interpolation is
+ * checked at the center and at the middle of the edges of the cell: when the
+ * distance to the exact position exceeds the tolerance, or when a position
+ * cannot be projected, the cell is split in its four NESTED children. Cells of
+ * 2x2 pixels are projected exactly.
+ * <p>
+ * On smooth projections (CAR, TAN), most blocks are computed from 9 exact
+ * projections instead of one projection per pixel. Discontinuities that fall
+ * between the checked positions of a cell are not detected, so the tolerance
+ * bounds the error on smooth geometries only.
+ * <p>
+ * An instance keeps the current block of each frame and must not be shared
+ * between threads.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class GridProjection {
+
+    /**
+     * Order of the width of the blocks in pixels.
+     */
+    public static final int BLOCK_ORDER = 5;
+
+    private final HealpixBase hpx;
+    private final double tolerance2;
+    private final int blockOrder;
+    private final Block[] blocks;
+    private final double[] vec = new double[3];
+    private final double[] xy = new double[2];
+    private long projectionFailures;
+
+    /**
+     * Creates a projection.
+     *
+     * @param hpx NESTED Healpix index of the pixels
+     * @param nbFiles number of frames of the collection
+     * @param tolerance largest distance in pixels of the camera between an
+     * interpolated position and the exact one
+     */
+    public GridProjection(final HealpixBase hpx, int nbFiles, double tolerance) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("tolerance must be strictly positive: " + tolerance);
+        }
+        this.hpx = hpx;
+        this.tolerance2 = tolerance * tolerance;
+        this.blockOrder = Math.min(BLOCK_ORDER, hpx.getOrder());
+        this.blocks = new Block[nbFiles];
+    }
+
+    /**
+     * Returns the Healpix index of the pixels.
+     *
+     * @return the Healpix index
+     */
+    public HealpixBase getHealpixBase() {
+        return hpx;
+    }
+
+    /**
+     * Returns the number of positions that could not be projected on a
+     * frame.
+     *
+     * @return the number of failed projections
+     */
+    public long getProjectionFailures() {
+        return projectionFailures;
+    }
+
+    /**
+     * Returns the color of a pixel in a frame.
+     *
+     * @param file the frame
+     * @param index index of the frame in the collection
+     * @param pixel NESTED pixel
+     * @return the packed ARGB color or {@link JHipsMetadata#EMPTY_RGB}
+     */
+    public int getPackedRGB(final JHipsMetadata file, int index, long pixel) {
+        Block block = blocks[index];
+        long first = (pixel >>> (2 * blockOrder)) << (2 * blockOrder);
+        if (block == null) {
+            block = new Block(1 << (2 * blockOrder));
+            blocks[index] = block;
+        }
+        if (block.first != first) {
+            block.first = first;
+            Arrays.fill(block.x, Double.NaN);
+            subdivide(file, block, 0, blockOrder);
+        }
+        int offset = (int) (pixel - first);
+        double x = block.x[offset];
+        return Double.isNaN(x) ? JHipsMetadata.EMPTY_RGB : file.getPackedRGBAt(x, block.y[offset]);
+    }
+
+    /**
+     * Computes the positions of a cell of a block, splitting it until the
+     * interpolation is within the tolerance.
+     *
+     * @param file the frame
+     * @param block the block
+     * @param offset offset of the first pixel of the cell in the block
+     * @param order order of the width of the cell
+     */
+    private void subdivide(final JHipsMetadata file, final Block block, int offset, int order) {
+        int width = 1 << order;
+        if (order <= 1) {
+            for (int i = 0; i < width * width; i++) {
+                project(file, block.first + offset + i, block.x, block.y, offset + i);
+            }
+            return;
+        }
+        int last = width - 1;
+        int middle = width / 2;
+        double[] xs = new double[9];
+        double[] ys = new double[9];
+        int[][] samples = {{0, 0}, {last, 0}, {0, last}, {last, last},
+            {middle, middle}, {middle, 0}, {0, middle}, {last, middle}, {middle, last}};
+        boolean interpolated = true;
+        for (int i = 0; i < samples.length && interpolated; i++) {
+            interpolated = project(file, block.first + offset + interleave(samples[i][0], samples[i][1]), xs, ys, i);
+            if (interpolated && i >= 4) {
+                double u = (double) samples[i][0] / last;
+                double v = (double) samples[i][1] / last;
+                double dx = bilinear(xs, u, v) - xs[i];
+                double dy = bilinear(ys, u, v) - ys[i];
+                interpolated = dx * dx + dy * dy <= tolerance2;
+            }
+        }
+        if (interpolated) {
+            for (int i = 0; i < width; i++) {
+                for (int j = 0; j < width; j++) {
+                    int index = offset + interleave(i, j);
+                    double u = (double) i / last;
+                    double v = (double) j / last;
+                    block.x[index] = bilinear(xs, u, v);
+                    block.y[index] = bilinear(ys, u, v);
+                }
+            }
+        } else {
+            int size = 1 << (2 * (order - 1));
+            for (int child = 0; child < 4; child++) {
+                subdivide(file, block, offset + child * size, order - 1);
+            }
+        }
+    }
+
+    /**
+     * Projects exactly a pixel on a frame.
+     *
+     * @param file the frame
+     * @param pixel NESTED pixel
+     * @param xs receives the abscissa
+     * @param ys receives the ordinate
+     * @param index index of the position in xs and ys
+     * @return True when the pixel is projected otherwise False
+     */
+    private boolean project(final JHipsMetadata file, long pixel, final double[] xs, final double[] ys, int index) {
+        hpx.pix2vec(pixel, vec);
+        if (!file.project(vec, xy)) {
+            xs[index] = Double.NaN;
+            projectionFailures++;
+            return false;
+        }
+        xs[index] = xy[0];
+        ys[index] = xy[1];
+        return true;
+    }
+
+    /**
+     * Interpolates bilinearly the values at the corners of a cell.
+     *
+     * @param values values at (0,0), (1,0), (0,1) and (1,1)
+     * @param u abscissa in the cell in [0, 1]
+     * @param v ordinate in the cell in [0, 1]
+     * @return the interpolated value
+     */
+    private static double bilinear(final double[] values, double u, double v) {
+        return (1 - v) * ((1 - u) * values[0] + u * values[1]) + v * ((1 - u) * values[2] + u * values[3]);
+    }
+
+    /**
+     * Returns the NESTED offset of a position in a cell, the bits of x being
+     * the even bits and the bits of y the odd bits.
+     *
+     * @param x abscissa in the cell
+     * @param y ordinate in the cell
+     * @return the offset
+     */
+    private static int interleave(int x, int y) {
+        int offset = 0;
+        for (int bit = 0; (x >> bit) != 0 || (y >> bit) != 0; bit++) {
+            offset |= ((x >> bit) & 1) << (2 * bit);
+            offset |= ((y >> bit) & 1) << (2 * bit + 1);
+        }
+        return offset;
+    }
+
+    /**
+     * Positions of the pixels of a block in the camera of a frame.
+     */
+    private static final class Block {
+
+        private long first = -1;
+        private final double[] x;
+        private final double[] y;
+
+        Block(int size) {
+            this.x = new double[size];
+            this.y = new double[size];
+        }
+    }
+}
@@ -18,12 +18,17 @@
  ******************************************************************************/
 package io.github.malapert.jhips.metadata;
 
+import cds.moc.HealpixMoc;
+import cds.moc.MocCell;
 import healpix.essentials.HealpixBase;
+import healpix.essentials.RangeSet;
 import io.github.malapert.jhips.algorithm.Projection;
 import io.github.malapert.jhips.exception.JHIPSException;
 import io.github.malapert.jhips.provider.JHipsMetadata;
+import io.github.malapert.jhips.util.Metrics;
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,6 +53,10 @@ public class MetadataFileCollection {
      * Pixel's scale in radians/pixel along width x height
      */
     private double[] scale;
+    /**
+     * Index of the files covering each region of the sphere.
+     */
+    private volatile CoverageIndex coverageIndex;
 
     /**
      * Creates an instance of metadata collection.
@@ -82,6 +91,7 @@ public class MetadataFileCollection {
     public final void setMetadataFiles(final List<JHipsMetadata> files) {
         this.metadataFiles = files;
         scale = computeHighestResolution(files);
+        coverageIndex = null;
     }
 
     /**
@@ -92,6 +102,7 @@ public class MetadataFileCollection {
     public void addMetadataFile(final JHipsMetadata file) {
         getMetadataFiles().add(file);
         scale = computeHighestResolution(scale, file);
+        coverageIndex = null;
     }
 
     /**
@@ -112,6 +123,82 @@ public class MetadataFileCollection {
         return Math.sqrt((getPixelScale()[0] * getPixelScale()[0] + getPixelScale()[1] * getPixelScale()[1]));
     }
 
+    /**
+     * Returns the index of the files covering each region of the sphere, for
+     * the pixels of a given order.
+     * <p>
+     * The index is built once and reused until a file is added or the order
+     * changes.
+     *
+     * @param order order of the pixels that are looked up
+     * @return the coverage index
+     */
+    public CoverageIndex getCoverageIndex(int order) {
+        CoverageIndex index = coverageIndex;
+        if (index == null || index.getMapOrder() != order || index.getNbFiles() != size()) {
+            synchronized (this) {
+                index = coverageIndex;
+                if (index == null || index.getMapOrder() != order || index.getNbFiles() != size()) {
+                    index = new CoverageIndex(getMetadataFiles(), order);
+                    coverageIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the pixels covered by the spatial index of at least one file.
+     * <p>
+     * The footprint of each file is computed from its spatial index, then the
+     * footprints are merged two by two.
+     *
+     * @param order order of the pixels
+     * @return the NESTED pixels covered by the files
+     */
+    public RangeSet getFootprint(int order) {
+        List<RangeSet> footprints = new ArrayList<>();
+        for (JHipsMetadata file : getMetadataFiles()) {
+            if (file.getIndex() != null) {
+                footprints.add(getFootprint(file.getIndex(), order));
+            }
+        }
+        if (footprints.isEmpty()) {
+            return new RangeSet();
+        }
+        while (footprints.size() > 1) {
+            List<RangeSet> merged = new ArrayList<>((footprints.size() + 1) / 2);
+            for (int i = 0; i < footprints.size(); i += 2) {
+                merged.add((i + 1 < footprints.size()) ? footprints.get(i).union(footprints.get(i + 1)) : footprints.get(i));
+            }
+            footprints = merged;
+        }
+        return footprints.get(0);
+    }
+
+    /**
+     * Returns the pixels covered by a spatial index.
+     *
+     * @param moc spatial index
+     * @param order order of the pixels
+     * @return the NESTED pixels covered by the spatial index
+     */
+    private static RangeSet getFootprint(final HealpixMoc moc, int order) {
+        RangeSet footprint = new RangeSet();
+        Iterator<MocCell> iter = moc.iterator();
+        while (iter.hasNext()) {
+            MocCell cell = iter.next();
+            if (cell.order >= order) {
+                long pixel = cell.npix >>> (2 * (cell.order - order));
+                footprint.add(pixel, pixel + 1);
+            } else {
+                int shift = 2 * (order - cell.order);
+                footprint.add(cell.npix << shift, (cell.npix + 1) << shift);
+            }
+        }
+        return footprint;
+    }
+
     /**
      * Returns the number of files to project.
      *
@@ -194,7 +281,9 @@ public class MetadataFileCollection {
         int blue = 0;
         int match = 0;
 
-        for (JHipsMetadata file : getMetadataFiles()) {
+        final List<JHipsMetadata> files = getMetadataFiles();
+        for (int i : getCoverageIndex(hpx.getOrder()).getCandidates(pixel)) {
+            JHipsMetadata file = files.get(i);
             if (file.isInside(hpx.getOrder(), pixel)) {
                 Color c = file.getRGB(hpx, pixel);
                 if (c != null) {
@@ -209,4 +298,118 @@ public class MetadataFileCollection {
         }
         return (match == 0) ? null : new Color(red / match, green / match, blue / match, alpha / match);
     }
+
+    /**
+     * Returns the packed ARGB color from a pixel.
+     * <p>
+     * This method is the allocation-free counterpart of
+     * {@link #getRGB(healpix.essentials.HealpixBase, long)}: the pixel center
+     * is computed at most once in the caller-provided buffer and no Color
+     * object is created. Only the files registered in the
+     * {@link CoverageIndex} for the pixel are tested.
+     *
+     * @param hpx index
+     * @param pixel pixel to extract
+     * @param ptg scratch buffer of at least 3 elements, which must not be
+     * shared between threads
+     * @return the packed ARGB color or {@link JHipsMetadata#EMPTY_RGB}
+     */
+    public int getPackedRGB(final HealpixBase hpx, long pixel, final double[] ptg) {
+        return getPackedRGB(hpx, pixel, ptg, null);
+    }
+
+    /**
+     * Returns the color of a Healpix pixel and counts the lookups by frame.
+     * <p>
+     * For the frame i, lookups[2i] is incremented when the pixel is found in
+     * the frame and lookups[2i+1] when the pixel is in the spatial index of
+     * the frame but outside its image. The last counter is incremented when
+     * the pixel cannot be projected on a frame. Without counters, these
+     * failures are added to the {@link Metrics}.
+     *
+     * @param hpx Healpix index
+     * @param pixel pixel to extract
+     * @param ptg scratch buffer of at least 3 elements, which must not be
+     * shared between threads
+     * @param lookups counters of 2 * {@link #getMetadataFiles()}.size() + 1
+     * elements, which must not be shared between threads, or null
+     * @return the packed ARGB color or {@link JHipsMetadata#EMPTY_RGB}
+     */
+    public int getPackedRGB(final HealpixBase hpx, long pixel, final double[] ptg, final long[] lookups) {
+        final List<JHipsMetadata> files = getMetadataFiles();
+        final int order = hpx.getOrder();
+        final int[] candidates = getCoverageIndex(order).getCandidates(pixel);
+        boolean located = false;
+        int result = JHipsMetadata.EMPTY_RGB;
+        for (int i = 0; i < candidates.length; i++) {
+            JHipsMetadata file = files.get(candidates[i]);
+            if (file.isInside(order, pixel)) {
+                if (!located) {
+                    hpx.pix2vec(pixel, ptg);
+                    located = true;
+                }
+                if (file.isInBounds(ptg)) {
+                    // the direction is replaced by the position in the camera
+                    located = false;
+                    if (file.project(ptg, ptg)) {
+                        result = file.getPackedRGBAt(ptg[0], ptg[1]);
+                    } else if (lookups != null) {
+                        lookups[lookups.length - 1]++;
+                        result = JHipsMetadata.EMPTY_RGB;
+                    } else {
+                        Metrics.getInstance().addProjectionFailure();
+                        result = JHipsMetadata.EMPTY_RGB;
+                    }
+                } else {
+                    result = JHipsMetadata.EMPTY_RGB;
+                }
+                if (result != JHipsMetadata.EMPTY_RGB) {
+                    if (lookups != null) {
+                        lookups[2 * candidates[i]]++;
+                    }
+                    break;
+                }
+                if (lookups != null) {
+                    lookups[2 * candidates[i] + 1]++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the color of a Healpix pixel, projected on the frames with an
+     * interpolated grid, and counts the lookups by frame.
+     *
+     * @param grid interpolated projection, which must not be shared between
+     * threads
+     * @param pixel pixel to extract
+     * @param lookups counters of 2 * {@link #getMetadataFiles()}.size() + 1
+     * elements as in
+     * {@link #getPackedRGB(healpix.essentials.HealpixBase, long, double[], long[])},
+     * or null; the failed projections are counted by the grid
+     * @return the packed ARGB color or {@link JHipsMetadata#EMPTY_RGB}
+     */
+    public int getPackedRGB(final GridProjection grid, long pixel, final long[] lookups) {
+        final List<JHipsMetadata> files = getMetadataFiles();
+        final int order = grid.getHealpixBase().getOrder();
+        final int[] candidates = getCoverageIndex(order).getCandidates(pixel);
+        int result = JHipsMetadata.EMPTY_RGB;
+        for (int i = 0; i < candidates.length; i++) {
+            JHipsMetadata file = files.get(candidates[i]);
+            if (file.isInside(order, pixel)) {
+                result = grid.getPackedRGB(file, candidates[i], pixel);
+                if (result != JHipsMetadata.EMPTY_RGB) {
+                    if (lookups != null) {
+                        lookups[2 * candidates[i]]++;
+                    }
+                    break;
+                }
+                if (lookups != null) {
+                    lookups[2 * candidates[i] + 1]++;
+                }
+            }
+        }
+        return result;
+    }
 }
@@ -0,0 +1,203 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.provider;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lens distortion of a camera, precomputed on a grid of the detector.
+ * <p>
+ * The distortion is the radial model of the distortion coefficients
+ * (x0, y0, k1, k2, k3) of {@link JHipsMetadataProviderInterface#getDistortionCoeff()}:
+ * a position of the camera reference frame at the distance r (mm) from the
+ * lens center moves radially by k1 r<sup>3</sup> + k2 r<sup>5</sup> +
+ * k3 r<sup>7</sup> (mm). The lens center is the center of the sub-image
+ * shifted by (x0, y0) (mm).
+ * <p>
+ * The displacement in pixels is computed once at the nodes of a grid with a
+ * step of {@value #STEP} pixels covering the sub-image, then bilinearly
+ * interpolated. Since the model is a smooth polynomial, the interpolation
+ * error is far below a pixel. A grid is shared by all the frames of a camera
+ * with the same geometry.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public final class DistortionGrid {
+
+    /**
+     * Distance in pixels between two nodes of the grid.
+     */
+    public static final int STEP = 16;
+
+    /**
+     * Grids by instrument and geometry.
+     */
+    private static final ConcurrentHashMap<String, DistortionGrid> GRIDS = new ConcurrentHashMap<>();
+
+    /**
+     * Position of the first node in the camera reference frame.
+     */
+    private final double originX, originY;
+
+    /**
+     * Number of nodes along X and Y axis.
+     */
+    private final int nbNodesX, nbNodesY;
+
+    /**
+     * Displacement along X and Y axis in pixels, row by row.
+     */
+    private final double[] displacementX, displacementY;
+
+    /**
+     * Largest displacement in pixels.
+     */
+    private final double maximumDisplacement;
+
+    /**
+     * Computes the grid.
+     *
+     * @param coeff distortion coefficients x0 (mm), y0 (mm), k1, k2, k3
+     * @param pixelSize size of a pixel along X and Y axis in mm
+     * @param firstSample first sample of the sub-image along X and Y axis
+     * @param subImageSize width and height of the sub-image
+     */
+    private DistortionGrid(final double[] coeff, final double[] pixelSize, final int[] firstSample, final int[] subImageSize) {
+        // one node outside each border of the sub-image
+        this.originX = firstSample[0] - STEP;
+        this.originY = firstSample[1] - STEP;
+        this.nbNodesX = (subImageSize[0] + STEP - 1) / STEP + 3;
+        this.nbNodesY = (subImageSize[1] + STEP - 1) / STEP + 3;
+        this.displacementX = new double[nbNodesX * nbNodesY];
+        this.displacementY = new double[nbNodesX * nbNodesY];
+        double lensX = (firstSample[0] + subImageSize[0] * 0.5) * pixelSize[0] + coeff[0];
+        double lensY = (firstSample[1] + subImageSize[1] * 0.5) * pixelSize[1] + coeff[1];
+        double k1 = coeff[2];
+        double k2 = coeff[3];
+        double k3 = coeff[4];
+        double maximum = 0;
+        for (int j = 0; j < nbNodesY; j++) {
+            double dy = (originY + j * STEP) * pixelSize[1] - lensY;
+            for (int i = 0; i < nbNodesX; i++) {
+                double dx = (originX + i * STEP) * pixelSize[0] - lensX;
+                double r2 = dx * dx + dy * dy;
+                // dr / r
+                double ratio = r2 * (k1 + r2 * (k2 + r2 * k3));
+                int node = j * nbNodesX + i;
+                displacementX[node] = dx * ratio / pixelSize[0];
+                displacementY[node] = dy * ratio / pixelSize[1];
+                maximum = Math.max(maximum, Math.max(Math.abs(displacementX[node]), Math.abs(displacementY[node])));
+            }
+        }
+        this.maximumDisplacement = maximum;
+    }
+
+    /**
+     * Returns the grid of the lens distortion of a frame.
+     * <p>
+     * The grid is computed on the first call for an instrument and a
+     * geometry, then shared.
+     *
+     * @param metadata metadata of the frame
+     * @return the grid or null when the frame has no distortion coefficients
+     * or no pixel size
+     */
+    public static DistortionGrid getInstance(final JHipsMetadataProviderInterface metadata) {
+        String instrument = metadata.getInstrumentID();
+        double[] coeff = (metadata.getDistortionCoeff() == null || instrument == null) ? null : metadata.getDistortionCoeff().get(instrument);
+        double[] pixelSize = metadata.getPixelSize();
+        if (coeff == null || pixelSize == null || pixelSize[0] <= 0 || pixelSize[1] <= 0) {
+            return null;
+        }
+        if (coeff.length < 5) {
+            Logger.getLogger(DistortionGrid.class.getName()).log(Level.WARNING, "Ignoring the distortion coefficients of {0}: 5 values expected", instrument);
+            return null;
+        }
+        int[] firstSample = metadata.getFirstSample();
+        int[] subImageSize = metadata.getSubImageSize();
+        String key = instrument + Arrays.toString(coeff) + Arrays.toString(pixelSize) + Arrays.toString(firstSample) + Arrays.toString(subImageSize);
+        DistortionGrid grid = GRIDS.get(key);
+        if (grid == null) {
+            DistortionGrid created = new DistortionGrid(coeff, pixelSize, firstSample, subImageSize);
+            grid = GRIDS.putIfAbsent(key, created);
+            if (grid == null) {
+                grid = created;
+                Logger.getLogger(DistortionGrid.class.getName()).log(Level.FINE, "Distortion grid of {0}: {1}x{2} nodes, up to {3} pixels", new Object[]{instrument, grid.nbNodesX, grid.nbNodesY, grid.maximumDisplacement});
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the largest displacement of the grid.
+     *
+     * @return the largest displacement along an axis in pixels
+     */
+    public double getMaximumDisplacement() {
+        return maximumDisplacement;
+    }
+
+    /**
+     * Returns the displacement along X axis at a position.
+     *
+     * @param x abscissa in the camera reference frame
+     * @param y ordinate in the camera reference frame
+     * @return the displacement in pixels
+     */
+    public double getDisplacementX(double x, double y) {
+        return interpolate(displacementX, x, y);
+    }
+
+    /**
+     * Returns the displacement along Y axis at a position.
+     *
+     * @param x abscissa in the camera reference frame
+     * @param y ordinate in the camera reference frame
+     * @return the displacement in pixels
+     */
+    public double getDisplacementY(double x, double y) {
+        return interpolate(displacementY, x, y);
+    }
+
+    /**
+     * Interpolates bilinearly a displacement of the grid.
+     * <p>
+     * Outside the grid, the displacement of the nearest border is used.
+     *
+     * @param values displacements at the nodes
+     * @param x abscissa in the camera reference frame
+     * @param y ordinate in the camera reference frame
+     * @return the displacement in pixels
+     */
+    private double interpolate(final double[] values, double x, double y) {
+        double u = (x - originX) / STEP;
+        double v = (y - originY) / STEP;
+        int i = Math.max(0, Math.min(nbNodesX - 2, (int) Math.floor(u)));
+        int j = Math.max(0, Math.min(nbNodesY - 2, (int) Math.floor(v)));
+        u = Math.max(0, Math.min(1, u - i));
+        v = Math.max(0, Math.min(1, v - j));
+        int node = j * nbNodesX + i;
+        double bottom = values[node] + u * (values[node + 1] - values[node]);
+        double top = values[node + nbNodesX] + u * (values[node + nbNodesX + 1] - values[node + nbNodesX]);
+        return bottom + v * (top - bottom);
+    }
+}
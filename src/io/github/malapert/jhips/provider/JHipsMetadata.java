@@ -13,29 +13,37 @@ import healpix.essentials.RangeSet;
 import healpix.essentials.Scheme;
 import io.github.malapert.jhips.exception.JHIPSException;
 import io.github.malapert.jhips.metadata.MetadataFile;
-import io.github.malapert.jwcs.AbstractJWcs;
-import io.github.malapert.jwcs.WcsNumericalMap;
-import io.github.malapert.jwcs.proj.exception.JWcsException;
+import io.github.malapert.jhips.util.FrameCache;
+import io.github.malapert.jhips.util.JfrEvents;
+import io.github.malapert.jhips.util.Metrics;
 import java.awt.Color;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 
 /**
  *
  * @author Jean-Christophe Malapert
  */
 public abstract class JHipsMetadata implements JHipsMetadataProviderInterface {
+
+    /**
+     * Packed ARGB value meaning that no color has been found.
+     * <p>
+     * The colors extracted from the images are always opaque so that this value
+     * never conflicts with a real color.
+     */
+    public static final int EMPTY_RGB = 0;
     
     /**
-     * Buffered image.
+     * Width and height of the image in pixels.
+     * <p>
+     * The pixels are decoded on demand by the {@link FrameCache}.
      */
-    private BufferedImage image;
+    private int imageWidth, imageHeight;
 
     /**
      * Pixel's scale in rad/pixel.
@@ -53,32 +61,148 @@ public abstract class JHipsMetadata implements JHipsMetadataProviderInterface {
     private io.github.malapert.jhips.algorithm.Projection.ProjectionType type;
 
     /**
-     * Wcs map that contains elements for computing (azimuth, elevation) <-->
-     * (x,y).
+     * Projection computing (azimuth, elevation) <--> (x,y).
+     */
+    private io.github.malapert.jhips.algorithm.Projection.Projector projector;
+
+    /**
+     * First sample of the sub-image along X and Y axis.
+     * <p>
+     * The provider returns a new array at each call, so it is cached once for
+     * the pixel lookups.
+     */
+    private int firstSampleX, firstSampleY;
+
+    /**
+     * Offset between the sub-image and the PNG reference frame along X and Y
+     * axis.
+     */
+    private double offsetX, offsetY;
+
+    /**
+     * Number of positions sampled along each edge of the image to compute
+     * its bounds on the sphere.
+     */
+    private static final int BOUNDS_SAMPLES = 16;
+
+    /**
+     * Margin in pixels of the camera added around the image when computing
+     * its bounds on the sphere.
+     */
+    private static final double BOUNDS_MARGIN = 2;
+
+    /**
+     * Unit vector of the axis of the bounding cap of the valid pixel range.
+     */
+    private final double[] capAxis = new double[3];
+
+    /**
+     * Cosine of the radius of the bounding cap, -1 when the cap is the whole
+     * sphere.
+     */
+    private double capCos = -1;
+
+    /**
+     * Unit normals of the planes of the edges of the valid pixel range, 3
+     * components per edge.
+     */
+    private final double[] edgeNormals = new double[12];
+
+    /**
+     * Lowest dot product between an edge normal and a direction of the
+     * valid pixel range.
+     */
+    private final double[] edgeOffsets = new double[4];
+
+    /**
+     * Number of edges bounding the valid pixel range, 0 when only the cap is
+     * used.
+     */
+    private int nbEdges;
+
+    /**
+     * Lens distortion of the camera, null when the camera has no distortion
+     * coefficients.
      */
-    private WcsNumericalMap wcs;
+    private DistortionGrid distortion;
+
+    /**
+     * Last decoded image of the file, kept for the next lookups.
+     * <p>
+     * The reference is weak so that an image evicted from the
+     * {@link FrameCache} is not kept in memory by its metadata.
+     */
+    private volatile WeakReference<FrameCache.Frame> frame;
+
+    /**
+     * True when the image of the file cannot be decoded.
+     */
+    private volatile boolean undecodable;
 
     public void init(io.github.malapert.jhips.algorithm.Projection.ProjectionType type) throws JHIPSException {
+        JfrEvents.Event event = JfrEvents.FRAME_INGESTION.begin();
         try {
             this.type = type;
-            this.image = ImageIO.read(this.getFile());
+            int[] imageSize = readImageSize();
+            this.imageWidth = imageSize[0];
+            this.imageHeight = imageSize[1];
             if (this.getSubImageSize()[0] == 0 && this.getSubImageSize()[1] == 0) {
-                this.setSubImageSize(new int[]{this.image.getWidth(), this.image.getHeight()});
+                this.setSubImageSize(new int[]{this.imageWidth, this.imageHeight});
             }
+            this.firstSampleX = this.getFirstSample()[0];
+            this.firstSampleY = this.getFirstSample()[1];
+            this.offsetX = 0.5 * (this.imageWidth - getSubImageWidth());
+            this.offsetY = 0.5 * (this.imageHeight - getSubImageHeight());
             this.scale = initPixelScale(this.getSubImageSize(), this.getFOV());
             this.index = createIndex(this.scale);
-            this.wcs = createWcs();
-            try {
-                this.wcs.doInit();
-            } catch (JWcsException ex) {
-                Logger.getLogger(MetadataFile.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            this.projector = createProjector();
+            this.distortion = DistortionGrid.getInstance(this);
             computeValidatedRangePixel();
+            computeBounds();
+            event.set("file", getFile().toString()).set("width", this.imageWidth).set("height", this.imageHeight).commit();
         } catch (IOException ex) {
             throw new JHIPSException(ex);
         }        
     }
 
+    /**
+     * Reads the width and the height of the image.
+     * <p>
+     * By default, the size is read from the header of {@link #getFile()}.
+     * Providers whose pixels are not stored in a file override this method
+     * and {@link #getImageRGB(int, int)}.
+     *
+     * @return the width and the height of the image in pixels
+     * @throws IOException error when reading the image
+     */
+    protected int[] readImageSize() throws IOException {
+        return FrameCache.readImageSize(this.getFile());
+    }
+
+    /**
+     * Returns a pixel of the image in the default RGB color model.
+     * <p>
+     * By default, the pixel is read from {@link #getFile()}, decoded by the
+     * {@link FrameCache}. The decoded image is requested from the cache only
+     * on the first lookup and once it has been evicted.
+     *
+     * @param x column of the pixel
+     * @param y row of the pixel, from the top
+     * @return the packed RGB color
+     * @throws IOException error when decoding the image
+     */
+    protected int getImageRGB(int x, int y) throws IOException {
+        WeakReference<FrameCache.Frame> reference = this.frame;
+        FrameCache.Frame current = (reference == null) ? null : reference.get();
+        if (current == null || current.isEvicted()) {
+            current = FrameCache.getInstance().getFrame(getFile());
+            this.frame = new WeakReference<>(current);
+        } else {
+            current.touch();
+        }
+        return current.getRGB(x, y);
+    }
+
     /**
      * Valid solution in the pixel range in the graphic reference frame.
      * <p>
@@ -92,24 +216,151 @@ public abstract class JHipsMetadata implements JHipsMetadataProviderInterface {
      * Basically, this computation remove the image borders from the solution
      */
     private void computeValidatedRangePixel() {
-        int xmin = (int) ((this.image.getWidth() > getSubImageWidth())
-                ? Math.ceil((this.image.getWidth() - getSubImageWidth()) * 0.5)
+        int xmin = (int) ((this.imageWidth > getSubImageWidth())
+                ? Math.ceil((this.imageWidth - getSubImageWidth()) * 0.5)
                 : 0);
-        int xmax = (int) ((this.image.getWidth() > getSubImageWidth())
-                ? Math.floor(getSubImageWidth() - (this.image.getWidth() - getSubImageWidth()) * 0.5)
-                : this.image.getWidth());
-        int ymin = (int) ((this.image.getHeight() > getSubImageHeight())
-                ? Math.ceil((this.image.getHeight() - getSubImageHeight())) * 0.5
+        int xmax = (int) ((this.imageWidth > getSubImageWidth())
+                ? Math.floor(getSubImageWidth() - (this.imageWidth - getSubImageWidth()) * 0.5)
+                : this.imageWidth);
+        int ymin = (int) ((this.imageHeight > getSubImageHeight())
+                ? Math.ceil((this.imageHeight - getSubImageHeight())) * 0.5
                 : 0);
-        int ymax = (int) ((this.image.getHeight() > getSubImageHeight())
-                ? Math.floor(getSubImageWidth() - (this.image.getHeight() - getSubImageHeight()) * 0.5)
-                : this.image.getHeight());
+        int ymax = (int) ((this.imageHeight > getSubImageHeight())
+                ? Math.floor(getSubImageWidth() - (this.imageHeight - getSubImageHeight()) * 0.5)
+                : this.imageHeight);
         this.validatedPixelRange[0] = xmin;
         this.validatedPixelRange[1] = xmax;
         this.validatedPixelRange[2] = ymin;
         this.validatedPixelRange[3] = ymax;
     }
 
+    /**
+     * Computes a spherical cap and a spherical quadrilateral containing the
+     * valid pixel range.
+     * <p>
+     * The border of the valid pixel range, enlarged by {@value #BOUNDS_MARGIN}
+     * pixels and by the largest lens distortion, is sampled and projected on the sphere. The cap is centered on
+     * the projection of the center of the range; its radius is the largest
+     * distance to a sample plus half the largest distance between two
+     * consecutive samples. The quadrilateral is bounded by the planes of the
+     * great circles joining the projected corners, moved outwards until all
+     * the samples are inside, since the edges of the image are not great
+     * circles in every projection. When a sample cannot be projected, the
+     * bounds are the whole sphere.
+     */
+    private void computeBounds() {
+        this.capCos = -1;
+        this.nbEdges = 0;
+        double margin = BOUNDS_MARGIN + ((this.distortion == null) ? 0 : this.distortion.getMaximumDisplacement());
+        double xMin = this.validatedPixelRange[0] + this.firstSampleX - this.offsetX - margin;
+        double xMax = this.validatedPixelRange[1] + this.firstSampleX - this.offsetX + margin;
+        double yMin = this.imageHeight - 1 - this.validatedPixelRange[3] + this.firstSampleY - this.offsetY - margin;
+        double yMax = this.imageHeight - 1 - this.validatedPixelRange[2] + this.firstSampleY - this.offsetY + margin;
+        double[] axis = new double[3];
+        if (!this.projector.pix2vec(0.5 * (xMin + xMax), 0.5 * (yMin + yMax), axis)) {
+            return;
+        }
+        double[][] corners = {{xMin, yMin}, {xMax, yMin}, {xMax, yMax}, {xMin, yMax}};
+        double[][] samples = new double[corners.length * BOUNDS_SAMPLES][3];
+        for (int edge = 0; edge < corners.length; edge++) {
+            double[] from = corners[edge];
+            double[] to = corners[(edge + 1) % corners.length];
+            for (int i = 0; i < BOUNDS_SAMPLES; i++) {
+                double t = (double) i / BOUNDS_SAMPLES;
+                if (!this.projector.pix2vec(from[0] + t * (to[0] - from[0]), from[1] + t * (to[1] - from[1]), samples[edge * BOUNDS_SAMPLES + i])) {
+                    return;
+                }
+            }
+        }
+
+        double minCos = 1;
+        double maxStep = 0;
+        for (int i = 0; i < samples.length; i++) {
+            minCos = Math.min(minCos, dot(axis, samples[i]));
+            maxStep = Math.max(maxStep, angle(samples[i], samples[(i + 1) % samples.length]));
+        }
+        double radius = Math.acos(Math.max(-1, Math.min(1, minCos))) + 0.5 * maxStep;
+        if (radius >= Math.PI) {
+            return;
+        }
+        System.arraycopy(axis, 0, this.capAxis, 0, 3);
+        this.capCos = Math.cos(radius);
+
+        double[] normal = new double[3];
+        for (int edge = 0; edge < corners.length; edge++) {
+            double[] from = samples[edge * BOUNDS_SAMPLES];
+            double[] to = samples[((edge + 1) % corners.length) * BOUNDS_SAMPLES];
+            normal[0] = from[1] * to[2] - from[2] * to[1];
+            normal[1] = from[2] * to[0] - from[0] * to[2];
+            normal[2] = from[0] * to[1] - from[1] * to[0];
+            double norm = Math.sqrt(dot(normal, normal));
+            if (norm == 0) {
+                this.nbEdges = 0;
+                return;
+            }
+            double sign = (dot(normal, axis) < 0) ? -1 : 1;
+            double offset = 0;
+            for (int i = 0; i < 3; i++) {
+                normal[i] *= sign / norm;
+            }
+            for (double[] sample : samples) {
+                offset = Math.min(offset, dot(normal, sample));
+            }
+            System.arraycopy(normal, 0, this.edgeNormals, 3 * edge, 3);
+            // the border between two samples is covered by the margin
+            this.edgeOffsets[edge] = offset;
+        }
+        this.nbEdges = corners.length;
+    }
+
+    /**
+     * Returns the dot product of two vectors.
+     *
+     * @param u first vector
+     * @param v second vector
+     * @return the dot product
+     */
+    private static double dot(final double[] u, final double[] v) {
+        return u[0] * v[0] + u[1] * v[1] + u[2] * v[2];
+    }
+
+    /**
+     * Returns the angle between two unit vectors.
+     *
+     * @param u first vector
+     * @param v second vector
+     * @return the angle in radians
+     */
+    private static double angle(final double[] u, final double[] v) {
+        double cx = u[1] * v[2] - u[2] * v[1];
+        double cy = u[2] * v[0] - u[0] * v[2];
+        double cz = u[0] * v[1] - u[1] * v[0];
+        return Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), dot(u, v));
+    }
+
+    /**
+     * Tests whether a direction is in the bounds of the valid pixel range.
+     * <p>
+     * A direction outside the bounds is outside the image, so that it can be
+     * rejected with a few dot products instead of a projection.
+     *
+     * @param vec unit vector of the direction
+     * @return False when the direction is outside the image, True when it
+     * may be inside
+     */
+    public boolean isInBounds(final double[] vec) {
+        if (dot(this.capAxis, vec) < this.capCos) {
+            return false;
+        }
+        for (int edge = 0; edge < this.nbEdges; edge++) {
+            int i = 3 * edge;
+            if (this.edgeNormals[i] * vec[0] + this.edgeNormals[i + 1] * vec[1] + this.edgeNormals[i + 2] * vec[2] < this.edgeOffsets[edge]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Computes a spatial index of the image in order to boost the processing.
      *
@@ -238,59 +489,17 @@ public abstract class JHipsMetadata implements JHipsMetadataProviderInterface {
     }
 
     /**
-     * Creates Map for World Coordinate System (WCS) processing.
+     * Creates the projection of the camera.
      * <p>
-     * The WCS is used to define a projection system.
-     *
-     * @return a map that contains WCS keywords
-     */
-    private WcsNumericalMap createWcs() {
-        Map map = new HashMap();
-        map.put(AbstractJWcs.CRPIX1, 0.5d * getDetectorSize()[0]);
-        map.put(AbstractJWcs.CRPIX2, 0.5d * getDetectorSize()[1]);
-        map.put(AbstractJWcs.CRVAL1, Math.toDegrees(getCameraLongitude()));
-        map.put(AbstractJWcs.CRVAL2, Math.toDegrees(getCameraLatitude()));
-        map.put(AbstractJWcs.CDELT1, -Math.toDegrees(getScale()[0]));
-        map.put(AbstractJWcs.CDELT2, Math.toDegrees(getScale()[1]));
-        map.put(AbstractJWcs.NAXIS, 2);
-        map.put(AbstractJWcs.NAXIS1, getDetectorSize()[0]);
-        map.put(AbstractJWcs.NAXIS2, getDetectorSize()[1]);
-        map.put(AbstractJWcs.CTYPE1, "RA---" + getType());
-        map.put(AbstractJWcs.CTYPE1, "DEC--" + getType());
-        map.put(AbstractJWcs.CROTA2, 0.0d); // No rotation for this instrument
-        return new WcsNumericalMap(map);
-    }
-
-    /**
-     * Applies the lens distortion on the whole detector.
+     * The projection is the one of a FITS WCS of type {@link #getType()},
+     * centered on the detector, with the scale {@link #getScale()}, the
+     * longitude increasing to the left and no rotation.
      *
-     * @param xy the pixel coordinates
-     * @return the corrected pixel coordinates
-     */
-    private double[] correctedLensDistortion(double[] xy) {
-        double resultX = xy[0];
-        double resultY = xy[1];
-        if (getDistortionCoeff() != null) {
-            double xCenterLens = getSubImageWidth() * 0.5 + getFirstSample()[0];
-            double yCenterLens = getSubImageHeight() * 0.5 + getFirstSample()[1];
-            double x0 = getDistortionCoeff().get(getInstrumentID())[0];
-            double y0 = getDistortionCoeff().get(getInstrumentID())[1];
-            double dx = xy[0] * getPixelSize()[0] - (xCenterLens * getPixelSize()[0] + x0); //https://www.google.fr/url?sa=t&rct=j&q=&esrc=s&source=web&cd=3&cad=rja&uact=8&ved=0ahUKEwj79qDMoKvJAhWC1hoKHUwQA28QFggvMAI&url=http%3A%2F%2Fwww.lpi.usra.edu%2Fmeetings%2Flpsc2011%2Fpdf%2F2738.pdf&usg=AFQjCNEUtyTBIlDLuKCrcIvATjI6uqY3wQ&sig2=8pFTQTqOUhOqdnfDYgRJBA&bvm=bv.108194040,d.d2s
-            double dy = xy[1] * getPixelSize()[1] - (yCenterLens * getPixelSize()[1] + y0);
-            double r = Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2));
-            if (r != 0) {
-                double k1 = getDistortionCoeff().get(getInstrumentID())[2];
-                double k2 = getDistortionCoeff().get(getInstrumentID())[3];
-                double k3 = getDistortionCoeff().get(getInstrumentID())[4];
-                double dr = k1 * Math.pow(r, 3) + k2 * Math.pow(r, 5) + k3 * Math.pow(r, 7);
-                double deltaX = xy[0] * dr / r;
-                double deltaY = xy[1] * dr / r;
-                resultX += deltaX;
-                resultY += deltaY;
-
-            }
-        }
-        return new double[]{resultX, resultY};
+     * @return the projection
+     */
+    private io.github.malapert.jhips.algorithm.Projection.Projector createProjector() {
+        return getType().createProjector(getCameraLongitude(), getCameraLatitude(),
+                0.5d * getDetectorSize()[0], 0.5d * getDetectorSize()[1], -getScale()[0], getScale()[1]);
     }
 
     /**
@@ -301,36 +510,106 @@ public abstract class JHipsMetadata implements JHipsMetadataProviderInterface {
      * @return the RGB color
      */
     public Color getRGB(double longitude, double latitude) {
-        Color result = null;
-        try {
-            // computes position in the camera reference frame
-            double[] xy = this.wcs.wcs2pix(Math.toDegrees(longitude), Math.toDegrees(latitude));
-            
-            // applies correction on lens distortion
-            //xy = correctedLensDistortion(xy);
-            
-            // computes position in the sub-image reference frame
-            int x = (int) xy[0] - getFirstSample()[0];
-            int y = (int) xy[1] - getFirstSample()[1];
-            
-            // computes position in the PNG reference frame
-            x = (int) (x + 0.5 * (image.getWidth() - getSubImageWidth()));
-            y = (int) (image.getHeight() - 1 - (y + 0.5 * (image.getHeight() - getSubImageHeight())));
-
-            // Extracts only the physical measurement - remove the image borders
-            if (x >= this.validatedPixelRange[1] || y >= this.validatedPixelRange[3] || x < this.validatedPixelRange[0] || y < this.validatedPixelRange[2]) {
-                result = null;
-            } else {
-                try {
-                    result = new Color(image.getRGB(x, y));
-                } catch (ArrayIndexOutOfBoundsException ex) {
-                    Logger.getLogger(MetadataFile.class.getName()).log(Level.SEVERE, "Error when extracting values (x,y) = ({0},{1}) from file {2}", new Object[]{x, y, getFile().toString()});
-                    Logger.getLogger(MetadataFile.class.getName()).log(Level.SEVERE, "(width, height) = ({0},{1}) , imgRequest=({2},{3})", new Object[]{getSubImageWidth(), getSubImageHeight(), getImageRequest()[0], getImageRequest()[1]});
-                    result = null;
-                }
+        int rgb = getPackedRGB(longitude, latitude);
+        return (rgb == EMPTY_RGB) ? null : new Color(rgb);
+    }
+
+    /**
+     * Returns the packed ARGB color from a pixel based on a longitude and
+     * latitude.
+     * <p>
+     * Unlike {@link #getRGB(double, double)}, this method does not create any
+     * Color object.
+     *
+     * @param longitude longitude in radians
+     * @param latitude latitude in radians
+     * @return the opaque packed ARGB color or {@link #EMPTY_RGB} when the
+     * position is outside the image
+     */
+    public int getPackedRGB(double longitude, double latitude) {
+        double[] xy = new double[2];
+        if (!project(longitude, latitude, xy)) {
+            Metrics.getInstance().addProjectionFailure();
+            return EMPTY_RGB;
+        }
+        return getPackedRGBAt(xy[0], xy[1]);
+    }
+
+    /**
+     * Projects a position of the sphere in the camera reference frame.
+     *
+     * @param longitude longitude in radians
+     * @param latitude latitude in radians
+     * @param xy receives the position (x, y) in the camera reference frame
+     * @return True when the position is projected, False when it is outside
+     * the domain of the projection; the failures are counted by the caller
+     */
+    public boolean project(double longitude, double latitude, final double[] xy) {
+        return this.projector.wcs2pix(longitude, latitude, xy);
+    }
+
+    /**
+     * Projects a direction in the camera reference frame.
+     *
+     * @param vec unit vector of the direction, as computed by
+     * {@link HealpixBase#pix2vec(long, double[])}
+     * @param xy receives the position (x, y) in the camera reference frame;
+     * it may be vec
+     * @return True when the direction is projected, False when it is outside
+     * the domain of the projection; the failures are counted by the caller
+     */
+    public boolean project(final double[] vec, final double[] xy) {
+        return this.projector.vec2pix(vec, xy);
+    }
+
+    /**
+     * Returns the color at a position of the camera reference frame, as
+     * computed by {@link #project(double, double)}.
+     * <p>
+     * The lens distortion of the camera, if any, is applied to the position.
+     * When the image cannot be decoded, the error is logged once and all the
+     * positions are empty.
+     *
+     * @param cameraX abscissa in the camera reference frame
+     * @param cameraY ordinate in the camera reference frame
+     * @return the opaque packed ARGB color or {@link #EMPTY_RGB} when the
+     * position is outside the image
+     */
+    public int getPackedRGBAt(double cameraX, double cameraY) {
+        int result;
+        // applies the lens distortion
+        if (this.distortion != null) {
+            double distortedX = cameraX + this.distortion.getDisplacementX(cameraX, cameraY);
+            cameraY += this.distortion.getDisplacementY(cameraX, cameraY);
+            cameraX = distortedX;
+        }
+
+        // computes position in the sub-image reference frame
+        int x = (int) cameraX - this.firstSampleX;
+        int y = (int) cameraY - this.firstSampleY;
+
+        // computes position in the PNG reference frame
+        x = (int) (x + this.offsetX);
+        y = (int) (this.imageHeight - 1 - (y + this.offsetY));
+
+        // Extracts only the physical measurement - remove the image borders
+        if (x >= this.validatedPixelRange[1] || y >= this.validatedPixelRange[3] || x < this.validatedPixelRange[0] || y < this.validatedPixelRange[2]) {
+            result = EMPTY_RGB;
+        } else if (this.undecodable) {
+            result = EMPTY_RGB;
+        } else {
+            try {
+                result = 0xff000000 | getImageRGB(x, y);
+            } catch (IOException ex) {
+                // the error is logged once, the file is then skipped
+                this.undecodable = true;
+                Logger.getLogger(MetadataFile.class.getName()).log(Level.SEVERE, "Cannot decode " + getFile() + ", its pixels are skipped", ex);
+                result = EMPTY_RGB;
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                Logger.getLogger(MetadataFile.class.getName()).log(Level.SEVERE, "Error when extracting values (x,y) = ({0},{1}) from file {2}", new Object[]{x, y, getFile().toString()});
+                Logger.getLogger(MetadataFile.class.getName()).log(Level.SEVERE, "(width, height) = ({0},{1}) , imgRequest=({2},{3})", new Object[]{getSubImageWidth(), getSubImageHeight(), getImageRequest()[0], getImageRequest()[1]});
+                result = EMPTY_RGB;
             }
-        } catch (io.github.malapert.jwcs.proj.exception.ProjectionException ex) {
-            Logger.getLogger(MetadataFile.class.getName()).log(Level.FINEST, null, ex);
         }
         return result;
     }
@@ -343,15 +622,17 @@ public abstract class JHipsMetadata implements JHipsMetadataProviderInterface {
      * @return the RGB color
      */
     public Color getRGB(final HealpixBase hpx, long pixel) {
-        Color result;
-        try {
-            Pointing pt = hpx.pix2ang(pixel);
-            result = getRGB(pt.phi, 0.5 * Math.PI - pt.theta);
-        } catch (Exception ex) {
-            Logger.getLogger(MetadataFile.class.getName()).log(Level.SEVERE, null, ex);
-            result = null;
+        double[] vec = new double[3];
+        hpx.pix2vec(pixel, vec);
+        if (!isInBounds(vec)) {
+            return null;
         }
-        return result;
+        if (!project(vec, vec)) {
+            Metrics.getInstance().addProjectionFailure();
+            return null;
+        }
+        int rgb = getPackedRGBAt(vec[0], vec[1]);
+        return (rgb == EMPTY_RGB) ? null : new Color(rgb);
     }
 
     /**
@@ -364,6 +645,15 @@ public abstract class JHipsMetadata implements JHipsMetadataProviderInterface {
     public boolean isInside(int order, long pixel) {
         return this.index.isIntersecting(order, pixel);
     }
+
+    /**
+     * Returns the spatial index of the file.
+     *
+     * @return the spatial index or null when it cannot be computed
+     */
+    public HealpixMoc getIndex() {
+        return this.index;
+    }
     
     @Override
     public String getInstrumentID() {
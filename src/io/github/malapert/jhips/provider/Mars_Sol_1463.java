@@ -20,13 +20,12 @@ package io.github.malapert.jhips.provider;
 
 import io.github.malapert.jhips.algorithm.Projection;
 import io.github.malapert.jhips.exception.JHIPSException;
-import java.awt.image.BufferedImage;
+import io.github.malapert.jhips.util.FrameCache;
 import java.io.File;
 import java.io.IOException;
 import java.util.Calendar;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 
 /**
  * Metadata for a whole planisphere.
@@ -35,7 +34,7 @@ import javax.imageio.ImageIO;
 public class Mars_Sol_1463 extends JHipsMetadata {
     
     private File file;
-    private BufferedImage image;
+    private int[] imageSize;
     
     /**
      * Creates an instance of metadata for the planisphere.
@@ -45,7 +44,7 @@ public class Mars_Sol_1463 extends JHipsMetadata {
     public Mars_Sol_1463(final File file) throws JHIPSException {        
         try {
             this.file = file;
-            this.image = ImageIO.read(this.file);
+            this.imageSize = FrameCache.readImageSize(this.file);
             init(Projection.ProjectionType.CAR);
         } catch (IOException ex) {
             Logger.getLogger(Mars_Sol_1463.class.getName()).log(Level.SEVERE, null, ex);
@@ -73,12 +72,12 @@ public class Mars_Sol_1463 extends JHipsMetadata {
 
     @Override
     public int[] getSubImageSize() {
-        return new int[]{this.image.getWidth(), this.image.getHeight()};
+        return new int[]{this.imageSize[0], this.imageSize[1]};
     }
 
     @Override
     public int[] getDetectorSize() {
-        return new int[]{this.image.getWidth(), this.image.getHeight()};
+        return new int[]{this.imageSize[0], this.imageSize[1]};
     }
 
     @Override
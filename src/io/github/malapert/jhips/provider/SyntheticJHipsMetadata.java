@@ -0,0 +1,210 @@
+ /******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.provider;
+
+import io.github.malapert.jhips.algorithm.Projection;
+import io.github.malapert.jhips.exception.JHIPSException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Metadata of a procedural frame, generated in memory.
+ * <p>
+ * The pixels are computed from their position (a gradient and a checkerboard
+ * whose colors depend on the frame), so that the frames need neither a file
+ * nor a decoding. They are used to run the pipeline reproducibly, for
+ * instance in benchmarks; {@link #createMosaic(int, int, int, double, double, double, double)}
+ * creates a grid of overlapping frames.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class SyntheticJHipsMetadata extends JHipsMetadata {
+
+    /**
+     * Width of a square of the checkerboard, as a power of 2.
+     */
+    private static final int CHECKER_SHIFT = 5;
+
+    private final int index;
+    private final int width;
+    private final int height;
+    private final double[] fov;
+    private final double[] horizontalCoordinates;
+
+    /**
+     * Creates a procedural frame.
+     *
+     * @param index number of the frame, which sets its colors
+     * @param width width of the frame in pixels
+     * @param height height of the frame in pixels
+     * @param fov field of view along X and Y in radians
+     * @param azimuth azimuth of the center of the frame in radians
+     * @param elevation elevation of the center of the frame in radians
+     * @throws JHIPSException error when initializing the frame
+     */
+    public SyntheticJHipsMetadata(int index, int width, int height, final double[] fov, double azimuth, double elevation) throws JHIPSException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("the size of the frame must be strictly positive: " + width + "x" + height);
+        }
+        this.index = index;
+        this.width = width;
+        this.height = height;
+        this.fov = fov.clone();
+        this.horizontalCoordinates = new double[]{azimuth, elevation};
+        init(Projection.ProjectionType.TAN);
+    }
+
+    /**
+     * Creates a mosaic of procedural frames.
+     * <p>
+     * The frames are laid out on a grid of rows and columns centered on a
+     * pointing. Two neighbor frames share a fraction of their field of view
+     * given by the overlap.
+     *
+     * @param nbFrames number of frames
+     * @param width width of a frame in pixels
+     * @param height height of a frame in pixels
+     * @param fov field of view of a frame along X in radians; the field of
+     * view along Y keeps the aspect ratio of the frame
+     * @param overlap fraction of the field of view shared by two neighbor
+     * frames, in [0, 1[
+     * @param azimuth azimuth of the center of the mosaic in radians
+     * @param elevation elevation of the center of the mosaic in radians
+     * @return the frames
+     * @throws JHIPSException error when initializing a frame
+     */
+    public static List<JHipsMetadata> createMosaic(int nbFrames, int width, int height, double fov, double overlap, double azimuth, double elevation) throws JHIPSException {
+        if (overlap < 0 || overlap >= 1) {
+            throw new IllegalArgumentException("overlap must be in [0, 1[: " + overlap);
+        }
+        double[] frameFov = new double[]{fov, fov * height / width};
+        int nbColumns = (int) Math.ceil(Math.sqrt(nbFrames));
+        int nbRows = (nbFrames + nbColumns - 1) / nbColumns;
+        double stepX = frameFov[0] * (1 - overlap);
+        double stepY = frameFov[1] * (1 - overlap);
+        double maxElevation = 0.5 * Math.PI - frameFov[1];
+        List<JHipsMetadata> frames = new ArrayList<>(nbFrames);
+        for (int i = 0; i < nbFrames; i++) {
+            int row = i / nbColumns;
+            int column = i % nbColumns;
+            double frameElevation = elevation + (row - 0.5 * (nbRows - 1)) * stepY;
+            frameElevation = Math.max(-maxElevation, Math.min(maxElevation, frameElevation));
+            double frameAzimuth = azimuth + (column - 0.5 * (nbColumns - 1)) * stepX / Math.cos(frameElevation);
+            frames.add(new SyntheticJHipsMetadata(i, width, height, frameFov, frameAzimuth, frameElevation));
+        }
+        return frames;
+    }
+
+    @Override
+    protected int[] readImageSize() {
+        return new int[]{this.width, this.height};
+    }
+
+    @Override
+    protected int getImageRGB(int x, int y) {
+        int checker = ((x >> CHECKER_SHIFT) ^ (y >> CHECKER_SHIFT)) & 1;
+        int red = (this.index * 67 + x * 255 / this.width) & 0xff;
+        int green = (this.index * 131 + y * 255 / this.height) & 0xff;
+        int blue = (checker == 0) ? 0x40 : 0xc0;
+        return red << 16 | green << 8 | blue;
+    }
+
+    /**
+     * Returns a virtual file naming the frame.
+     * <p>
+     * The file does not exist: the pixels are computed in memory.
+     *
+     * @return the virtual file of the frame
+     */
+    @Override
+    public File getFile() {
+        return new File("synthetic-" + this.index + ".png");
+    }
+
+    @Override
+    public double[] getHorizontalCoordinates() {
+        return this.horizontalCoordinates.clone();
+    }
+
+    @Override
+    public double[] getFOV() {
+        return this.fov.clone();
+    }
+
+    @Override
+    public void setSubImageSize(int[] subImage) {
+    }
+
+    @Override
+    public int[] getSubImageSize() {
+        return new int[]{this.width, this.height};
+    }
+
+    @Override
+    public int[] getDetectorSize() {
+        return new int[]{this.width, this.height};
+    }
+
+    @Override
+    public int[] getFirstSample() {
+        return new int[]{0, 0};
+    }
+
+    @Override
+    public double[] getPixelSize() {
+        return new double[]{0, 0};
+    }
+
+    @Override
+    public String getCreator_did() {
+        return "urn:jhips:synthetic";
+    }
+
+    @Override
+    public String getObs_title() {
+        return "Synthetic mosaic";
+    }
+
+    @Override
+    public String getDataproduct_type() {
+        return "image";
+    }
+
+    @Override
+    public String getDataproduct_subtype() {
+        return "color";
+    }
+
+    @Override
+    public String getHips_release_date() {
+        return Calendar.getInstance().getTime().toString();
+    }
+
+    @Override
+    public String getHips_status() {
+        return "private master unclonable";
+    }
+
+    @Override
+    public String getHips_frame() {
+        return "horizontalLocal";
+    }
+}
@@ -0,0 +1,316 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Journal of the work that is complete in an output directory, so that an
+ * interrupted generation resumes where it stopped.
+ * <p>
+ * The journal is a text file of the output directory with one record per
+ * line:
+ * <ul>
+ * <li>RUN signature: the parameters of the run that wrote the journal
+ * <li>STAGE name: a pipeline stage is complete
+ * <li>TILE tree order npix: the tile npix of order "order" of the HIPS tree
+ * "tree" is written
+ * </ul>
+ * A record is appended once the work is on the disk, so that the work that
+ * was running when the process died is done again. A last line without end of
+ * line is the truncated record of an interrupted run: it is ignored and
+ * removed.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class Checkpoint implements Closeable {
+
+    /**
+     * Name of the journal in the output directory.
+     */
+    public static final String JOURNAL_FILE = "jhips.checkpoint";
+
+    private static final String RUN = "RUN";
+    private static final String STAGE = "STAGE";
+    private static final String TILE = "TILE";
+
+    /**
+     * Order of the number of tiles recorded by a bit set, so that the tile
+     * indexes beyond 2^31 (from tile order 14) are stored in several bit
+     * sets.
+     */
+    private static final int BLOCK_SHIFT = 24;
+
+    /**
+     * Mask of the index of a tile in its bit set.
+     */
+    private static final long BLOCK_MASK = (1L << BLOCK_SHIFT) - 1;
+
+    /**
+     * Order and index of a tile in its path Norder*&#47;Dir*&#47;Npix*.
+     */
+    private static final Pattern TILE_PATH = Pattern.compile("Norder(\\d+)[/\\\\]Dir\\d+[/\\\\]Npix(\\d+)\\.\\w+$");
+
+    private final File journal;
+    private final Set<String> stages = new HashSet<>();
+    /**
+     * Written tiles by tree, order and block of tile indexes.
+     */
+    private final Map<String, BitSet> tiles = new HashMap<>();
+    private final Writer writer;
+
+    /**
+     * Opens the journal of an output directory.
+     * <p>
+     * When the signature is not null and differs from the signature of the
+     * journal, the journal is cleared because it describes another run.
+     *
+     * @param outputDirectory output directory
+     * @param signature parameters of the run or null to keep any journal
+     * @throws IOException error when reading or creating the journal
+     */
+    public Checkpoint(final File outputDirectory, final String signature) throws IOException {
+        this.journal = new File(outputDirectory, JOURNAL_FILE);
+        String previous = null;
+        long length = 0;
+        if (journal.exists()) {
+            long[] end = new long[1];
+            previous = load(end);
+            length = end[0];
+        }
+        boolean append = previous != null && (signature == null || signature.equals(previous));
+        if (!append) {
+            stages.clear();
+            tiles.clear();
+        } else {
+            try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+                file.setLength(length);
+            }
+            Logger.getLogger(Checkpoint.class.getName()).log(Level.INFO, "Resuming from {0}: {1} stages done", new Object[]{journal, stages.size()});
+        }
+        outputDirectory.mkdirs();
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, append), StandardCharsets.US_ASCII));
+        if (!append) {
+            write(RUN + " " + ((signature == null) ? "" : signature));
+        }
+    }
+
+    /**
+     * Loads the complete records of the journal.
+     *
+     * @param end receives the length of the complete records
+     * @return the signature of the journal
+     * @throws IOException error when reading the journal
+     */
+    private String load(final long[] end) throws IOException {
+        String signature = null;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(journal))) {
+            StringBuilder line = new StringBuilder();
+            long position = 0;
+            int c;
+            while ((c = in.read()) != -1) {
+                position++;
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                end[0] = position;
+                String[] fields = line.toString().split(" ", 2);
+                line.setLength(0);
+                try {
+                    if (RUN.equals(fields[0])) {
+                        signature = (fields.length > 1) ? fields[1] : "";
+                    } else if (STAGE.equals(fields[0]) && fields.length > 1) {
+                        stages.add(fields[1]);
+                    } else if (TILE.equals(fields[0]) && fields.length > 1) {
+                        String[] tile = fields[1].split(" ");
+                        if (tile.length == 3) {
+                            markTile(tile[0], Integer.parseInt(tile[1]), Long.parseLong(tile[2]));
+                        }
+                    }
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(Checkpoint.class.getName()).log(Level.WARNING, "Ignoring invalid record of {0}", journal);
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Returns the journal file.
+     *
+     * @return the journal
+     */
+    public File getJournal() {
+        return journal;
+    }
+
+    /**
+     * Tests whether a stage is complete.
+     *
+     * @param stage name of the stage
+     * @return True when the stage is complete otherwise False
+     */
+    public synchronized boolean isStageDone(final String stage) {
+        return stages.contains(stage);
+    }
+
+    /**
+     * Records that a stage is complete.
+     *
+     * @param stage name of the stage, without blank
+     * @throws IOException error when writing the journal
+     */
+    public synchronized void stageDone(final String stage) throws IOException {
+        if (stages.add(stage)) {
+            write(STAGE + " " + stage);
+        }
+    }
+
+    /**
+     * Tests whether a tile is written.
+     *
+     * @param tree name of the HIPS tree
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @return True when the tile is written otherwise False
+     */
+    public synchronized boolean isTileDone(final String tree, int order, long npix) {
+        BitSet done = tiles.get(getBlockKey(tree, order, npix));
+        return done != null && done.get((int) (npix & BLOCK_MASK));
+    }
+
+    /**
+     * Records that a tile is written.
+     *
+     * @param tree name of the HIPS tree, without blank
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @throws IOException error when writing the journal
+     */
+    public synchronized void tileDone(final String tree, int order, long npix) throws IOException {
+        if (markTile(tree, order, npix)) {
+            write(TILE + " " + tree + " " + order + " " + npix);
+        }
+    }
+
+    /**
+     * Tests whether a tile file is written.
+     *
+     * @param tree name of the HIPS tree
+     * @param tile path of the tile, ending by Norder*&#47;Dir*&#47;Npix*.ext
+     * @return True when the tile is written otherwise False
+     */
+    public boolean isTileDone(final String tree, final String tile) {
+        Matcher matcher = TILE_PATH.matcher(tile);
+        return matcher.find() && isTileDone(tree, Integer.parseInt(matcher.group(1)), Long.parseLong(matcher.group(2)));
+    }
+
+    /**
+     * Records that a tile file is written.
+     *
+     * @param tree name of the HIPS tree, without blank
+     * @param tile path of the tile, ending by Norder*&#47;Dir*&#47;Npix*.ext
+     * @throws IOException error when writing the journal
+     */
+    public void tileDone(final String tree, final String tile) throws IOException {
+        Matcher matcher = TILE_PATH.matcher(tile);
+        if (matcher.find()) {
+            tileDone(tree, Integer.parseInt(matcher.group(1)), Long.parseLong(matcher.group(2)));
+        }
+    }
+
+    /**
+     * Marks a tile as written in memory.
+     *
+     * @param tree name of the HIPS tree
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @return True when the tile was not marked
+     */
+    private boolean markTile(final String tree, int order, long npix) {
+        if (npix < 0) {
+            throw new IllegalArgumentException("Invalid tile index: " + npix);
+        }
+        String key = getBlockKey(tree, order, npix);
+        BitSet done = tiles.get(key);
+        if (done == null) {
+            done = new BitSet();
+            tiles.put(key, done);
+        }
+        int index = (int) (npix & BLOCK_MASK);
+        boolean marked = done.get(index);
+        done.set(index);
+        return !marked;
+    }
+
+    /**
+     * Returns the key of the bit set recording a tile.
+     *
+     * @param tree name of the HIPS tree
+     * @param order order of the tile
+     * @param npix index of the tile
+     * @return the key of the block of tiles
+     */
+    private static String getBlockKey(final String tree, int order, long npix) {
+        return tree + " " + order + " " + (npix >>> BLOCK_SHIFT);
+    }
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @param record the record
+     * @throws IOException error when writing the journal
+     */
+    private void write(final String record) throws IOException {
+        writer.write(record);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Closes the journal.
+     *
+     * @throws IOException error when closing the journal
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
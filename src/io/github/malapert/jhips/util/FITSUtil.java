@@ -18,16 +18,20 @@
  ******************************************************************************/
 package io.github.malapert.jhips.util;
 
+import io.github.malapert.jhips.algorithm.AbstractHealpixMapByte;
 import io.github.malapert.jhips.algorithm.HealpixMapByte;
+import io.github.malapert.jhips.algorithm.MappedHealpixMapByte;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.GregorianCalendar;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
-import nom.tam.fits.BinaryTableHDU;
-import nom.tam.fits.Fits;
-import nom.tam.fits.FitsFactory;
-import nom.tam.util.BufferedDataOutputStream;
 
 /**
  * Class Utility for FITS file
@@ -35,41 +39,235 @@ import nom.tam.util.BufferedDataOutputStream;
  */
 public class FITSUtil {
 
+    /**
+     * Size of a FITS block in bytes.
+     */
+    public static final int BLOCK_SIZE = 2880;
+
+    /**
+     * Size of a FITS header card in bytes.
+     */
+    private static final int CARD_SIZE = 80;
+
+    /**
+     * Number of pixels written at once by the streaming writer.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
     /**
      * Write Healpix map on a file.
-     * @param map the Healpix map to store
+     * @param map the Healpix map to store
      * @param filename filename
      * @throws Exception
      */
     public static void writeByteMap(final HealpixMapByte map, final String filename)
             throws Exception {
-        FitsFactory.setUseHierarch(true);
-        FitsFactory.setUseAsciiTables(false);
-        Fits f = new Fits();
-        Object[] table = new Object[1];
-        table[0] = map.getData();
-
-        f.addHDU(Fits.makeHDU(table));
-        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
-        bhdu.addValue("COORDSYS", "C", "Coordinate system");
-        bhdu.addValue("AUTHOR", "JHIPS", "HIPS map generated by JHIPS");
-        bhdu.addValue("ORIGIN", "JHIPS", "Responsible for creating the FITS file");
+        writeByteMap((AbstractHealpixMapByte) map, filename);
+    }
+
+    /**
+     * Writes a Healpix map on a file, whatever its storage.
+     * <p>
+     * The file is a binary table with one byte per row. The header cards are
+     * written first, then the pixels are streamed through a file channel by
+     * chunks of {@value #CHUNK_SIZE} pixels and the data is padded to a FITS
+     * block. The pixels of a map stored in an array are written from the
+     * array itself; the other maps are copied chunk by chunk in a single
+     * buffer, so that the memory used does not depend on the size of the map.
+     *
+     * @param map the Healpix map to store
+     * @param filename filename
+     * @throws Exception
+     */
+    public static void writeByteMap(final AbstractHealpixMapByte map, final String filename)
+            throws Exception {
+        if (map instanceof MappedHealpixMapByte) {
+            writeByteMap((MappedHealpixMapByte) map, filename);
+            return;
+        }
+        try (FileChannel out = new FileOutputStream(filename).getChannel()) {
+            writeFully(out, ByteBuffer.wrap(createHeaders(map.getNside(), map.getScheme().toString().toUpperCase(), map.getNpix())));
+            if (map instanceof HealpixMapByte) {
+                byte[] data = ((HealpixMapByte) map).getData();
+                for (int first = 0; first < data.length; first += CHUNK_SIZE) {
+                    writeFully(out, ByteBuffer.wrap(data, first, Math.min(CHUNK_SIZE, data.length - first)));
+                }
+            } else {
+                byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, map.getNpix())];
+                for (long first = 0; first < map.getNpix(); first += chunk.length) {
+                    int length = (int) Math.min(chunk.length, map.getNpix() - first);
+                    map.getPixels(first, chunk, 0, length);
+                    writeFully(out, ByteBuffer.wrap(chunk, 0, length));
+                }
+            }
+            writeFully(out, ByteBuffer.wrap(new byte[getPadding(map.getNpix())]));
+        }
+    }
+
+    /**
+     * Writes a memory-mapped Healpix map on a file.
+     * <p>
+     * The file has the same layout as the one written by
+     * {@link #writeByteMap(io.github.malapert.jhips.algorithm.AbstractHealpixMapByte, java.lang.String)}:
+     * a binary table with one byte per row. The header cards are written
+     * directly and the pixels are transferred from the mapped file to the
+     * FITS file by the operating system, without being copied in the heap.
+     *
+     * @param map the Healpix map to store
+     * @param filename filename
+     * @throws Exception
+     */
+    public static void writeByteMap(final MappedHealpixMapByte map, final String filename)
+            throws Exception {
+        map.flush();
+        try (FileChannel in = new FileInputStream(map.getFile()).getChannel();
+                FileChannel out = new FileOutputStream(filename).getChannel()) {
+            writeFully(out, ByteBuffer.wrap(createHeaders(map.getNside(), map.getScheme().toString().toUpperCase(), map.getNpix())));
+            long position = 0;
+            while (position < map.getNpix()) {
+                position += in.transferTo(position, map.getNpix() - position, out);
+            }
+            writeFully(out, ByteBuffer.wrap(new byte[getPadding(map.getNpix())]));
+        }
+    }
+
+    /**
+     * Writes a buffer on a channel.
+     *
+     * @param out channel
+     * @param buffer buffer to write
+     * @throws IOException
+     */
+    private static void writeFully(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of bytes completing data to a FITS block.
+     *
+     * @param length length of the data in bytes
+     * @return the number of padding bytes
+     */
+    static int getPadding(long length) {
+        return (int) ((BLOCK_SIZE - length % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    /**
+     * Creates the primary header and the header of the binary table storing a
+     * Healpix map, one byte per row.
+     *
+     * @param nside HEALPix NSIDE parameter
+     * @param ordering HEALPix ordering scheme
+     * @param npix number of pixels
+     * @return the headers padded to FITS blocks
+     * @throws Exception
+     */
+    static byte[] createHeaders(long nside, String ordering, long npix) throws Exception {
+        StringBuilder headers = new StringBuilder();
+        headers.append(card("SIMPLE", "T", "Java FITS: " + new Date()));
+        headers.append(card("BITPIX", "8", null));
+        headers.append(card("NAXIS", "0", null));
+        headers.append(card("EXTEND", "T", "Extensions are permitted"));
+        closeHeader(headers);
+        headers.append(card("XTENSION", quote("BINTABLE"), "Java FITS: " + new Date()));
+        headers.append(card("BITPIX", "8", null));
+        headers.append(card("NAXIS", "2", "Dimensionality"));
+        headers.append(card("NAXIS1", "1", null));
+        headers.append(card("NAXIS2", String.valueOf(npix), null));
+        headers.append(card("PCOUNT", "0", null));
+        headers.append(card("GCOUNT", "1", null));
+        headers.append(card("TFIELDS", "1", null));
+        headers.append(card("COORDSYS", quote("C"), "Coordinate system"));
+        headers.append(card("AUTHOR", quote("JHIPS"), "HIPS map generated by JHIPS"));
+        headers.append(card("ORIGIN", quote("JHIPS"), "Responsible for creating the FITS file"));
+        headers.append(card("DATE", quote(createDate()), "Creation date"));
+        headers.append(card("TFORM1", quote("1B"), null));
+        headers.append(card("TTYPE1", quote("data"), "values"));
+        headers.append(card("PIXTYPE", quote("HEALPIX"), "This is a HEALPix map"));
+        headers.append(card("NSIDE", String.valueOf(nside), "HEALPix NSIDE parameter"));
+        headers.append(card("ORDERING", quote(ordering), "HEALPix ordering scheme"));
+        closeHeader(headers);
+        return headers.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the creation date of a FITS file.
+     *
+     * @return the current date in ISO format
+     * @throws Exception
+     */
+    private static String createDate() throws Exception {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
         GregorianCalendar gc = new GregorianCalendar();
-        String dateString = sdf.format(gc.getTime());       
-        gc.setTime(sdf.parse(dateString));      
+        String dateString = sdf.format(gc.getTime());
+        gc.setTime(sdf.parse(dateString));
         XMLGregorianCalendar date = DatatypeFactory.newInstance().newXMLGregorianCalendar(gc);
-        bhdu.addValue("DATE",date.toString(),"Creation date");
-        bhdu.setColumnName(0, "data", "values");
-        bhdu.addValue("PIXTYPE", "HEALPIX", "This is a HEALPix map");
-        bhdu.addValue("NSIDE", map.getNside(), "HEALPix NSIDE parameter");
-        bhdu.addValue("ORDERING", map.getScheme().toString().toUpperCase(),
-                "HEALPix ordering scheme");
-
-        FileOutputStream fos = new FileOutputStream(filename);
-        try (BufferedDataOutputStream s = new BufferedDataOutputStream(fos)) {
-            f.write(s);
-            s.flush();
+        return date.toString();
+    }
+
+    /**
+     * Formats a FITS string value.
+     *
+     * @param value the string
+     * @return the quoted string, padded to 8 characters
+     */
+    private static String quote(final String value) {
+        return "'" + pad(value.replace("'", "''"), 8) + "'";
+    }
+
+    /**
+     * Formats a header card. Numbers and logical values are right-justified
+     * in column 30.
+     *
+     * @param key keyword
+     * @param value formatted value
+     * @param comment comment or null
+     * @return the card of 80 characters
+     */
+    private static String card(final String key, final String value, final String comment) {
+        StringBuilder card = new StringBuilder(CARD_SIZE);
+        card.append(pad(key, 8)).append("= ");
+        if (value.startsWith("'")) {
+            card.append(pad(value, 20));
+        } else {
+            for (int i = value.length(); i < 20; i++) {
+                card.append(' ');
+            }
+            card.append(value);
+        }
+        if (comment != null) {
+            card.append(" / ").append(comment);
+        }
+        return pad(card.length() > CARD_SIZE ? card.substring(0, CARD_SIZE) : card.toString(), CARD_SIZE);
+    }
+
+    /**
+     * Appends the END card and the blanks completing the headers to a FITS
+     * block.
+     *
+     * @param headers the headers
+     */
+    private static void closeHeader(final StringBuilder headers) {
+        headers.append(pad("END", CARD_SIZE));
+        while (headers.length() % BLOCK_SIZE != 0) {
+            headers.append(' ');
+        }
+    }
+
+    /**
+     * Pads a string with blanks.
+     *
+     * @param value string
+     * @param length minimum length
+     * @return the padded string
+     */
+    private static String pad(final String value, int length) {
+        StringBuilder result = new StringBuilder(value);
+        while (result.length() < length) {
+            result.append(' ');
         }
+        return result.toString();
     }
 }
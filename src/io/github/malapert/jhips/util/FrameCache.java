@@ -0,0 +1,459 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Shared cache of the decoded source images.
+ * <p>
+ * An image is decoded on the first lookup of one of its pixels and stored as
+ * tiles of {@value #TILE_SIZE}x{@value #TILE_SIZE} packed ARGB pixels. The
+ * cache is bounded by a number of bytes: when the bound is reached, the least
+ * recently used images are evicted and will be decoded again if needed. Since
+ * the sphere is rasterized in NESTED order, only the images covering the
+ * current region of the sphere stay resident.
+ * <p>
+ * An image is decoded only once even when several threads request it at the
+ * same time. An image that cannot be decoded is remembered as failed: the
+ * later requests throw the same error without decoding it again, until the
+ * image is {@link #invalidate(File) invalidated}.
+ * <p>
+ * The clock ordering the accesses only advances when an image is decoded, so
+ * that a caller may keep a {@link Frame} for a run of lookups and mark it as
+ * used with {@link Frame#touch()}, which only reads the clock, instead of
+ * requesting it from the cache for each pixel. Such a caller must drop the
+ * frame once it is {@link Frame#isEvicted() evicted}.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public class FrameCache {
+
+    /**
+     * Width and height of a tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Order of {@link #TILE_SIZE}.
+     */
+    private static final int TILE_SHIFT = 8;
+
+    /**
+     * The cache shared by all images.
+     */
+    private static final FrameCache INSTANCE = new FrameCache(Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * Decoded images by file.
+     */
+    private final ConcurrentHashMap<File, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Clock used to order the accesses, advanced when an image is decoded.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Number of bytes of the decoded images.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Highest number of bytes of the decoded images.
+     */
+    private volatile long maximumSize;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maximumSize highest number of bytes of the decoded images
+     */
+    public FrameCache(long maximumSize) {
+        setMaximumSize(maximumSize);
+    }
+
+    /**
+     * Returns the cache shared by all images.
+     * <p>
+     * Its default size is a quarter of the maximum heap.
+     *
+     * @return the shared cache
+     */
+    public static FrameCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the highest number of bytes of the decoded images.
+     *
+     * @return the maximum size in bytes
+     */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Sets the highest number of bytes of the decoded images.
+     * <p>
+     * The most recently used image is always kept, even when it is larger
+     * than this size.
+     *
+     * @param maximumSize the maximum size in bytes
+     */
+    public final void setMaximumSize(long maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the number of bytes of the decoded images.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Returns the decoded image of a file, decoding it if needed.
+     *
+     * @param file image file
+     * @return the decoded image
+     * @throws IOException error when decoding the image, now or during a
+     * previous request
+     */
+    public Frame getFrame(final File file) throws IOException {
+        Entry entry = entries.get(file);
+        if (entry == null) {
+            Entry created = new Entry(file, clock, size);
+            entry = entries.putIfAbsent(file, created);
+            if (entry == null) {
+                entry = created;
+                clock.incrementAndGet();
+                entry.task.run();
+                Frame frame = get(entry);
+                if (entries.get(file) != entry) {
+                    // invalidated while decoding
+                    release(entry);
+                }
+                evict(entry);
+                return frame;
+            }
+        }
+        Frame frame = get(entry);
+        frame.touch();
+        return frame;
+    }
+
+    /**
+     * Removes an image from the cache.
+     *
+     * @param file image file
+     */
+    public void invalidate(final File file) {
+        Entry entry = entries.remove(file);
+        if (entry != null && entry.task.isDone()) {
+            release(entry);
+        }
+    }
+
+    /**
+     * Removes all images from the cache.
+     */
+    public void clear() {
+        for (File file : entries.keySet()) {
+            invalidate(file);
+        }
+    }
+
+    /**
+     * Waits for the decoding of an image.
+     * <p>
+     * A failed entry stays in the cache, so that the image is not decoded
+     * again.
+     *
+     * @param entry the entry of the image
+     * @return the decoded image
+     * @throws IOException error when decoding the image
+     */
+    private static Frame get(final Entry entry) throws IOException {
+        try {
+            return entry.task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof IOException) ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Evicts the least recently used images until the cache fits in its
+     * maximum size.
+     *
+     * @param kept entry that must not be evicted
+     */
+    private void evict(final Entry kept) {
+        while (size.get() > maximumSize) {
+            Entry oldest = null;
+            long oldestAccess = 0;
+            for (Entry entry : entries.values()) {
+                Frame frame = entry.getDecoded();
+                if (entry != kept && frame != null && (oldest == null || frame.lastAccess < oldestAccess)) {
+                    oldest = entry;
+                    oldestAccess = frame.lastAccess;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            if (entries.remove(oldest.file, oldest)) {
+                release(oldest);
+                Logger.getLogger(FrameCache.class.getName()).log(Level.FINE, "Evicting {0}", oldest.file);
+            }
+        }
+    }
+
+    /**
+     * Removes the size of a decoded image from the size of the cache and
+     * marks it as evicted.
+     * <p>
+     * An entry may be released by several threads, for instance when it is
+     * invalidated while being evicted: only the first release is counted.
+     *
+     * @param entry entry removed from the cache
+     */
+    private void release(final Entry entry) {
+        Frame frame = entry.getDecoded();
+        if (frame != null && entry.released.compareAndSet(false, true)) {
+            // a failed image has never been counted
+            frame.evicted = true;
+            size.addAndGet(-frame.getSize());
+        }
+    }
+
+    /**
+     * Reads the size of an image without decoding its pixels.
+     *
+     * @param file image file
+     * @return the width and the height of the image
+     * @throws IOException error when reading the header of the image
+     */
+    public static int[] readImageSize(final File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new IOException("Cannot read " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * An image of the cache.
+     */
+    private static final class Entry {
+
+        private final File file;
+        private final FutureTask<Frame> task;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Creates the entry of an image.
+         * <p>
+         * The decoded image is marked as used and counted in the size of the
+         * cache before the decoding completes, so that an evicting thread
+         * never sees an image that is not counted yet.
+         *
+         * @param file image file
+         * @param clock clock of the accesses of the cache
+         * @param size number of bytes of the decoded images of the cache
+         */
+        Entry(final File file, final AtomicLong clock, final AtomicLong size) {
+            this.file = file;
+            this.task = new FutureTask<>(new Callable<Frame>() {
+                @Override
+                public Frame call() throws IOException {
+                    JfrEvents.Event event = JfrEvents.FRAME_DECODE.begin();
+                    BufferedImage image = ImageIO.read(file);
+                    if (image == null) {
+                        throw new IOException("No image reader for " + file);
+                    }
+                    Frame frame = new Frame(image, clock);
+                    frame.touch();
+                    size.addAndGet(frame.getSize());
+                    event.set("file", file.toString()).set("width", frame.getWidth()).set("height", frame.getHeight())
+                            .set("bytes", frame.getSize()).commit();
+                    return frame;
+                }
+            });
+        }
+
+        /**
+         * Returns the decoded image.
+         *
+         * @return the image or null when it is being decoded or failed
+         */
+        Frame getDecoded() {
+            if (!task.isDone()) {
+                return null;
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A decoded image stored as tiles of packed ARGB pixels.
+     */
+    public static final class Frame {
+
+        private final int width;
+        private final int height;
+        private final int nbTilesX;
+        private final int[][] tiles;
+        private final AtomicLong clock;
+        private volatile long lastAccess;
+        private volatile boolean evicted;
+
+        /**
+         * Creates the tiles of an image.
+         *
+         * @param image decoded image
+         * @param clock clock of the accesses of the cache
+         */
+        Frame(final BufferedImage image, final AtomicLong clock) {
+            this.clock = clock;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.nbTilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+            int nbTilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+            this.tiles = new int[nbTilesX * nbTilesY][];
+            for (int ty = 0; ty < nbTilesY; ty++) {
+                for (int tx = 0; tx < nbTilesX; tx++) {
+                    int x0 = tx << TILE_SHIFT;
+                    int y0 = ty << TILE_SHIFT;
+                    int[] tile = new int[TILE_SIZE * TILE_SIZE];
+                    image.getRGB(x0, y0, Math.min(TILE_SIZE, width - x0), Math.min(TILE_SIZE, height - y0), tile, 0, TILE_SIZE);
+                    this.tiles[ty * nbTilesX + tx] = tile;
+                }
+            }
+        }
+
+        /**
+         * Returns the width of the image.
+         *
+         * @return the width in pixels
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Returns the height of the image.
+         *
+         * @return the height in pixels
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Marks the image as used, so that the images that were not used
+         * since the last decoding are evicted first.
+         * <p>
+         * The access time is written only when an image has been decoded
+         * since the previous mark, so that this method may be called for each
+         * pixel.
+         */
+        public void touch() {
+            long now = clock.get();
+            if (lastAccess != now) {
+                lastAccess = now;
+            }
+        }
+
+        /**
+         * Tests whether the image has been removed from the cache.
+         * <p>
+         * An evicted image is still valid, but its memory is no longer
+         * counted: the caller should request the image again.
+         *
+         * @return True when the image is evicted otherwise False
+         */
+        public boolean isEvicted() {
+            return evicted;
+        }
+
+        /**
+         * Returns the number of bytes used by the tiles.
+         *
+         * @return the size in bytes
+         */
+        public long getSize() {
+            return 4L * TILE_SIZE * TILE_SIZE * tiles.length;
+        }
+
+        /**
+         * Returns a pixel in the default RGB color model, like
+         * {@link BufferedImage#getRGB(int, int)}.
+         *
+         * @param x column of the pixel
+         * @param y row of the pixel, from the top
+         * @return the packed ARGB color
+         * @throws ArrayIndexOutOfBoundsException when the pixel is outside
+         * the image
+         */
+        public int getRGB(int x, int y) {
+            if (x < 0 || y < 0 || x >= width || y >= height) {
+                throw new ArrayIndexOutOfBoundsException("(" + x + "," + y + ") is outside the image");
+            }
+            return tiles[(y >> TILE_SHIFT) * nbTilesX + (x >> TILE_SHIFT)][((y & (TILE_SIZE - 1)) << TILE_SHIFT) | (x & (TILE_SIZE - 1))];
+        }
+    }
+}
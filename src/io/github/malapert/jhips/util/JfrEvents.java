@@ -0,0 +1,306 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java Flight Recorder events of the pipeline.
+ * <p>
+ * The events are created at runtime with jdk.jfr.EventFactory, called by
+ * reflection so that the code still compiles and runs on a JVM without JFR.
+ * On such a JVM, or when the events are disabled in the recording settings,
+ * {@link Type#begin()} returns an event that does nothing.
+ * <p>
+ * The events belong to the category "JHIPS" and are recorded with, for
+ * instance:
+ * <pre>
+ * java -XX:StartFlightRecording=filename=jhips.jfr ...
+ * jfr print --categories JHIPS jhips.jfr
+ * </pre>
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public final class JfrEvents {
+
+    /**
+     * Prefix of the names of the events.
+     */
+    public static final String PREFIX = "io.github.malapert.jhips.";
+
+    private static final String CATEGORY = "JHIPS";
+
+    private static Method newEvent;
+    private static Method begin;
+    private static Method commit;
+    private static Method isEnabled;
+    private static Method set;
+    private static Method create;
+    private static Constructor<?> annotationElement;
+    private static Constructor<?> valueDescriptor;
+    private static Class<?>[] annotations;
+    private static final boolean AVAILABLE = init();
+
+    /**
+     * Reading of the header and creation of the WCS of a frame.
+     */
+    public static final Type FRAME_INGESTION = new Type("FrameIngestion", "Frame Ingestion",
+            "Reads the size of a frame and creates its projection",
+            new String[]{"file", "width", "height"}, new Class<?>[]{String.class, int.class, int.class});
+
+    /**
+     * Decoding of the pixels of a frame.
+     */
+    public static final Type FRAME_DECODE = new Type("FrameDecode", "Frame Decode",
+            "Decodes the pixels of a frame in the frame cache",
+            new String[]{"file", "width", "height", "bytes"}, new Class<?>[]{String.class, int.class, int.class, long.class});
+
+    /**
+     * Rasterization of a NESTED segment of the sphere.
+     */
+    public static final Type RASTER_CHUNK = new Type("RasterChunk", "Raster Chunk",
+            "Fills a NESTED segment of the Healpix vectors",
+            new String[]{"firstPixel", "pixels", "rendered", "hits", "misses", "frames", "frame"},
+            new Class<?>[]{long.class, long.class, long.class, long.class, long.class, int.class, String.class});
+
+    /**
+     * Writing of a Healpix vector in a FITS file.
+     */
+    public static final Type FITS_WRITE = new Type("FitsWrite", "FITS Write",
+            "Writes a Healpix vector in a FITS file",
+            new String[]{"file", "pixels", "bytes"}, new Class<?>[]{String.class, long.class, long.class});
+
+    /**
+     * Tiling of a FITS file by HipsGen.
+     */
+    public static final Type HIPSGEN = new Type("HipsGen", "HipsGen",
+            "Generates the tiles of a FITS file with HipsGen",
+            new String[]{"file"}, new Class<?>[]{String.class});
+
+    /**
+     * Tiling of a map by the HIPS tiler.
+     */
+    public static final Type TILING = new Type("Tiling", "Tiling",
+            "Reads a map once and submits the tiles of all orders",
+            new String[]{"directory", "minOrder", "maxOrder", "tiles"}, new Class<?>[]{String.class, int.class, int.class, long.class});
+
+    /**
+     * Merge of R, G and B tiles.
+     */
+    public static final Type RGB_MERGE = new Type("RgbMerge", "RGB Merge",
+            "Merges the R, G and B tiles in a color tile",
+            new String[]{"tile", "pixels"}, new Class<?>[]{String.class, long.class});
+
+    /**
+     * Utility class.
+     */
+    private JfrEvents() {
+    }
+
+    /**
+     * Loads the JFR API.
+     *
+     * @return True when JFR is available otherwise False
+     */
+    private static boolean init() {
+        try {
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            newEvent = factory.getMethod("newEvent");
+            create = factory.getMethod("create", List.class, List.class);
+            begin = event.getMethod("begin");
+            commit = event.getMethod("commit");
+            isEnabled = event.getMethod("isEnabled");
+            set = event.getMethod("set", int.class, Object.class);
+            annotationElement = element.getConstructor(Class.class, Object.class);
+            valueDescriptor = descriptor.getConstructor(Class.class, String.class);
+            annotations = new Class<?>[]{Class.forName("jdk.jfr.Name"), Class.forName("jdk.jfr.Label"),
+                Class.forName("jdk.jfr.Description"), Class.forName("jdk.jfr.Category"), Class.forName("jdk.jfr.StackTrace")};
+            return true;
+        } catch (ClassNotFoundException | NoSuchMethodException | LinkageError ex) {
+            Logger.getLogger(JfrEvents.class.getName()).log(Level.FINE, "JFR events are disabled: {0}", ex.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Tests whether the JVM provides JFR.
+     *
+     * @return True when the events are recorded by JFR otherwise False
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Type of event.
+     */
+    public static final class Type {
+
+        private final String name;
+        private final String[] fields;
+        private final Object factory;
+
+        /**
+         * Creates and registers a type of event.
+         *
+         * @param name name of the event, without {@link #PREFIX}
+         * @param label human readable name
+         * @param description description of the event
+         * @param fields names of the fields
+         * @param types types of the fields
+         */
+        Type(final String name, final String label, final String description, final String[] fields, final Class<?>[] types) {
+            this.name = PREFIX + name;
+            this.fields = fields.clone();
+            this.factory = AVAILABLE ? createFactory(this.name, label, description, fields, types) : null;
+        }
+
+        /**
+         * Creates the factory of the events.
+         *
+         * @return the factory or null when the event cannot be registered
+         */
+        private static Object createFactory(final String name, final String label, final String description, final String[] fields, final Class<?>[] types) {
+            try {
+                List<Object> eventAnnotations = Arrays.asList(
+                        annotationElement.newInstance(annotations[0], name),
+                        annotationElement.newInstance(annotations[1], label),
+                        annotationElement.newInstance(annotations[2], description),
+                        annotationElement.newInstance(annotations[3], new String[]{CATEGORY}),
+                        annotationElement.newInstance(annotations[4], Boolean.FALSE));
+                List<Object> descriptors = new ArrayList<>();
+                for (int i = 0; i < fields.length; i++) {
+                    descriptors.add(valueDescriptor.newInstance(types[i], fields[i]));
+                }
+                return create.invoke(null, eventAnnotations, descriptors);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                Logger.getLogger(JfrEvents.class.getName()).log(Level.WARNING, "Cannot register the JFR event " + name, ex);
+                return null;
+            }
+        }
+
+        /**
+         * Returns the name of the event.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Starts an event.
+         * <p>
+         * The event is recorded by {@link Event#commit()} with the elapsed
+         * time as duration.
+         *
+         * @return the started event
+         */
+        public Event begin() {
+            if (factory == null) {
+                return Event.NONE;
+            }
+            try {
+                Object event = newEvent.invoke(factory);
+                if (!(Boolean) isEnabled.invoke(event)) {
+                    return Event.NONE;
+                }
+                begin.invoke(event);
+                return new Event(this, event);
+            } catch (ReflectiveOperationException ex) {
+                return Event.NONE;
+            }
+        }
+    }
+
+    /**
+     * Running event.
+     */
+    public static final class Event {
+
+        /**
+         * Event that is not recorded.
+         */
+        private static final Event NONE = new Event(null, null);
+
+        private final Type type;
+        private final Object event;
+
+        private Event(final Type type, final Object event) {
+            this.type = type;
+            this.event = event;
+        }
+
+        /**
+         * Tests whether the event is recorded.
+         * <p>
+         * Callers may test it to avoid computing the fields of an event that
+         * is not recorded.
+         *
+         * @return True when the event is recorded otherwise False
+         */
+        public boolean isEnabled() {
+            return event != null;
+        }
+
+        /**
+         * Sets a field of the event.
+         *
+         * @param field name of the field
+         * @param value value of the field, of the type of the field
+         * @return this event
+         */
+        public Event set(final String field, final Object value) {
+            if (event != null) {
+                int index = Arrays.asList(type.fields).indexOf(field);
+                if (index < 0) {
+                    throw new IllegalArgumentException(type.name + " has no field " + field);
+                }
+                try {
+                    set.invoke(event, index, value);
+                } catch (ReflectiveOperationException ex) {
+                    Logger.getLogger(JfrEvents.class.getName()).log(Level.FINE, null, ex);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Ends and records the event.
+         */
+        public void commit() {
+            if (event != null) {
+                try {
+                    commit.invoke(event);
+                } catch (ReflectiveOperationException ex) {
+                    Logger.getLogger(JfrEvents.class.getName()).log(Level.FINE, null, ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,465 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the pipeline: counters, stage timers and the progress of the
+ * running task.
+ * <p>
+ * The metrics are shared by the whole JVM and exported through JMX under
+ * {@value #OBJECT_NAME}. While reporting is started, the throughput and the
+ * estimated remaining time of the running task are logged periodically.
+ * <p>
+ * The counters are updated in batches by the callers (for instance once per
+ * range of pixels), so that the inner loops only increment local variables.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public final class Metrics implements MetricsMXBean {
+
+    /**
+     * Name of the metrics in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "io.github.malapert.jhips:type=Metrics";
+
+    /**
+     * Default period of the progress log in seconds.
+     */
+    public static final long DEFAULT_REPORT_PERIOD = 10;
+
+    /**
+     * The metrics of the JVM.
+     */
+    private static final Metrics INSTANCE = new Metrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (Exception ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, "Cannot export the metrics through JMX", ex);
+        }
+    }
+
+    private final AtomicLong pixelsRendered = new AtomicLong();
+    private final AtomicLong pixelsEmpty = new AtomicLong();
+    private final AtomicLong projectionFailures = new AtomicLong();
+    private final AtomicLong tilesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong[]> frames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong[]> stages = new ConcurrentHashMap<>();
+    private volatile Progress progress;
+    private long reportPeriod = DEFAULT_REPORT_PERIOD;
+    private ScheduledExecutorService reporter;
+    private int reporting;
+
+    /**
+     * Creates the metrics.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Returns the metrics of the JVM.
+     *
+     * @return the metrics
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds visited Healpix pixels.
+     *
+     * @param rendered number of pixels that received a color
+     * @param empty number of pixels found in no frame
+     */
+    public void addPixels(long rendered, long empty) {
+        pixelsRendered.addAndGet(rendered);
+        pixelsEmpty.addAndGet(empty);
+    }
+
+    /**
+     * Adds the lookups of pixels in a frame.
+     *
+     * @param frame name of the frame
+     * @param hits number of pixels found in the frame
+     * @param misses number of pixels of the spatial index of the frame that
+     * are outside its image
+     */
+    public void addFrameLookups(final String frame, long hits, long misses) {
+        AtomicLong[] counters = getCounters(frames, frame);
+        counters[0].addAndGet(hits);
+        counters[1].addAndGet(misses);
+    }
+
+    /**
+     * Counts a position that cannot be projected on a frame.
+     */
+    public void addProjectionFailure() {
+        projectionFailures.incrementAndGet();
+    }
+
+    /**
+     * Adds positions that cannot be projected on a frame.
+     *
+     * @param failures number of positions
+     */
+    public void addProjectionFailures(long failures) {
+        projectionFailures.addAndGet(failures);
+    }
+
+    /**
+     * Counts a written tile.
+     *
+     * @param bytes size of the tile in bytes
+     */
+    public void addTile(long bytes) {
+        tilesWritten.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Counts written bytes that are not tiles.
+     *
+     * @param bytes number of bytes
+     */
+    public void addBytes(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Starts the timer of a stage.
+     * <p>
+     * The timer is stopped by {@link Timer#close()}, typically in a finally
+     * block.
+     *
+     * @param stage name of the stage
+     * @return the running timer
+     */
+    public Timer startStage(final String stage) {
+        return new Timer(getCounters(stages, stage));
+    }
+
+    /**
+     * Starts measuring the progress of a task.
+     * <p>
+     * The task replaces the previous one in the progress log.
+     *
+     * @param task name of the task
+     * @param total number of items to process
+     * @param unit name of the items
+     * @return the progress of the task
+     */
+    public Progress startProgress(final String task, long total, final String unit) {
+        Progress started = new Progress(task, total, unit);
+        this.progress = started;
+        return started;
+    }
+
+    /**
+     * Returns the counters of a key, creating them if needed.
+     *
+     * @param map counters by key
+     * @param key the key
+     * @return the counters
+     */
+    private static AtomicLong[] getCounters(final ConcurrentHashMap<String, AtomicLong[]> map, final String key) {
+        AtomicLong[] counters = map.get(key);
+        if (counters == null) {
+            AtomicLong[] created = new AtomicLong[]{new AtomicLong(), new AtomicLong()};
+            counters = map.putIfAbsent(key, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Returns one counter of each key.
+     *
+     * @param map counters by key
+     * @param index index of the counter
+     * @param scale divisor of the values
+     * @return the values by key
+     */
+    private static Map<String, Long> getValues(final ConcurrentHashMap<String, AtomicLong[]> map, int index, long scale) {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong[]> entry : map.entrySet()) {
+            values.put(entry.getKey(), entry.getValue()[index].get() / scale);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the period of the progress log.
+     *
+     * @return the period in seconds
+     */
+    public synchronized long getReportPeriod() {
+        return reportPeriod;
+    }
+
+    /**
+     * Sets the period of the progress log.
+     * <p>
+     * The period is used the next time reporting is started.
+     *
+     * @param reportPeriod the period in seconds, at least 1
+     */
+    public synchronized void setReportPeriod(long reportPeriod) {
+        if (reportPeriod < 1) {
+            throw new IllegalArgumentException("reportPeriod must be at least 1: " + reportPeriod);
+        }
+        this.reportPeriod = reportPeriod;
+    }
+
+    /**
+     * Starts logging the progress of the running task periodically.
+     * <p>
+     * Each call must be matched by a call to {@link #stopReporting()}; the
+     * log stops when all callers have stopped it.
+     */
+    public synchronized void startReporting() {
+        if (reporting++ == 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jhips-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    report();
+                }
+            }, reportPeriod, reportPeriod, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops logging the progress of the running task.
+     */
+    public synchronized void stopReporting() {
+        if (reporting > 0 && --reporting == 0) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Logs the progress of the running task.
+     */
+    void report() {
+        Progress running = this.progress;
+        if (running != null && !running.isDone()) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.INFO, running.toString());
+        }
+    }
+
+    @Override
+    public long getPixelsRendered() {
+        return pixelsRendered.get();
+    }
+
+    @Override
+    public long getPixelsEmpty() {
+        return pixelsEmpty.get();
+    }
+
+    @Override
+    public Map<String, Long> getFrameHits() {
+        return getValues(frames, 0, 1);
+    }
+
+    @Override
+    public Map<String, Long> getFrameMisses() {
+        return getValues(frames, 1, 1);
+    }
+
+    @Override
+    public long getProjectionFailures() {
+        return projectionFailures.get();
+    }
+
+    @Override
+    public long getTilesWritten() {
+        return tilesWritten.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public Map<String, Long> getStageTimes() {
+        return getValues(stages, 1, 1000000L);
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        return getValues(stages, 0, 1);
+    }
+
+    @Override
+    public String getCurrentTask() {
+        Progress running = this.progress;
+        return (running == null || running.isDone()) ? null : running.task;
+    }
+
+    @Override
+    public double getProgress() {
+        Progress running = this.progress;
+        return (running == null) ? Double.NaN : running.getFraction();
+    }
+
+    @Override
+    public double getThroughput() {
+        Progress running = this.progress;
+        return (running == null) ? 0 : running.getThroughput();
+    }
+
+    @Override
+    public long getEstimatedTimeRemaining() {
+        Progress running = this.progress;
+        return (running == null) ? -1 : running.getEstimatedTimeRemaining();
+    }
+
+    @Override
+    public void reset() {
+        pixelsRendered.set(0);
+        pixelsEmpty.set(0);
+        projectionFailures.set(0);
+        tilesWritten.set(0);
+        bytesWritten.set(0);
+        frames.clear();
+        stages.clear();
+        progress = null;
+    }
+
+    /**
+     * Running timer of a stage.
+     */
+    public static final class Timer implements AutoCloseable {
+
+        private final AtomicLong[] counters;
+        private final long start = System.nanoTime();
+
+        Timer(final AtomicLong[] counters) {
+            this.counters = counters;
+        }
+
+        /**
+         * Stops the timer and adds the elapsed time to its stage.
+         */
+        @Override
+        public void close() {
+            counters[0].incrementAndGet();
+            counters[1].addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Progress of a task.
+     */
+    public static final class Progress {
+
+        private final String task;
+        private final long total;
+        private final String unit;
+        private final long start = System.nanoTime();
+        private final AtomicLong done = new AtomicLong();
+
+        Progress(final String task, long total, final String unit) {
+            this.task = task;
+            this.total = total;
+            this.unit = unit;
+        }
+
+        /**
+         * Adds processed items.
+         *
+         * @param items number of items
+         */
+        public void add(long items) {
+            done.addAndGet(items);
+        }
+
+        /**
+         * Tests whether all items are processed.
+         *
+         * @return True when the task is done
+         */
+        public boolean isDone() {
+            return done.get() >= total;
+        }
+
+        /**
+         * Returns the fraction of the items that are processed.
+         *
+         * @return the progress in [0, 1]
+         */
+        public double getFraction() {
+            return (total == 0) ? 1 : Math.min(1, (double) done.get() / total);
+        }
+
+        /**
+         * Returns the number of items processed per second.
+         *
+         * @return the throughput
+         */
+        public double getThroughput() {
+            long elapsed = System.nanoTime() - start;
+            return (elapsed == 0) ? 0 : done.get() * 1e9 / elapsed;
+        }
+
+        /**
+         * Returns the estimated remaining time.
+         *
+         * @return the remaining time in seconds or -1 when it is unknown
+         */
+        public long getEstimatedTimeRemaining() {
+            double throughput = getThroughput();
+            return (throughput == 0) ? -1 : (long) ((total - Math.min(total, done.get())) / throughput);
+        }
+
+        @Override
+        public String toString() {
+            long eta = getEstimatedTimeRemaining();
+            return String.format("%s: %.1f%% (%d/%d %s), %.0f %s/s, ETA %s", task, 100 * getFraction(), done.get(), total, unit,
+                    getThroughput(), unit, (eta < 0) ? "unknown" : String.format("%02d:%02d:%02d", eta / 3600, (eta / 60) % 60, eta % 60));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+ /*******************************************************************************
+ * Copyright 2015 - Jean-Christophe Malapert (jcmalapert@gmail.com)
+ *
+ * This file is part of JHIPS.
+ *
+ * JHIPS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JHIPS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JHIPS.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package io.github.malapert.jhips.util;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link Metrics} of the pipeline, exported
+ * through JMX under {@value Metrics#OBJECT_NAME}.
+ *
+ * @author Jean-Christophe Malapert <jcmalapert@gmail.com>
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Returns the number of Healpix pixels that received a color.
+     *
+     * @return the number of pixels
+     */
+    long getPixelsRendered();
+
+    /**
+     * Returns the number of Healpix pixels that were visited but found in no
+     * frame.
+     *
+     * @return the number of pixels
+     */
+    long getPixelsEmpty();
+
+    /**
+     * Returns the number of pixels found in each frame.
+     *
+     * @return the number of pixels by frame file
+     */
+    Map<String, Long> getFrameHits();
+
+    /**
+     * Returns the number of pixels that were inside the spatial index of each
+     * frame but outside its image.
+     *
+     * @return the number of pixels by frame file
+     */
+    Map<String, Long> getFrameMisses();
+
+    /**
+     * Returns the number of positions that could not be projected on a frame.
+     *
+     * @return the number of projection failures
+     */
+    long getProjectionFailures();
+
+    /**
+     * Returns the number of tiles written.
+     *
+     * @return the number of tiles
+     */
+    long getTilesWritten();
+
+    /**
+     * Returns the number of bytes written in tiles and FITS files.
+     *
+     * @return the number of bytes
+     */
+    long getBytesWritten();
+
+    /**
+     * Returns the time spent in each stage.
+     *
+     * @return the time in milliseconds by stage
+     */
+    Map<String, Long> getStageTimes();
+
+    /**
+     * Returns the number of runs of each stage.
+     *
+     * @return the number of runs by stage
+     */
+    Map<String, Long> getStageCounts();
+
+    /**
+     * Returns the name of the running task whose progress is measured.
+     *
+     * @return the name of the task or null
+     */
+    String getCurrentTask();
+
+    /**
+     * Returns the progress of the running task.
+     *
+     * @return the progress in [0, 1] or NaN when no task is running
+     */
+    double getProgress();
+
+    /**
+     * Returns the throughput of the running task.
+     *
+     * @return the number of items per second
+     */
+    double getThroughput();
+
+    /**
+     * Returns the estimated remaining time of the running task.
+     *
+     * @return the remaining time in seconds or -1 when it is unknown
+     */
+    long getEstimatedTimeRemaining();
+
+    /**
+     * Resets all counters and timers.
+     */
+    void reset();
+}
@@ -0,0 +1,189 @@
+/*
+ *  This file is part of Healpix Java.
+ *
+ *  This code is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this code; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  For more information about HEALPix, see http://healpix.sourceforge.net
+ */
+
+package healpix.essentials;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests the conversions of a Moc to and from NUNIQ pixels and strings,
+    against the range-by-order conversions they replace.
+    <p>
+    JUnit 4.11 needs hamcrest-core 1.3, which is not shipped in lib/: add it
+    to the test classpath next to lib/junit-4.11.jar to run this test. */
+public class MocUniqTest
+  {
+  private static final int maxorder=29;
+  private static final int nrandom=300;
+
+  /** Returns a random Moc made of cells of orders 0 to maxorder_in. */
+  private static Moc randomMoc(Random rng, int maxorder_in)
+    {
+    Moc res=new Moc();
+    int ncells=rng.nextInt(20);
+    for (int i=0; i<ncells; ++i)
+      {
+      int order=rng.nextInt(maxorder_in+1);
+      long npix=12L<<(2*order);
+      long p1=(long)(rng.nextDouble()*npix);
+      long p2=Math.min(npix,p1+1+rng.nextInt(1+rng.nextInt(64)));
+      res.addPixelRange(order,p1,p2);
+      }
+    return res;
+    }
+
+  /** Returns a Moc made of whole order-0 cells. */
+  private static Moc order0Moc(long p1, long p2)
+    {
+    Moc res=new Moc();
+    res.addPixelRange(0,p1,p2);
+    return res;
+    }
+
+  /** The previous Moc.toUniqRS(): the Moc is degraded order by order. */
+  private static RangeSet referenceToUniqRS(Moc moc)
+    {
+    RangeSet r2=moc.getRangeSet();
+    RangeSet r3=new RangeSet();
+    RangeSet res=new RangeSet();
+    for (int o=0; o<=maxorder; ++o)
+      {
+      if (r2.isEmpty()) return res;
+
+      int shift=2*(maxorder-o);
+      long ofs=(1L<<shift)-1;
+      long ofs2=1L<<(2*o+2);
+      r3.clear();
+      for (int iv=0; iv<r2.nranges(); ++iv)
+        {
+        long a=(r2.ivbegin(iv)+ofs)>>>shift,
+             b=r2.ivend(iv)>>>shift;
+        r3.append(a<<shift,b<<shift);
+        res.append(a+ofs2,b+ofs2);
+        }
+      if (!r3.isEmpty())
+        r2=r2.difference(r3);
+      }
+    return res;
+    }
+
+  /** The previous Moc.fromUniqRS(): the NUNIQ pixels are added one by one. */
+  private static Moc referenceFromUniqRS(RangeSet ru)
+    {
+    RangeSet r=new RangeSet();
+    for (int i=0; i<ru.nranges(); ++i)
+      for (long j=ru.ivbegin(i); j<ru.ivend(i); ++j)
+        {
+        int order=HealpixUtils.uniq2order(j);
+        int shift=2*(maxorder-order);
+        long pix=j-(1L<<(2*order+2));
+        r.add(pix<<shift,(pix+1)<<shift);
+        }
+    return new Moc(r,maxorder);
+    }
+
+  private static RangeSet toUniqStreaming(Moc moc) throws Exception
+    {
+    final RangeSet res=new RangeSet();
+    moc.toUniq(new Moc.UniqWriter()
+      {
+      public void append(long a, long b)
+        { res.append(a,b); }
+      });
+    return res;
+    }
+
+  private static void checkMoc(Moc moc) throws Exception
+    {
+    RangeSet expected=referenceToUniqRS(moc);
+    assertEquals(expected,moc.toUniqRS());
+    assertEquals(expected,toUniqStreaming(moc));
+    assertArrayEquals(expected.toArray(),moc.toUniq());
+    assertEquals(moc,Moc.fromUniqRS(expected));
+    assertEquals(moc,Moc.fromUniq(expected.toArray()));
+    assertEquals(moc,MocStringIO.mocFromString(MocStringIO.mocToStringASCII(moc)));
+    assertEquals(moc,MocStringIO.mocFromString(MocStringIO.mocToStringJSON(moc)));
+    }
+
+  @Test
+  public void testRandomMocs() throws Exception
+    {
+    Random rng=new Random(42);
+    for (int i=0; i<nrandom; ++i)
+      checkMoc(randomMoc(rng,(i%3==0) ? maxorder : 8));
+    }
+
+  @Test
+  public void testOrder0Mocs() throws Exception
+    {
+    checkMoc(new Moc());
+    for (long p1=0; p1<12; ++p1)
+      for (long p2=p1+1; p2<=12; ++p2)
+        checkMoc(order0Moc(p1,p2));
+    checkMoc(order0Moc(4,12).union(randomMoc(new Random(1),10)));
+    }
+
+  @Test
+  public void testOrder0Strings() throws Exception
+    {
+    assertEquals("0/0-11",MocStringIO.mocToStringASCII(order0Moc(0,12)));
+    assertEquals("0/4-11",MocStringIO.mocToStringASCII(order0Moc(4,12)));
+    assertEquals("{\"0\":[4,5,6,7,8,9,10,11]}",
+      MocStringIO.mocToStringJSON(order0Moc(4,12)));
+    Moc moc=order0Moc(4,12);
+    moc.addPixel(1,0);
+    assertEquals("0/4-11 1/0",MocStringIO.mocToStringASCII(moc));
+    }
+
+  @Test
+  public void testIllFormedUniq() throws Exception
+    {
+    Random rng=new Random(7);
+    for (int i=0; i<nrandom; ++i)
+      {
+      // overlapping and repeated cells of different orders
+      List<Long> cells=new ArrayList<Long>();
+      int ncells=1+rng.nextInt(30);
+      for (int j=0; j<ncells; ++j)
+        {
+        int order=rng.nextInt(6);
+        long pix=(long)(rng.nextDouble()*(12L<<(2*order)));
+        long uniq=pix+(1L<<(2*order+2));
+        int len=1+rng.nextInt(4);
+        for (int k=0; k<len; ++k)
+          cells.add(uniq+k);
+        }
+      long[] u=new long[cells.size()];
+      for (int j=0; j<u.length; ++j)
+        u[j]=cells.get(j);
+      Arrays.sort(u);
+      RangeSet ru=RangeSet.fromArray(u);
+      Moc expected=referenceFromUniqRS(ru);
+      assertEquals(expected,Moc.fromUniqRS(ru));
+      assertEquals(expected,Moc.fromUniq(u));
+      }
+    }
+  }